@@ -0,0 +1,3 @@
+/* host stand-in for the NDK header,sendbench only */
+#define ANDROID_LOG_DEBUG 3
+#define __android_log_print(...) 0
@@ -0,0 +1,539 @@
+/*
+ * Host benchmark of the two chunk writers in libresrtmp.c,
+ * RTMP_SendPacket(headers built in place,one send per chunk) against sendPacketV(one sendmsg per message).
+ * A forked child drains a loopback tcp connection,the parent times N messages per frame size.
+ * Before timing,both writers send the same messages over a socketpair and the byte streams are compared,
+ * and a compressed(fmt 1/2/3) A/V stream is decoded again and checked message by message.
+ * Then the chunk header bytes/s of a 2Mbps+128kbps stream are reported per chunk size,
+ * and a queue of small A/V messages is sent one sendPacketV call per message against sendBatchV.
+ * `./sendbench vectors` only prints length and FNV-1a 64 digest of the verification streams,
+ * RESChunkWriterTest holds the same table for the java writer.
+ * Not part of the app build:
+ *
+ *   JH=$JAVA_HOME/include
+ *   gcc -O2 -fcommon -DNO_CRYPTO -I. -I$JH -I$JH/linux -I../librtmp -I.. \
+ *       sendbench.c ../librtmp/amf.c ../librtmp/log.c ../librtmp/parseurl.c ../librtmp/rtmp.c -o sendbench
+ *   ./sendbench [messages|vectors]
+ */
+#define __LEUDLOG_H__
+#define LOGD(...)
+#include "../libresrtmp.c"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+#include <time.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <arpa/inet.h>
+#include <sys/wait.h>
+
+static RTMP *newRtmp(int fd, int chunkSize) {
+	RTMP *r = RTMP_Alloc();
+	RTMP_Init(r);
+	r->m_sb.sb_socket = fd;
+	r->m_outChunkSize = chunkSize;
+	r->m_stream_id = 1;
+	return r;
+}
+
+static RESRtmp *newRes(int fd, int chunkSize) {
+	RESRtmp *res = calloc(1, sizeof(RESRtmp));
+	res->rtmp = newRtmp(fd, chunkSize);
+	res->scatterGather = 1;
+	return res;
+}
+
+static void freeRtmp(RTMP *r) {
+	r->m_sb.sb_socket = -1;
+	RTMP_Close(r);
+	RTMP_Free(r);
+}
+
+static char *newBody(int size) {
+	char *mem = malloc(size + RTMP_MAX_HEADER_SIZE);
+	int i;
+	for (i = 0; i < size + RTMP_MAX_HEADER_SIZE; i++) {
+		mem[i] = (char) (i * 31);
+	}
+	return mem + RTMP_MAX_HEADER_SIZE;
+}
+
+static int sendOld(RTMP *r, char *body, int size, int type, int ts) {
+	RTMPPacket packet;
+	memset(&packet, 0, sizeof(packet));
+	packet.m_body = body;
+	return sendPacket(r, &packet, size, type, ts);
+}
+
+static void freeRes(RESRtmp *res) {
+	freeRtmp(res->rtmp);
+	free(res);
+}
+
+static int readAll(int fd, char *dst, int cap) {
+	int got = 0;
+	ssize_t n;
+	while (got < cap && (n = recv(fd, dst + got, cap - got, MSG_DONTWAIT)) > 0) {
+		got += n;
+	}
+	return got;
+}
+
+static const int verifySizes[] = {0, 1, 127, 128, 129, 4096, 30000, 150001};
+static const int verifyStamps[] = {0, 40, 0xfffffe, 0xffffff, 0x1000000};
+
+/*
+ * same bytes on the wire,extended timestamps and an empty body included
+ */
+static int verify(int chunkSize) {
+	const int *sizes = verifySizes, *stamps = verifyStamps;
+	int cap = 200000 * 2;
+	char *a = malloc(cap), *b = malloc(cap);
+	int i, j, ok = 1;
+	for (i = 0; i < (int) (sizeof(verifySizes) / sizeof(verifySizes[0])); i++) {
+		for (j = 0; j < (int) (sizeof(verifyStamps) / sizeof(verifyStamps[0])); j++) {
+			int sa[2], sb[2];
+			socketpair(AF_UNIX, SOCK_STREAM, 0, sa);
+			socketpair(AF_UNIX, SOCK_STREAM, 0, sb);
+			int buf = 1 << 20;
+			setsockopt(sa[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+			setsockopt(sb[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+			RTMP *ra = newRtmp(sa[0], chunkSize);
+			RESRtmp *rb = newRes(sb[0], chunkSize);
+			char *bodyA = newBody(sizes[i]);
+			char *bodyB = newBody(sizes[i]);
+			sendOld(ra, bodyA, sizes[i], RTMP_PACKET_TYPE_VIDEO, stamps[j]);
+			sendPacketV(rb, bodyB, sizes[i], RTMP_PACKET_TYPE_VIDEO, stamps[j]);
+			int na = readAll(sa[1], a, cap);
+			int nb = readAll(sb[1], b, cap);
+			if (na != nb || memcmp(a, b, na) != 0) {
+				printf("MISMATCH chunk=%d size=%d ts=%d old=%d new=%d\n", chunkSize, sizes[i], stamps[j], na, nb);
+				ok = 0;
+			}
+			free(bodyA - RTMP_MAX_HEADER_SIZE);
+			free(bodyB - RTMP_MAX_HEADER_SIZE);
+			freeRtmp(ra);
+			freeRes(rb);
+			close(sa[0]); close(sa[1]); close(sb[0]); close(sb[1]);
+		}
+	}
+	free(a);
+	free(b);
+	return ok;
+}
+
+/*
+ * minimal chunk stream reader,enough to expand what sendPacketV writes
+ */
+typedef struct Decoded {
+	uint32_t ts;
+	int size;
+	int type;
+	const unsigned char *payload;
+} Decoded;
+
+static uint32_t be(const unsigned char *p, int n) {
+	uint32_t v = 0;
+	while (n--) {
+		v = (v << 8) | *p++;
+	}
+	return v;
+}
+
+static int decode(const unsigned char *in, int len, int chunkSize, Decoded *out, int max,
+		unsigned char *payload) {
+	struct {
+		uint32_t ts, delta;
+		int size, type, extended;
+	} cs[64];
+	memset(cs, 0, sizeof(cs));
+	int pos = 0, count = 0;
+	while (pos < len && count < max) {
+		int fmt = in[pos] >> 6, id = in[pos] & 0x3f;
+		pos++;
+		uint32_t field = 0;
+		if (fmt < 3) {
+			field = be(in + pos, 3);
+			pos += 3;
+		}
+		if (fmt < 2) {
+			cs[id].size = be(in + pos, 3);
+			cs[id].type = in[pos + 3];
+			pos += 4;
+		}
+		if (fmt == 0) {
+			pos += 4;
+		}
+		cs[id].extended = fmt < 3 ? field == 0xffffff : cs[id].extended;
+		if (fmt < 3 && cs[id].extended) {
+			field = be(in + pos, 4);
+			pos += 4;
+		} else if (fmt == 3 && cs[id].extended) {
+			pos += 4;
+		}
+		if (fmt == 0) {
+			cs[id].ts = field;
+			cs[id].delta = 0;
+		} else if (fmt < 3) {
+			cs[id].delta = field;
+			cs[id].ts += field;
+		} else {
+			cs[id].ts += cs[id].delta;
+		}
+		Decoded *d = &out[count++];
+		d->ts = cs[id].ts;
+		d->size = cs[id].size;
+		d->type = cs[id].type;
+		d->payload = payload;
+		int got = 0;
+		while (1) {
+			int n = d->size - got < chunkSize ? d->size - got : chunkSize;
+			memcpy(payload, in + pos, n);
+			payload += n;
+			pos += n;
+			got += n;
+			if (got == d->size) {
+				break;
+			}
+			// continuation,same chunk stream expected
+			if ((in[pos] & 0x3f) != id || (in[pos] >> 6) != 3) {
+				return -1;
+			}
+			pos += 1 + (cs[id].extended ? 4 : 0);
+		}
+	}
+	return count;
+}
+
+#define AV_MESSAGES 600
+
+static void avMessages(Decoded *sent, const char *body) {
+	int i, vts = 0, ats = 0;
+	for (i = 0; i < AV_MESSAGES; i++) {
+		int video = i % 3 == 0;
+		if (video) {
+			vts += i == 300 ? 0x1000000 : 33 + (i / 3) % 2;
+		} else {
+			ats += i == 400 ? -10 : 23;
+		}
+		sent[i].type = video ? RTMP_PACKET_TYPE_VIDEO : RTMP_PACKET_TYPE_AUDIO;
+		sent[i].ts = video ? vts : ats;
+		sent[i].size = video ? 1000 + (i * 7919) % 39000 : (i % 20 < 10 ? 372 : 360 + i % 7);
+		sent[i].payload = (const unsigned char *) body;
+	}
+}
+
+/*
+ * interleaved 30fps video and 23ms audio,constant and changing sizes,a pts jump and a step back
+ */
+static int verifyCompressed(int chunkSize) {
+	int sv[2];
+	socketpair(AF_UNIX, SOCK_STREAM, 0, sv);
+	int buf = 4 << 20;
+	setsockopt(sv[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+	setsockopt(sv[1], SOL_SOCKET, SO_RCVBUF, &buf, sizeof(buf));
+	RESRtmp *res = newRes(sv[0], chunkSize);
+	Decoded sent[AV_MESSAGES], got[AV_MESSAGES];
+	char *body = newBody(40000);
+	int cap = 32 << 20, len = 0, i;
+	unsigned char *wire = malloc(cap), *payload = malloc(cap);
+	avMessages(sent, body);
+	for (i = 0; i < AV_MESSAGES; i++) {
+		if (sendPacketV(res, body, sent[i].size, sent[i].type, sent[i].ts) != 0) {
+			printf("send failed\n");
+			return 0;
+		}
+		len += readAll(sv[1], (char *) wire + len, cap - len);
+	}
+	int n = decode(wire, len, chunkSize, got, AV_MESSAGES, payload);
+	int ok = n == AV_MESSAGES;
+
+	// the same messages in batches of 1..BATCH_MAX must give the same bytes
+	int sb[2];
+	socketpair(AF_UNIX, SOCK_STREAM, 0, sb);
+	setsockopt(sb[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+	setsockopt(sb[1], SOL_SOCKET, SO_RCVBUF, &buf, sizeof(buf));
+	RESRtmp *batched = newRes(sb[0], chunkSize);
+	unsigned char *batchWire = malloc(cap);
+	int batchLen = 0, batch = 1;
+	for (i = 0; i < AV_MESSAGES; i += batch, batch = batch % BATCH_MAX + 7) {
+		const char *bodies[BATCH_MAX];
+		int sizes[BATCH_MAX], types[BATCH_MAX], stamps[BATCH_MAX], results[BATCH_MAX], j;
+		int count = AV_MESSAGES - i < batch ? AV_MESSAGES - i : batch;
+		count = count > BATCH_MAX ? BATCH_MAX : count;
+		for (j = 0; j < count; j++) {
+			bodies[j] = body;
+			sizes[j] = sent[i + j].size;
+			types[j] = sent[i + j].type;
+			stamps[j] = sent[i + j].ts;
+		}
+		if (sendBatchV(batched, bodies, sizes, types, stamps, count, results) != count) {
+			printf("batch send failed\n");
+			ok = 0;
+		}
+		batch = count;
+		batchLen += readAll(sb[1], (char *) batchWire + batchLen, cap - batchLen);
+	}
+	if (batchLen != len || memcmp(batchWire, wire, len) != 0) {
+		printf("BATCH MISMATCH chunk=%d %d/%d bytes\n", chunkSize, batchLen, len);
+		ok = 0;
+	}
+	free(batchWire);
+	freeRes(batched);
+	close(sb[0]);
+	close(sb[1]);
+	for (i = 0; ok && i < n; i++) {
+		if (got[i].ts != sent[i].ts || got[i].size != sent[i].size || got[i].type != sent[i].type
+				|| memcmp(got[i].payload, sent[i].payload, sent[i].size) != 0) {
+			printf("DECODE MISMATCH chunk=%d msg=%d ts=%u/%u size=%d/%d\n", chunkSize, i,
+					got[i].ts, sent[i].ts, got[i].size, sent[i].size);
+			ok = 0;
+		}
+	}
+	if (n != AV_MESSAGES) {
+		printf("DECODE FAILED chunk=%d messages=%d\n", chunkSize, n);
+	}
+	free(wire);
+	free(payload);
+	free(body - RTMP_MAX_HEADER_SIZE);
+	freeRes(res);
+	close(sv[0]);
+	close(sv[1]);
+	return ok;
+}
+
+static uint64_t fnv1a(uint64_t hash, const unsigned char *p, int n) {
+	while (n--) {
+		hash = (hash ^ *p++) * 0x100000001b3ULL;
+	}
+	return hash;
+}
+
+#define FNV_OFFSET 0xcbf29ce484222325ULL
+
+/*
+ * length and digest of what sendPacketV writes for the verify() messages,each on a fresh connection,
+ * and for the compressed A/V stream of verifyCompressed()
+ */
+static void vectors(int chunkSize) {
+	int cap = 32 << 20, i, j;
+	unsigned char *wire = malloc(cap);
+	char *body = newBody(150001);
+	long long total = 0;
+	uint64_t hash = FNV_OFFSET;
+	for (i = 0; i < (int) (sizeof(verifySizes) / sizeof(verifySizes[0])); i++) {
+		for (j = 0; j < (int) (sizeof(verifyStamps) / sizeof(verifyStamps[0])); j++) {
+			int sv[2];
+			socketpair(AF_UNIX, SOCK_STREAM, 0, sv);
+			int buf = 1 << 20;
+			setsockopt(sv[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+			RESRtmp *res = newRes(sv[0], chunkSize);
+			sendPacketV(res, body, verifySizes[i], RTMP_PACKET_TYPE_VIDEO, verifyStamps[j]);
+			int n = readAll(sv[1], (char *) wire, cap);
+			total += n;
+			hash = fnv1a(hash, wire, n);
+			freeRes(res);
+			close(sv[0]);
+			close(sv[1]);
+		}
+	}
+	printf("single chunk=%d bytes=%lld fnv=0x%016llxL\n", chunkSize, total, (unsigned long long) hash);
+
+	int sv[2];
+	socketpair(AF_UNIX, SOCK_STREAM, 0, sv);
+	int buf = 4 << 20;
+	setsockopt(sv[0], SOL_SOCKET, SO_SNDBUF, &buf, sizeof(buf));
+	setsockopt(sv[1], SOL_SOCKET, SO_RCVBUF, &buf, sizeof(buf));
+	RESRtmp *res = newRes(sv[0], chunkSize);
+	Decoded sent[AV_MESSAGES];
+	avMessages(sent, body);
+	total = 0;
+	hash = FNV_OFFSET;
+	for (i = 0; i < AV_MESSAGES; i++) {
+		sendPacketV(res, body, sent[i].size, sent[i].type, sent[i].ts);
+		int n = readAll(sv[1], (char *) wire, cap);
+		total += n;
+		hash = fnv1a(hash, wire, n);
+	}
+	printf("av chunk=%d bytes=%lld fnv=0x%016llxL\n", chunkSize, total, (unsigned long long) hash);
+	freeRes(res);
+	close(sv[0]);
+	close(sv[1]);
+	free(body - RTMP_MAX_HEADER_SIZE);
+	free(wire);
+}
+
+/*
+ * header bytes of 10s of 2Mbps 30fps video with 128kbps aac,fmt 0 only vs compressed
+ */
+static void headerRate(int chunkSize) {
+	int sv[2];
+	socketpair(AF_UNIX, SOCK_STREAM, 0, sv);
+	RESRtmp *res = newRes(sv[0], chunkSize);
+	char *body = newBody(60000);
+	static char sink[1 << 20];
+	int frame = 0, aframe = 0;
+	jlong full = 0;
+	while (frame < 300 || aframe < 431) {
+		int vts = frame * 1000 / 30, ats = aframe * 1024 * 1000 / 44100;
+		int video = frame < 300 && (aframe >= 431 || vts <= ats);
+		int size = video ? (frame % 60 == 0 ? 50000 : 7500) : 372;
+		int ts = video ? vts : ats;
+		full += largeHeaderBytes(res->rtmp, size, ts);
+		sendPacketV(res, body, size, video ? RTMP_PACKET_TYPE_VIDEO : RTMP_PACKET_TYPE_AUDIO, ts);
+		readAll(sv[1], sink, sizeof(sink));
+		if (video) {
+			++frame;
+		} else {
+			++aframe;
+		}
+	}
+	printf("chunk=%-5d header bytes/s fmt0=%6lld compressed=%6lld\n", chunkSize,
+			(long long) full / 10, (long long) res->headerBytes / 10);
+	free(body - RTMP_MAX_HEADER_SIZE);
+	freeRes(res);
+	close(sv[0]);
+	close(sv[1]);
+}
+
+static double now() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static double cpuNow() {
+	struct timespec ts;
+	clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static int connectDrain(pid_t *child) {
+	int lfd = socket(AF_INET, SOCK_STREAM, 0);
+	struct sockaddr_in addr;
+	socklen_t len = sizeof(addr);
+	memset(&addr, 0, sizeof(addr));
+	addr.sin_family = AF_INET;
+	addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+	bind(lfd, (struct sockaddr *) &addr, sizeof(addr));
+	listen(lfd, 1);
+	getsockname(lfd, (struct sockaddr *) &addr, &len);
+	*child = fork();
+	if (*child == 0) {
+		int cfd = accept(lfd, NULL, NULL);
+		static char sink[1 << 16];
+		while (read(cfd, sink, sizeof(sink)) > 0) {
+		}
+		_exit(0);
+	}
+	close(lfd);
+	int fd = socket(AF_INET, SOCK_STREAM, 0);
+	int one = 1;
+	setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+	connect(fd, (struct sockaddr *) &addr, sizeof(addr));
+	return fd;
+}
+
+/*
+ * 3 audio messages per video message,sent one by one and in batches of BATCH_MAX
+ */
+static void benchBatch(int chunkSize, int videoSize, int messages) {
+	char *body = newBody(videoSize);
+	const char *bodies[BATCH_MAX];
+	int sizes[BATCH_MAX], types[BATCH_MAX], stamps[BATCH_MAX], results[BATCH_MAX];
+	int pass;
+	for (pass = 0; pass < 2; pass++) {
+		pid_t child;
+		int fd = connectDrain(&child);
+		RESRtmp *res = newRes(fd, chunkSize);
+		int i, j;
+		double start = now(), cpu = cpuNow();
+		for (i = 0; i < messages; i += BATCH_MAX) {
+			for (j = 0; j < BATCH_MAX; j++) {
+				int video = (i + j) % 4 == 0;
+				bodies[j] = body;
+				sizes[j] = video ? videoSize : 90;
+				types[j] = video ? RTMP_PACKET_TYPE_VIDEO : RTMP_PACKET_TYPE_AUDIO;
+				stamps[j] = (i + j) * 10;
+			}
+			if (pass == 0) {
+				for (j = 0; j < BATCH_MAX; j++) {
+					sendPacketV(res, bodies[j], sizes[j], types[j], stamps[j]);
+				}
+			} else {
+				sendBatchV(res, bodies, sizes, types, stamps, BATCH_MAX, results);
+			}
+		}
+		double wall = now() - start;
+		cpu = cpuNow() - cpu;
+		printf("%-14s chunk=%-5d video=%-6d %8.2f us/msg %8.2f cpu us/msg\n",
+				pass == 0 ? "sendPacketV" : "sendBatchV", chunkSize, videoSize,
+				wall * 1e6 / messages, cpu * 1e6 / messages);
+		freeRes(res);
+		close(fd);
+		waitpid(child, NULL, 0);
+	}
+	free(body - RTMP_MAX_HEADER_SIZE);
+}
+
+static void bench(int chunkSize, int size, int messages) {
+	char *body = newBody(size);
+	int pass;
+	for (pass = 0; pass < 2; pass++) {
+		pid_t child;
+		int fd = connectDrain(&child);
+		RESRtmp *res = newRes(fd, chunkSize);
+		int i;
+		double start = now(), cpu = cpuNow();
+		for (i = 0; i < messages; i++) {
+			int ret = pass == 0 ? sendOld(res->rtmp, body, size, RTMP_PACKET_TYPE_VIDEO, i * 40)
+					: sendPacketV(res, body, size, RTMP_PACKET_TYPE_VIDEO, i * 40);
+			if (ret != 0) {
+				printf("send failed %d\n", ret);
+				break;
+			}
+		}
+		double wall = now() - start;
+		cpu = cpuNow() - cpu;
+		int chunks = (size + chunkSize - 1) / chunkSize;
+		int calls = pass == 0 ? chunks : (chunks + SG_MAX_CHUNKS - 1) / SG_MAX_CHUNKS;
+		printf("%-14s chunk=%-5d size=%-7d %8.2f us/msg %8.2f cpu us/msg %7.0f MB/s %4d syscalls/msg\n",
+				pass == 0 ? "RTMP_SendPacket" : "sendPacketV", chunkSize, size,
+				wall * 1e6 / messages, cpu * 1e6 / messages, (double) size * messages / wall / 1e6, calls);
+		freeRes(res);
+		close(fd);
+		waitpid(child, NULL, 0);
+	}
+	free(body - RTMP_MAX_HEADER_SIZE);
+}
+
+int main(int argc, char **argv) {
+	int messages = argc > 1 ? atoi(argv[1]) : 20000;
+	static const int chunkSizes[] = {128, 4096, 65536};
+	static const int sizes[] = {200, 2048, 30000, 120000};
+	int i, j;
+	if (argc > 1 && strcmp(argv[1], "vectors") == 0) {
+		for (i = 0; i < 3; i++) {
+			vectors(chunkSizes[i]);
+		}
+		return 0;
+	}
+	for (i = 0; i < 3; i++) {
+		if (!verify(chunkSizes[i]) || !verifyCompressed(chunkSizes[i])) {
+			return 1;
+		}
+	}
+	printf("wire output identical,compressed stream decodes,batches match\n");
+	for (i = 0; i < 3; i++) {
+		headerRate(chunkSizes[i]);
+	}
+	benchBatch(4096, 1500, messages * 4);
+	benchBatch(4096, 7500, messages * 4);
+	for (i = 0; i < 2; i++) {
+		for (j = 0; j < 4; j++) {
+			bench(chunkSizes[i], sizes[j], sizes[j] > 30000 ? messages / 4 : messages);
+		}
+	}
+	return 0;
+}
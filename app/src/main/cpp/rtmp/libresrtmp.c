@@ -1,19 +1,135 @@
 #include <malloc.h>
+#include <string.h>
+#include <errno.h>
+#include <sys/socket.h>
+#include <sys/uio.h>
 #include "libresrtmp.h"
 #include "rtmp.h"
+
+#define POOL_CHANNELS 3
+#define POOL_BODY_ALIGN 4096
+/* chunks per sendmsg,each takes a header and a payload iovec,stays below IOV_MAX(1024) */
+#define SG_MAX_CHUNKS 256
+#define MIN_CHUNK_SIZE 128
+#define MAX_CHUNK_SIZE 65536
+#define CONTROL_CHANNEL 2
+/* tags per writeBatch call,RtmpClient.WRITE_BATCH_MAX */
+#define BATCH_MAX 32
+
+/*
+ * last message header sent on a media channel,
+ * the next one only carries what changed (fmt 1/2/3 with a timestamp delta)
+ */
+typedef struct ChannelState {
+	int valid;
+	uint32_t ts;
+	int size;
+	int type;
+	/* delta of the last fmt 1/2 header,a fmt 3 header repeats it */
+	int deltaValid;
+	uint32_t delta;
+} ChannelState;
+
+/*
+ * Native handle returned to java by open().
+ * Owns one reusable packet per output channel (metadata/video/audio) whose body
+ * only ever grows, so the steady state write path does not allocate.
+ */
+typedef struct RESRtmp {
+	RTMP *rtmp;
+	RTMPPacket packets[POOL_CHANNELS];
+	int bodyCapacity[POOL_CHANNELS];
+	jlong poolHits;
+	jlong poolMisses;
+	/* send through sendPacketV instead of RTMP_SendPacket when the link allows it */
+	int scatterGather;
+	ChannelState channels[POOL_CHANNELS];
+	/* chunk header bytes written,both writers */
+	jlong headerBytes;
+} RESRtmp;
+
+static int poolIndexOf(int type) {
+	if (type == RTMP_PACKET_TYPE_INFO) {
+		return 0;
+	} else if (type == RTMP_PACKET_TYPE_VIDEO) {
+		return 1;
+	} else {
+		return 2;
+	}
+}
+
+/*
+ * returns the channel's packet with a body of at least size bytes,
+ * RTMP_MAX_HEADER_SIZE bytes of header room included in front of it
+ */
+static RTMPPacket *obtainPacket(RESRtmp *res, int type, int size) {
+	int index = poolIndexOf(type);
+	RTMPPacket *packet = &res->packets[index];
+	if (res->bodyCapacity[index] >= size) {
+		++res->poolHits;
+	} else {
+		++res->poolMisses;
+		int capacity = (size + POOL_BODY_ALIGN - 1) / POOL_BODY_ALIGN * POOL_BODY_ALIGN;
+		char *old = packet->m_body == NULL ? NULL : packet->m_body - RTMP_MAX_HEADER_SIZE;
+		char *ptr = realloc(old, capacity + RTMP_MAX_HEADER_SIZE);
+		if (ptr == NULL) {
+			LOGD("packet pool realloc failed,size=%d", size);
+			return NULL;
+		}
+		packet->m_body = ptr + RTMP_MAX_HEADER_SIZE;
+		res->bodyCapacity[index] = capacity;
+	}
+	RTMPPacket_Reset(packet);
+	return packet;
+}
+
+static void freePool(RESRtmp *res) {
+	int i;
+	for (i = 0; i < POOL_CHANNELS; i++) {
+		RTMPPacket_Free(&res->packets[i]);
+		res->bodyCapacity[i] = 0;
+	}
+}
+
+/*
+ * Set Chunk Size(type 1) on the control channel,every later chunk we send may carry up to chunkSize bytes.
+ * The server keeps its own chunk size for what it sends us.
+ */
+static int sendChunkSize(RTMP *rtmp, int chunkSize) {
+	if (chunkSize > MAX_CHUNK_SIZE) {
+		chunkSize = MAX_CHUNK_SIZE;
+	}
+	char pbuf[RTMP_MAX_HEADER_SIZE + 4];
+	RTMPPacket packet;
+	memset(&packet, 0, sizeof(RTMPPacket));
+	packet.m_nChannel = CONTROL_CHANNEL;
+	packet.m_headerType = RTMP_PACKET_SIZE_LARGE;
+	packet.m_packetType = RTMP_PACKET_TYPE_CHUNK_SIZE;
+	packet.m_body = pbuf + RTMP_MAX_HEADER_SIZE;
+	packet.m_nBodySize = 4;
+	AMF_EncodeInt32(packet.m_body, pbuf + sizeof(pbuf), chunkSize);
+	if (!RTMP_SendPacket(rtmp, &packet, FALSE)) {
+		return FALSE;
+	}
+	rtmp->m_outChunkSize = chunkSize;
+	LOGD("out chunk size %d", chunkSize);
+	return TRUE;
+}
+
 /*
  * Class:     me_lake_librestreaming_rtmp_RtmpClient
  * Method:    open
- * Signature: (Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;ZI)J
  */
  JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_open
- (JNIEnv * env, jobject thiz, jstring url_, jboolean isPublishMode) {
+ (JNIEnv * env, jobject thiz, jstring url_, jboolean isPublishMode, jint chunkSize) {
  	const char *url = (*env)->GetStringUTFChars(env, url_, 0);
  	LOGD("RTMP_OPENING:%s",url);
  	RTMP* rtmp = RTMP_Alloc();
  	if (rtmp == NULL) {
+ 		(*env)->ReleaseStringUTFChars(env, url_, url);
  		LOGD("RTMP_Alloc=NULL");
- 		return NULL;
+ 		return 0;
  	}
 
  	RTMP_Init(rtmp);
@@ -22,8 +138,9 @@
  	if (!ret) {
  		RTMP_Free(rtmp);
  		rtmp=NULL;
+ 		(*env)->ReleaseStringUTFChars(env, url_, url);
  		LOGD("RTMP_SetupURL=ret");
- 		return NULL;
+ 		return 0;
  	}
  	if (isPublishMode) {
  		RTMP_EnableWrite(rtmp);
@@ -33,8 +150,9 @@
  	if (!ret) {
  		RTMP_Free(rtmp);
  		rtmp=NULL;
+ 		(*env)->ReleaseStringUTFChars(env, url_, url);
  		LOGD("RTMP_Connect=ret");
- 		return NULL;
+ 		return 0;
  	}
  	ret = RTMP_ConnectStream(rtmp, 0);
 
@@ -43,12 +161,29 @@
  		RTMP_Close(rtmp);
  		RTMP_Free(rtmp);
  		rtmp=NULL;
+ 		(*env)->ReleaseStringUTFChars(env, url_, url);
  		LOGD("RTMP_ConnectStream=ret");
- 		return NULL;
+ 		return 0;
+ 	}
+ 	if (isPublishMode && chunkSize > MIN_CHUNK_SIZE && !sendChunkSize(rtmp, chunkSize)) {
+ 		RTMP_Close(rtmp);
+ 		RTMP_Free(rtmp);
+ 		(*env)->ReleaseStringUTFChars(env, url_, url);
+ 		LOGD("sendChunkSize failed");
+ 		return 0;
  	}
  	(*env)->ReleaseStringUTFChars(env, url_, url);
+ 	RESRtmp *res = calloc(1, sizeof(RESRtmp));
+ 	if (res == NULL) {
+ 		RTMP_Close(rtmp);
+ 		RTMP_Free(rtmp);
+ 		LOGD("RESRtmp alloc=NULL");
+ 		return 0;
+ 	}
+ 	res->rtmp = rtmp;
+ 	res->scatterGather = 1;
  	LOGD("RTMP_OPENED");
- 	return rtmp;
+ 	return (jlong) (intptr_t) res;
  }
 
 
@@ -63,7 +198,7 @@
 
  	char* data = malloc(size*sizeof(char));
 
- 	int readCount = RTMP_Read((RTMP*)rtmp, data, size);
+ 	int readCount = RTMP_Read(((RESRtmp*)(intptr_t)rtmp)->rtmp, data, size);
 
  	if (readCount > 0) {
         (*env)->SetByteArrayRegion(env, data_, offset, readCount, data);  // copy
@@ -73,42 +208,34 @@
     return readCount;
 }
 
-/*
- * Class:     me_lake_librestreaming_rtmp_RtmpClient
- * Method:    write
- * Signature: ([CI)I
- */
- JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write
- (JNIEnv * env, jobject thiz,jlong rtmp, jbyteArray data, jint size, jint type, jint ts) {
- 	LOGD("start write");
- 	jbyte *buffer = (*env)->GetByteArrayElements(env, data, NULL);
- 	RTMPPacket *packet = (RTMPPacket*)malloc(sizeof(RTMPPacket));
- 	RTMPPacket_Alloc(packet, size);
- 	RTMPPacket_Reset(packet);
+static int channelOf(int type) {
     if (type == RTMP_PACKET_TYPE_INFO) { // metadata
-    	packet->m_nChannel = 0x03;
+    	return 0x03;
     } else if (type == RTMP_PACKET_TYPE_VIDEO) { // video
-    	packet->m_nChannel = 0x04;
+    	return 0x04;
     } else if (type == RTMP_PACKET_TYPE_AUDIO) { //audio
-    	packet->m_nChannel = 0x05;
+    	return 0x05;
+    } else if (type == RTMP_PACKET_TYPE_FLASH_VIDEO) { // aggregate,the sender only bundles audio
+    	return 0x05;
     } else {
-    	packet->m_nChannel = -1;
+    	return -1;
     }
+}
 
-    packet->m_nInfoField2  =  ((RTMP*)rtmp)->m_stream_id;
-
-    LOGD("write data type: %d, ts %d", type, ts);
-
-    memcpy(packet->m_body,  buffer,  size);
+/*
+ * packet->m_body must have RTMP_MAX_HEADER_SIZE writable bytes in front of it,
+ * librtmp builds the chunk headers in place.
+ */
+static int sendPacket(RTMP *rtmp, RTMPPacket *packet, int size, int type, int ts) {
+    packet->m_nChannel = channelOf(type);
+    packet->m_nInfoField2  =  rtmp->m_stream_id;
     packet->m_headerType = RTMP_PACKET_SIZE_LARGE;
     packet->m_hasAbsTimestamp = FALSE;
     packet->m_nTimeStamp = ts;
     packet->m_packetType = type;
     packet->m_nBodySize  = size;
-    int ret = RTMP_SendPacket((RTMP*)rtmp, packet, 0);
-    RTMPPacket_Free(packet);
-    free(packet);
-    (*env)->ReleaseByteArrayElements(env, data, buffer, 0);
+    LOGD("write data type: %d, ts %d", type, ts);
+    int ret = RTMP_SendPacket(rtmp, packet, 0);
     if (!ret) {
     	LOGD("end write error %d", sockerr);
 		return sockerr;
@@ -119,24 +246,427 @@
     }
 }
 
+/*
+ * plain tcp only,rtmpt and encrypted links have to go through librtmp's own writer
+ */
+static int canScatter(RTMP *rtmp) {
+	if (rtmp->Link.protocol & RTMP_FEATURE_HTTP) {
+		return 0;
+	}
+#ifdef CRYPTO
+	if (rtmp->Link.rc4keyOut != NULL || rtmp->m_sb.sb_ssl != NULL) {
+		return 0;
+	}
+#endif
+	return 1;
+}
+
+/*
+ * sendmsg until every iovec is out,EINTR is retried.
+ * on error the connection is closed,the same as librtmp's WriteN.
+ */
+static int writeIov(RTMP *rtmp, struct iovec *iov, int count) {
+	struct msghdr msg;
+	memset(&msg, 0, sizeof(msg));
+	while (count > 0) {
+		msg.msg_iov = iov;
+		msg.msg_iovlen = count;
+		ssize_t wrote = sendmsg(rtmp->m_sb.sb_socket, &msg, MSG_NOSIGNAL);
+		if (wrote < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			sockerr = errno;
+			LOGD("sendmsg error %d", sockerr);
+			RTMP_Close(rtmp);
+			return FALSE;
+		}
+		while (count > 0 && (size_t) wrote >= iov->iov_len) {
+			wrote -= iov->iov_len;
+			++iov;
+			--count;
+		}
+		if (count > 0) {
+			iov->iov_base = (char *) iov->iov_base + wrote;
+			iov->iov_len -= wrote;
+		}
+	}
+	return TRUE;
+}
+
+/*
+ * keep librtmp's view of the channel up to date,
+ * RTMP_SendPacket compresses the next header on this channel against it
+ */
+static int rememberPacket(RTMP *rtmp, int channel, int size, int type, int ts) {
+	if (channel >= rtmp->m_channelsAllocatedOut) {
+		int n = channel + 10;
+		RTMPPacket **packets = realloc(rtmp->m_vecChannelsOut, sizeof(RTMPPacket *) * n);
+		if (packets == NULL) {
+			return FALSE;
+		}
+		rtmp->m_vecChannelsOut = packets;
+		memset(rtmp->m_vecChannelsOut + rtmp->m_channelsAllocatedOut, 0,
+				sizeof(RTMPPacket *) * (n - rtmp->m_channelsAllocatedOut));
+		rtmp->m_channelsAllocatedOut = n;
+	}
+	RTMPPacket *prev = rtmp->m_vecChannelsOut[channel];
+	if (prev == NULL) {
+		prev = malloc(sizeof(RTMPPacket));
+		if (prev == NULL) {
+			return FALSE;
+		}
+		rtmp->m_vecChannelsOut[channel] = prev;
+	}
+	memset(prev, 0, sizeof(RTMPPacket));
+	prev->m_headerType = RTMP_PACKET_SIZE_LARGE;
+	prev->m_packetType = type;
+	prev->m_nChannel = channel;
+	prev->m_nTimeStamp = ts;
+	prev->m_nInfoField2 = rtmp->m_stream_id;
+	prev->m_nBodySize = size;
+	return TRUE;
+}
+
+static ChannelState *stateOf(RESRtmp *res, int type) {
+	// metadata shares channel 3 with librtmp's own invokes,it always gets a full header
+	if (type == RTMP_PACKET_TYPE_INFO) {
+		return NULL;
+	}
+	return &res->channels[poolIndexOf(type)];
+}
+
+/*
+ * smallest header the receiver can expand again,
+ * fmt 0 whenever the timestamp went backwards or does not fit in 24 bits as a delta
+ */
+static int headerTypeOf(ChannelState *state, int size, int type, uint32_t ts) {
+	if (state == NULL || !state->valid || ts < state->ts || ts - state->ts >= 0xffffff) {
+		return RTMP_PACKET_SIZE_LARGE;
+	}
+	if (state->size != size || state->type != type) {
+		return RTMP_PACKET_SIZE_MEDIUM;
+	}
+	if (!state->deltaValid || state->delta != ts - state->ts) {
+		return RTMP_PACKET_SIZE_SMALL;
+	}
+	return RTMP_PACKET_SIZE_MINIMUM;
+}
+
+/*
+ * librtmp's fmt 0 header size,the writer used on links sendPacketV can not serve
+ */
+static int largeHeaderBytes(RTMP *rtmp, int size, int ts) {
+	int extended = (unsigned int) ts >= 0xffffff ? 4 : 0;
+	int chunks = size == 0 ? 1 : (size + rtmp->m_outChunkSize - 1) / rtmp->m_outChunkSize;
+	return RTMP_MAX_HEADER_SIZE - 6 + extended + (chunks - 1) * (1 + extended);
+}
+
+/*
+ * chunk headers of one message,the first one and the one every continuation chunk repeats
+ */
+typedef struct MessageHeaders {
+	char first[RTMP_MAX_HEADER_SIZE];
+	int firstLen;
+	char cont[5];
+	int contLen;
+} MessageHeaders;
+
+/*
+ * Audio and video headers are compressed against the previous message on their channel,
+ * the channel state moves on to this message.
+ */
+static void buildHeaders(RESRtmp *res, int channel, int size, int type, int ts, MessageHeaders *h) {
+	RTMP *rtmp = res->rtmp;
+	ChannelState *state = stateOf(res, type);
+	int headerType = headerTypeOf(state, size, type, (uint32_t) ts);
+	uint32_t delta = state == NULL ? 0 : (uint32_t) ts - state->ts;
+	uint32_t tsField = headerType == RTMP_PACKET_SIZE_LARGE ? (uint32_t) ts : delta;
+	int extended = headerType != RTMP_PACKET_SIZE_MINIMUM && tsField >= 0xffffff;
+	char *firstEnd = h->first + sizeof(h->first);
+	char *p = h->first;
+	*p++ = (char) ((headerType << 6) | channel);
+	if (headerType != RTMP_PACKET_SIZE_MINIMUM) {
+		p = AMF_EncodeInt24(p, firstEnd, extended ? 0xffffff : tsField);
+	}
+	if (headerType == RTMP_PACKET_SIZE_LARGE || headerType == RTMP_PACKET_SIZE_MEDIUM) {
+		p = AMF_EncodeInt24(p, firstEnd, size);
+		*p++ = (char) type;
+	}
+	if (headerType == RTMP_PACKET_SIZE_LARGE) {
+		// message stream id is little endian
+		*p++ = (char) (rtmp->m_stream_id & 0xff);
+		*p++ = (char) ((rtmp->m_stream_id >> 8) & 0xff);
+		*p++ = (char) ((rtmp->m_stream_id >> 16) & 0xff);
+		*p++ = (char) ((rtmp->m_stream_id >> 24) & 0xff);
+	}
+	if (extended) {
+		p = AMF_EncodeInt32(p, firstEnd, tsField);
+	}
+	h->firstLen = p - h->first;
+	h->contLen = 1;
+	h->cont[0] = (char) (0xc0 | channel);
+	if (extended) {
+		AMF_EncodeInt32(h->cont + 1, h->cont + sizeof(h->cont), tsField);
+		h->contLen = 5;
+	}
+	if (state != NULL) {
+		state->valid = 1;
+		state->ts = (uint32_t) ts;
+		state->size = size;
+		state->type = type;
+		state->deltaValid = headerType != RTMP_PACKET_SIZE_LARGE;
+		state->delta = delta;
+	}
+	LOGD("write data type: %d, ts %d,fmt %d", type, ts, headerType);
+}
+
+/*
+ * Scatter-gather version of RTMP_SendPacket for count messages.
+ * Chunk headers are built aside on the stack,then header and payload slices of all messages
+ * go out with one sendmsg per SG_MAX_CHUNKS chunks,straight from bodies.
+ * The bodies are only read,so they need no header room and are not clobbered.
+ * results[i] is 0 once message i was handed to the socket completely,
+ * otherwise the error of the failed sendmsg.
+ * returns the number of messages sent before the first failure.
+ */
+static int sendBatchV(RESRtmp *res, const char **bodies, const int *sizes, const int *types, const int *timestamps,
+		int count, int *results) {
+	RTMP *rtmp = res->rtmp;
+	MessageHeaders headers[BATCH_MAX];
+	struct iovec iov[2 * SG_MAX_CHUNKS];
+	int chunkSize = rtmp->m_outChunkSize;
+	int iovCount = 0;
+	// messages before this one are out completely
+	int flushed = 0;
+	int i;
+	for (i = 0; i < count; i++) {
+		int channel = channelOf(types[i]);
+		if (channel < 0) {
+			results[i] = -1;
+			continue;
+		}
+		MessageHeaders *h = &headers[i];
+		buildHeaders(res, channel, sizes[i], types[i], timestamps[i], h);
+		int size = sizes[i];
+		int offset = 0;
+		int firstChunk = 1;
+		while (firstChunk || offset < size) {
+			if (iovCount + 2 > 2 * SG_MAX_CHUNKS) {
+				if (!writeIov(rtmp, iov, iovCount)) {
+					goto error;
+				}
+				for (; flushed < i; flushed++) {
+					if (results[flushed] != -1) {
+						results[flushed] = 0;
+					}
+				}
+				iovCount = 0;
+			}
+			int len = size - offset < chunkSize ? size - offset : chunkSize;
+			iov[iovCount].iov_base = firstChunk ? h->first : h->cont;
+			iov[iovCount].iov_len = firstChunk ? h->firstLen : h->contLen;
+			res->headerBytes += iov[iovCount].iov_len;
+			++iovCount;
+			if (len > 0) {
+				iov[iovCount].iov_base = (void *) (bodies[i] + offset);
+				iov[iovCount].iov_len = len;
+				++iovCount;
+			}
+			offset += len;
+			firstChunk = 0;
+		}
+		results[i] = 1;
+	}
+	if (iovCount > 0 && !writeIov(rtmp, iov, iovCount)) {
+		goto error;
+	}
+	int sent = 0;
+	for (i = 0; i < count; i++) {
+		if (results[i] == -1) {
+			continue;
+		}
+		results[i] = 0;
+		if (!rememberPacket(rtmp, channelOf(types[i]), sizes[i], types[i], timestamps[i])) {
+			results[i] = -1;
+			continue;
+		}
+		if (sent == i) {
+			++sent;
+		}
+	}
+	LOGD("end write success");
+	return sent;
+
+error:
+	LOGD("end write error %d", sockerr);
+	for (i = flushed; i < count; i++) {
+		results[i] = sockerr;
+	}
+	for (i = 0; i < flushed && results[i] == 0; i++) {
+	}
+	return i;
+}
+
+static int sendPacketV(RESRtmp *res, const char *body, int size, int type, int ts) {
+	int result;
+	sendBatchV(res, &body, &size, &type, &ts, 1, &result);
+	return result;
+}
+
+static int writeMessage(RESRtmp *res, RTMPPacket *packet, int size, int type, int ts) {
+	if (res->scatterGather && canScatter(res->rtmp)) {
+		return sendPacketV(res, packet->m_body, size, type, ts);
+	}
+	ChannelState *state = stateOf(res, type);
+	if (state != NULL) {
+		// a full header follows,the next compressed one must not refer to an older message
+		state->valid = 0;
+	}
+	res->headerBytes += largeHeaderBytes(res->rtmp, size, ts);
+	return sendPacket(res->rtmp, packet, size, type, ts);
+}
+
+/*
+ * Class:     me_lake_librestreaming_rtmp_RtmpClient
+ * Method:    write
+ * Signature: (J[BIII)I
+ */
+ JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write__J_3BIII
+ (JNIEnv * env, jobject thiz,jlong rtmp, jbyteArray data, jint size, jint type, jint ts) {
+ 	LOGD("start write");
+ 	RESRtmp *res = (RESRtmp*) (intptr_t) rtmp;
+ 	RTMPPacket *packet = obtainPacket(res, type, size);
+ 	if (packet == NULL) {
+ 		return -1;
+ 	}
+ 	// copy straight into the packet body,no pinned or copied-back array elements
+ 	(*env)->GetByteArrayRegion(env, data, 0, size, (jbyte *) packet->m_body);
+    return writeMessage(res, packet, size, type, ts);
+}
+
+/*
+ * Class:     me_lake_librestreaming_rtmp_RtmpClient
+ * Method:    write
+ * Signature: (JLjava/nio/ByteBuffer;IIII)I
+ *
+ * Zero-copy write from a direct ByteBuffer.
+ * With scatter-gather off,data[offset-RTMP_MAX_HEADER_SIZE,offset) is used as chunk header scratch space,
+ * and the payload bytes in front of every chunk boundary are overwritten while sending.
+ */
+ JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write__JLjava_nio_ByteBuffer_2IIII
+ (JNIEnv * env, jobject thiz,jlong rtmp, jobject data, jint offset, jint size, jint type, jint ts) {
+ 	LOGD("start write direct");
+ 	char *buffer = (char *) (*env)->GetDirectBufferAddress(env, data);
+ 	jlong capacity = (*env)->GetDirectBufferCapacity(env, data);
+ 	if (buffer == NULL || offset < RTMP_MAX_HEADER_SIZE || size < 0 || offset + size > capacity) {
+ 		LOGD("write direct,invalid buffer offset=%d size=%d", offset, size);
+ 		return -1;
+ 	}
+ 	RTMPPacket packet;
+ 	memset(&packet, 0, sizeof(RTMPPacket));
+ 	packet.m_body = buffer + offset;
+ 	return writeMessage((RESRtmp*) (intptr_t) rtmp, &packet, size, type, ts);
+}
+
+/*
+ * Class:     me_lake_librestreaming_rtmp_RtmpClient
+ * Method:    writeBatch
+ * Signature: (J[Ljava/nio/ByteBuffer;[I[I[I[II[I)I
+ *
+ * Up to BATCH_MAX zero-copy writes in one call,each tag laid out as for the direct write.
+ * With scatter-gather the whole batch is coalesced into as few sendmsg calls as possible,
+ * otherwise the tags are sent one by one and the rest is skipped after a failure.
+ */
+ JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_writeBatch
+ (JNIEnv * env, jobject thiz, jlong rtmp, jobjectArray data, jintArray offsets_, jintArray sizes_,
+ 		jintArray types_, jintArray timestamps_, jint count, jintArray results_) {
+ 	RESRtmp *res = (RESRtmp*) (intptr_t) rtmp;
+ 	if (count <= 0 || count > BATCH_MAX) {
+ 		LOGD("writeBatch,invalid count %d", count);
+ 		return -1;
+ 	}
+ 	jint offsets[BATCH_MAX], sizes[BATCH_MAX], types[BATCH_MAX], timestamps[BATCH_MAX], results[BATCH_MAX];
+ 	const char *bodies[BATCH_MAX];
+ 	(*env)->GetIntArrayRegion(env, offsets_, 0, count, offsets);
+ 	(*env)->GetIntArrayRegion(env, sizes_, 0, count, sizes);
+ 	(*env)->GetIntArrayRegion(env, types_, 0, count, types);
+ 	(*env)->GetIntArrayRegion(env, timestamps_, 0, count, timestamps);
+ 	int i;
+ 	for (i = 0; i < count; i++) {
+ 		jobject buffer = (*env)->GetObjectArrayElement(env, data, i);
+ 		char *address = (char *) (*env)->GetDirectBufferAddress(env, buffer);
+ 		jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+ 		(*env)->DeleteLocalRef(env, buffer);
+ 		if (address == NULL || offsets[i] < RTMP_MAX_HEADER_SIZE || sizes[i] < 0 || offsets[i] + sizes[i] > capacity) {
+ 			LOGD("writeBatch,invalid buffer %d offset=%d size=%d", i, offsets[i], sizes[i]);
+ 			return -1;
+ 		}
+ 		bodies[i] = address + offsets[i];
+ 	}
+ 	int sent;
+ 	if (res->scatterGather && canScatter(res->rtmp)) {
+ 		sent = sendBatchV(res, bodies, sizes, types, timestamps, count, results);
+ 	} else {
+ 		for (sent = 0; sent < count; sent++) {
+ 			RTMPPacket packet;
+ 			memset(&packet, 0, sizeof(RTMPPacket));
+ 			packet.m_body = (char *) bodies[sent];
+ 			results[sent] = writeMessage(res, &packet, sizes[sent], types[sent], timestamps[sent]);
+ 			if (results[sent] != 0) {
+ 				break;
+ 			}
+ 		}
+ 		for (i = sent + 1; i < count; i++) {
+ 			results[i] = -1;
+ 		}
+ 	}
+ 	(*env)->SetIntArrayRegion(env, results_, 0, count, results);
+ 	return sent;
+}
+
 /*
  * Class:     me_lake_librestreaming_rtmp_RtmpClient
  * Method:    close
  * Signature: ()I
  */
  JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_close
- (JNIEnv * env,jlong rtmp, jobject thiz) {
- 	RTMP_Close((RTMP*)rtmp);
- 	RTMP_Free((RTMP*)rtmp);
+ (JNIEnv * env, jobject thiz, jlong rtmp) {
+ 	RESRtmp *res = (RESRtmp*) (intptr_t) rtmp;
+ 	RTMP_Close(res->rtmp);
+ 	RTMP_Free(res->rtmp);
+ 	freePool(res);
+ 	free(res);
  	return 0;
  }
 
 JNIEXPORT jstring JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getIpAddr
 		(JNIEnv * env,jobject thiz,jlong rtmp) {
 	if(rtmp!=0){
-		RTMP* r= (RTMP*)rtmp;
+		RTMP* r= ((RESRtmp*)(intptr_t)rtmp)->rtmp;
 		return (*env)->NewStringUTF(env, r->ipaddr);
 	}else {
 		return (*env)->NewStringUTF(env, "");
 	}
-}
\ No newline at end of file
+}
+
+JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getPacketPoolHits
+		(JNIEnv * env,jobject thiz,jlong rtmp) {
+	return rtmp == 0 ? 0 : ((RESRtmp*)(intptr_t)rtmp)->poolHits;
+}
+
+JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getPacketPoolMisses
+		(JNIEnv * env,jobject thiz,jlong rtmp) {
+	return rtmp == 0 ? 0 : ((RESRtmp*)(intptr_t)rtmp)->poolMisses;
+}
+JNIEXPORT void JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_setScatterGather
+		(JNIEnv * env,jobject thiz,jlong rtmp,jboolean enable) {
+	if (rtmp != 0) {
+		((RESRtmp*)(intptr_t)rtmp)->scatterGather = enable ? 1 : 0;
+	}
+}
+
+JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getHeaderBytes
+		(JNIEnv * env,jobject thiz,jlong rtmp) {
+	return rtmp == 0 ? 0 : ((RESRtmp*)(intptr_t)rtmp)->headerBytes;
+}
@@ -12,7 +12,7 @@ extern "C" {
 #endif
 
  JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_open
- (JNIEnv * env, jobject thiz, jstring url_, jboolean isPublishMode);
+ (JNIEnv * env, jobject thiz, jstring url_, jboolean isPublishMode, jint chunkSize);
 /*
  * Class:     me_lake_librestreaming_rtmp_RtmpClient
  * Method:    read
@@ -24,22 +24,46 @@ extern "C" {
 /*
  * Class:     me_lake_librestreaming_rtmp_RtmpClient
  * Method:    write
- * Signature: ([CI)I
+ * Signature: (J[BIII)I
  */
- JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write
+ JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write__J_3BIII
  (JNIEnv * env, jobject thiz,jlong rtmp, jbyteArray data, jint size, jint type, jint ts);
 
+/*
+ * Class:     me_lake_librestreaming_rtmp_RtmpClient
+ * Method:    write
+ * Signature: (JLjava/nio/ByteBuffer;IIII)I
+ */
+ JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_write__JLjava_nio_ByteBuffer_2IIII
+ (JNIEnv * env, jobject thiz,jlong rtmp, jobject data, jint offset, jint size, jint type, jint ts);
+
 /*
  * Class:     me_lake_librestreaming_rtmp_RtmpClient
  * Method:    close
  * Signature: ()I
  */
  JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_close
- (JNIEnv * env,jlong rtmp, jobject thiz);
+ (JNIEnv * env, jobject thiz, jlong rtmp);
 
  JNIEXPORT jstring JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getIpAddr
  (JNIEnv * env,jobject thiz,jlong rtmp);
 
+ JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getPacketPoolHits
+ (JNIEnv * env,jobject thiz,jlong rtmp);
+
+ JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getPacketPoolMisses
+ (JNIEnv * env,jobject thiz,jlong rtmp);
+
+JNIEXPORT void JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_setScatterGather
+ (JNIEnv * env,jobject thiz,jlong rtmp,jboolean enable);
+
+JNIEXPORT jlong JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_getHeaderBytes
+ (JNIEnv * env,jobject thiz,jlong rtmp);
+
+JNIEXPORT jint JNICALL Java_com_codyy_pushscreen_rtmp_RtmpClient_writeBatch
+ (JNIEnv * env,jobject thiz,jlong rtmp,jobjectArray data,jintArray offsets,jintArray sizes,
+ jintArray types,jintArray timestamps,jint count,jintArray results);
+
 #ifdef __cplusplus
 }
 #endif
@@ -3,6 +3,9 @@ package com.codyy.pushscreen;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -10,13 +13,21 @@ import com.codyy.pushscreen.media.Packager;
 import com.codyy.pushscreen.media.RESCoreParameters;
 import com.codyy.pushscreen.media.RESFlvData;
 import com.codyy.pushscreen.media.RESFlvDataCollecter;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+import com.codyy.pushscreen.media.RESMediaClock;
+import com.codyy.pushscreen.media.RESMpscRing;
+import com.codyy.pushscreen.media.RESPcmAggregator;
 import com.codyy.pushscreen.rtmp.RESRtmpSender;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
  * 音频录制器
  * Created by gujiajia on 2017/2/18.
+ * The worker thread only captures,at THREAD_PRIORITY_URGENT_AUDIO,into a fixed set of direct buffers.
+ * Filled buffers go through a lock free queue to the encoder thread,
+ * which feeds and drains the AAC encoder from MediaCodec callbacks,so a slow encoder never blocks AudioRecord.read.
  */
 
 public class AudioRecordWorker implements Runnable {
@@ -25,30 +36,82 @@ public class AudioRecordWorker implements Runnable {
 
     private static final String MIME_TYPE = "audio/mp4a-latm";
 
-    public static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
+    public static final int SAMPLES_PER_FRAME = RESPcmAggregator.SAMPLES_PER_FRAME;	// AAC, samples/frame/channel
     public static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+    /**
+     * pcm buffers in flight between capture and encoder
+     */
+    private static final int PCM_BUFFER_COUNT = 8;
 
     private MediaCodec mAudioEncoder;
 
-    protected static final int TIMEOUT_USEC = 10000;
-
     private volatile boolean mQuit = false;
 
-    private long mStartTime;
-
-    private long mStartInputTime;
-
-    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final RESMediaClock mClock;
 
     private RESFlvDataCollecter mDataCollecter;
 
     private RESCoreParameters mCoreParameters;
 
-    public AudioRecordWorker(RESCoreParameters rtmpParams, RESFlvDataCollecter dataCollecter) {
+    private HandlerThread mEncoderThread;
+    private Handler mEncoderHandler;
+    /**
+     * capture thread -> encoder thread
+     */
+    private final RESMpscRing<PcmBuffer> mFilledPcm = new RESMpscRing<>(PCM_BUFFER_COUNT);
+    /**
+     * encoder thread -> capture thread
+     */
+    private final RESMpscRing<PcmBuffer> mFreePcm = new RESMpscRing<>(PCM_BUFFER_COUNT);
+    /**
+     * encoder input buffers waiting for pcm,encoder thread only
+     */
+    private final ArrayDeque<Integer> mPendingInputs = new ArrayDeque<>();
+    /**
+     * encoder thread only,the input buffer being filled up to a whole number of AAC frames
+     */
+    private final RESPcmAggregator mAggregator;
+    private int mFillingInputId = -1;
+    private ByteBuffer mFillingInput;
+    private PcmBuffer mCurrentPcm;
+    /**
+     * pcm read but thrown away because every buffer was still queued for the encoder
+     */
+    private volatile int mOverrunCount = 0;
+    /**
+     * AudioRecord.read calls that delivered nothing
+     */
+    private volatile int mUnderrunCount = 0;
+
+    private static class PcmBuffer {
+        final ByteBuffer data;
+        long pts;
+
+        PcmBuffer(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    private final Runnable mFeedInput = new Runnable() {
+        @Override
+        public void run() {
+            feedInput();
+        }
+    };
+
+    public AudioRecordWorker(RESCoreParameters rtmpParams, RESFlvDataCollecter dataCollecter, RESMediaClock clock) {
         this.mCoreParameters = rtmpParams;
         this.mDataCollecter = dataCollecter;
+        this.mClock = clock;
+        this.mAggregator = new RESPcmAggregator(rtmpParams.mediacodecAACSampleRate,
+                rtmpParams.mediacodecAACChannelCount,
+                rtmpParams.mediacodecAACFramesPerBuffer,
+                rtmpParams.mediacodecAACMaxInputSize);
     }
 
+    /**
+     * encoder thread,created here so its callbacks are delivered on this looper
+     */
     private void initCodec() {
         MediaFormat audioFormat = new MediaFormat();
         audioFormat.setString(MediaFormat.KEY_MIME, MIME_TYPE);
@@ -62,116 +125,183 @@ public class AudioRecordWorker implements Runnable {
             mAudioEncoder = MediaCodec.createEncoderByType(audioFormat.getString(MediaFormat.KEY_MIME));
         } catch (Exception e) {
             Log.e(TAG, "can`t create audioEncoder!", e);
+            return;
         }
+        mAudioEncoder.setCallback(new EncoderCallback());
         mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mAudioEncoder.start();
-//        new AudioThread().start();
     }
 
     @Override
     public void run() {
-        initCodec();
-        sampleAndEncode();
-//        while (!mQuit) {
-//            int outputBufferId = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-//            if (outputBufferId >=0) {
-//                if (mStartTime == 0) {
-//                    mStartTime = mBufferInfo.presentationTimeUs / 1000;
-//                }
-//                ByteBuffer outputBuffer = mAudioEncoder.getOutputBuffer(outputBufferId);
-//                Log.d(TAG, "got buffer, info: size=" + mBufferInfo.size
-//                        + ", presentationTimeUs=" + mBufferInfo.presentationTimeUs
-//                        + ", offset=" + mBufferInfo.offset);
-//                if (mBufferInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG
-//                        && mBufferInfo.size != 0) {
-//                    sendRealData((mBufferInfo.presentationTimeUs / 1000) - mStartTime, outputBuffer);
-//                }
-//                mAudioEncoder.releaseOutputBuffer(outputBufferId, false);
-//            } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-//                Log.d(TAG, "AudioSenderThread,MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:" +
-//                        mAudioEncoder.getOutputFormat().toString());
-////                MediaFormat outputFormat = mAudioEncoder.getOutputFormat();
-//                ByteBuffer csd0 = mAudioEncoder.getOutputFormat().getByteBuffer("csd-0");
-//                sendAudioSpecificConfig(0, csd0);
-//            } else if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
-//                try {
-//                    TimeUnit.MICROSECONDS.sleep(10);
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
-//            }
-//        }
+        mEncoderThread = new HandlerThread(TAG + "-encoder");
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+        mEncoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                initCodec();
+            }
+        });
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        capture();
         release();
     }
 
-    private void sampleAndEncode() {
+    private void capture() {
         AudioRecord audioRecord = createAudioRecord();
         if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
             audioRecord = null;
         if (audioRecord != null) {
             Log.v(TAG, "AudioThread:readyStart audio recording");
             int bufferSize = mCoreParameters.audioRecoderBufferSize;
+            for (int i = 0; i < PCM_BUFFER_COUNT; i++) {
+                mFreePcm.offer(new PcmBuffer(bufferSize));
+            }
+            // keeps AudioRecord drained while every buffer is with the encoder
+            ByteBuffer scratch = ByteBuffer.allocateDirect(bufferSize);
             int readBytes;
             audioRecord.startRecording();
-            byte[] pcmBuffer = new byte[bufferSize];
-            mStartInputTime = System.nanoTime() / 1000;
             for (; !mQuit ;) {
-                readBytes = audioRecord.read(pcmBuffer, 0, bufferSize);
-                if (readBytes > 0) {
-                    // set audio data to encoder
-                    long pts = System.nanoTime()/1000 - mStartInputTime;
-                    encodeAudio(pcmBuffer, readBytes, pts);
+                PcmBuffer pcm = mFreePcm.poll();
+                ByteBuffer dst = pcm != null ? pcm.data : scratch;
+                dst.clear();
+                readBytes = audioRecord.read(dst, bufferSize);
+                if (readBytes <= 0) {
+                    ++mUnderrunCount;
+                    if (pcm != null) {
+                        mFreePcm.offer(pcm);
+                    }
+                    continue;
                 }
+                // pts of the first sample in the buffer
+                long pts = RESMediaClock.nowUs() - mAggregator.bytesToUs(readBytes);
+                if (pcm == null) {
+                    ++mOverrunCount;
+                    Log.d(TAG, "encoder is behind,abandon pcm,overrun=" + mOverrunCount);
+                    continue;
+                }
+                dst.limit(readBytes);
+                pcm.pts = pts;
+                mFilledPcm.offer(pcm);
+                mEncoderHandler.post(mFeedInput);
             }
             audioRecord.stop();
             audioRecord.release();
         } else {
             Log.e(TAG, "failed to initialize AudioRecord");
         }
-        Log.v(TAG, "AudioThread:finished");
+        Log.v(TAG, "AudioThread:finished,overrun=" + mOverrunCount + ",underrun=" + mUnderrunCount);
     }
 
-    private void encodeAudio(byte[] buffer, int length, long pts) {
-        int inputBufferId = mAudioEncoder.dequeueInputBuffer(-1);
-        if (inputBufferId >= 0) {
-            Log.d(TAG, "butBuffer length=" + length + ",pts=" + pts);
-            ByteBuffer inputBuffer = mAudioEncoder.getInputBuffer(inputBufferId);
-            inputBuffer.put(buffer, 0, length);
-            mAudioEncoder.queueInputBuffer(inputBufferId, 0, length, pts, 0);
+    /**
+     * encoder thread,fill free encoder input buffers with whole AAC frames of queued pcm
+     */
+    private void feedInput() {
+        MediaCodec encoder = mAudioEncoder;
+        if (encoder == null) {
+            return;
         }
         for (;;) {
-            int outBufferIndex = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, 0);
-            if (outBufferIndex >=0) {
-                if (mStartTime == 0) {
-                    mStartTime = mBufferInfo.presentationTimeUs / 1000;
+            if (mFillingInputId < 0) {
+                if (mPendingInputs.isEmpty()) {
+                    return;
                 }
-                ByteBuffer outputBuffer = mAudioEncoder.getOutputBuffer(outBufferIndex);
-                Log.d(TAG, "got buffer, info: size=" + mBufferInfo.size
-                        + ", presentationTimeUs=" + mBufferInfo.presentationTimeUs
-                        + ", offset=" + mBufferInfo.offset);
-                if (mBufferInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG
-                        && mBufferInfo.size != 0) {
-                    sendRealData((mBufferInfo.presentationTimeUs / 1000) - mStartTime, outputBuffer);
+                mFillingInputId = mPendingInputs.poll();
+                mFillingInput = encoder.getInputBuffer(mFillingInputId);
+                mFillingInput.clear();
+            }
+            if (mCurrentPcm == null) {
+                mCurrentPcm = mFilledPcm.poll();
+                if (mCurrentPcm == null) {
+                    return;
                 }
-                mAudioEncoder.releaseOutputBuffer(outBufferIndex, false);
-            } else if (outBufferIndex == MediaCodec.BUFFER_FLAG_CODEC_CONFIG){
-                Log.d(TAG, "AudioSenderThread,MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:" +
-                        mAudioEncoder.getOutputFormat().toString());
-                ByteBuffer csd0 = mAudioEncoder.getOutputFormat().getByteBuffer("csd-0");
-                sendAudioSpecificConfig(0, csd0);
-            } else {
-                break;
+            }
+            boolean full = mAggregator.fill(mCurrentPcm.data, mCurrentPcm.pts, mFillingInput);
+            if (!mCurrentPcm.data.hasRemaining()) {
+                mFreePcm.offer(mCurrentPcm);
+                mCurrentPcm = null;
+            }
+            if (full) {
+                encoder.queueInputBuffer(mFillingInputId, 0, mAggregator.getLastChunkSize(),
+                        mAggregator.getChunkPts(), 0);
+                mFillingInputId = -1;
+                mFillingInput = null;
             }
         }
     }
 
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            mPendingInputs.add(index);
+            feedInput();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            long encodedNanos = System.nanoTime();
+            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+            Log.d(TAG, "got buffer, info: size=" + info.size
+                    + ", presentationTimeUs=" + info.presentationTimeUs
+                    + ", offset=" + info.offset);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+                    && info.size != 0 && !mQuit) {
+                outputBuffer.position(info.offset);
+                outputBuffer.limit(info.offset + info.size);
+                sendRealData(mClock.toDts(info.presentationTimeUs), outputBuffer, encodedNanos);
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "audio encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(TAG, "AudioSenderThread,MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:" + format.toString());
+            ByteBuffer csd0 = format.getByteBuffer("csd-0");
+            sendAudioSpecificConfig(0, csd0);
+        }
+    }
+
+    /**
+     * stop the codec on its own thread so no callback races with stop()
+     */
     private void release() {
-        if (mAudioEncoder != null) {
-            mAudioEncoder.stop();
-            mAudioEncoder.release();
+        mEncoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mAudioEncoder != null) {
+                    mAudioEncoder.stop();
+                    mAudioEncoder.release();
+                    mAudioEncoder = null;
+                }
+                mPendingInputs.clear();
+                mFillingInputId = -1;
+                mFillingInput = null;
+                mCurrentPcm = null;
+                mAggregator.reset();
+            }
+        });
+        mEncoderThread.quitSafely();
+        try {
+            mEncoderThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
     }
 
+    public int getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    public int getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
     private void sendAudioSpecificConfig(long tms, ByteBuffer realData) {
         int packetLen = Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH +
                 realData.remaining();
@@ -190,21 +320,24 @@ public class AudioRecordWorker implements Runnable {
         mDataCollecter.collect(resFlvData, RESRtmpSender.FROM_AUDIO);
     }
 
-    private void sendRealData(long tms, ByteBuffer realData) {
+    private void sendRealData(long tms, ByteBuffer realData, long encodedNanos) {
         int packetLen = Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH +
                 realData.remaining();
-        byte[] finalBuff = new byte[packetLen];
-        realData.get(finalBuff, Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH,
-                realData.remaining());
+        RESFlvData resFlvData = RESFlvDataPool.i().acquire(packetLen);
+        ByteBuffer finalBuff = resFlvData.directBuffer;
+        int tagPos = finalBuff.position();
+        finalBuff.position(tagPos + Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH);
+        finalBuff.put(realData);
+        finalBuff.position(tagPos);
         Packager.FLVPackager.fillFlvAudioTag(finalBuff,
-                0,
+                tagPos,
                 false);
-        RESFlvData resFlvData = new RESFlvData();
         resFlvData.droppable = true;
-        resFlvData.byteBuffer = finalBuff;
-        resFlvData.size = finalBuff.length;
+        resFlvData.size = packetLen;
         resFlvData.dts = (int) tms;
         resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+        resFlvData.encodedNanos = encodedNanos;
+        resFlvData.packagedNanos = System.nanoTime();
         mDataCollecter.collect(resFlvData, RESRtmpSender.FROM_AUDIO);
     }
 
@@ -212,45 +345,6 @@ public class AudioRecordWorker implements Runnable {
         mQuit = true;
     }
 
-    /**
-     * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-     * and write them to the MediaCodec encoder
-     */
-    private class AudioThread extends Thread {
-        @Override
-        public void run() {
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-            AudioRecord audioRecord = createAudioRecord();
-            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
-                audioRecord = null;
-            if (audioRecord != null) {
-                Log.v(TAG, "AudioThread:readyStart audio recording");
-                int bufferSize = mCoreParameters.audioRecoderBufferSize;
-                ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
-                int readBytes;
-                audioRecord.startRecording();
-                mStartInputTime = System.nanoTime() / 1000;
-                for (; !mQuit ;) {
-                    // read audio data from internal mic
-                    buf.clear();
-                    readBytes = audioRecord.read(buf, bufferSize);
-                    if (readBytes > 0) {
-                        // set audio data to encoder
-                        buf.position(readBytes);
-                        buf.flip();
-                        long pts = System.nanoTime()/1000 - mStartInputTime;
-                        encode(buf, readBytes, pts);
-                    }
-                }
-                audioRecord.stop();
-                audioRecord.release();
-            } else {
-                Log.e(TAG, "failed to initialize AudioRecord");
-            }
-            Log.v(TAG, "AudioThread:finished");
-        }
-    }
-
     @NonNull
     private AudioRecord createAudioRecord() {
         int minBufferSize = AudioRecord.getMinBufferSize(
@@ -265,39 +359,4 @@ public class AudioRecordWorker implements Runnable {
                 mCoreParameters.audioRecoderFormat,
                 minBufferSize * 5);
     }
-
-    /**
-     * Method to set byte array to the MediaCodec encoder
-     * @param buffer
-     * @param length　length of byte array, zero means EOS.
-     * @param presentationTimeUs
-     */
-    protected void encode(ByteBuffer buffer, final int length, final long presentationTimeUs) {
-        if (mQuit) return;
-        while (!mQuit) {
-            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(0);
-            if (inputBufferIndex >= 0) {
-                ByteBuffer inputBuffer = mAudioEncoder.getInputBuffer(inputBufferIndex);
-                inputBuffer.clear();
-                if (buffer != null) {
-                    inputBuffer.put(buffer);
-                }
-                if (length <= 0) {
-                    // send EOS
-                    Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    mAudioEncoder.queueInputBuffer(inputBufferIndex, 0, 0,
-                            presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    break;
-                } else {
-                    mAudioEncoder.queueInputBuffer(inputBufferIndex, 0, length,
-                            presentationTimeUs, 0);
-                }
-                break;
-            } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait for MediaCodec encoder is ready to encode
-                // nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
-                // will wait for maximum TIMEOUT_USEC(10msec) on each call
-            }
-        }
-    }
 }
@@ -8,17 +8,27 @@ import android.media.MediaCodecInfo;
 import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.SparseIntArray;
 import android.view.Surface;
 
+import com.codyy.pushscreen.media.RESBitrateController;
 import com.codyy.pushscreen.media.RESCoreParameters;
 import com.codyy.pushscreen.media.RESFlvData;
 import com.codyy.pushscreen.media.RESFlvDataCollecter;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+import com.codyy.pushscreen.media.RESFlvInterleaver;
+import com.codyy.pushscreen.media.RESMediaClock;
 import com.codyy.pushscreen.rtmp.RESRtmpSender;
 
 import static android.content.ContentValues.TAG;
@@ -32,6 +42,12 @@ public class CaptureService extends Service {
 
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
+    private static final int BITRATE_SAMPLE_INTERVAL = 1000;
+    /**
+     * encoders and sender wind down asynchronously,give them time before counting leaks
+     */
+    private static final int LEAK_CHECK_DELAY = 3000;
+
     private MediaProjectionManager mMediaProjectionManager;
 
     private MediaProjection mMediaProjection;
@@ -49,6 +65,18 @@ public class CaptureService extends Service {
     private AudioRecordWorker mAudioRecordWorker;
 
     private RESFlvDataCollecter mDataCollecter;
+    private RESFlvInterleaver mInterleaver;
+    private RESMediaClock mMediaClock;
+
+    private RESBitrateController mBitrateController;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ConnectivityManager mConnectivityManager;
+
+    private Network mCurrentNetwork;
+
+    private boolean mNetworkLost;
 
     static {
         ORIENTATIONS.append(Surface.ROTATION_0, 90);
@@ -68,18 +96,31 @@ public class CaptureService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        RESFlvDataPool.i().setLeakDetection(BuildConfig.DEBUG);
         mRtmpParams = new RESCoreParameters();
         mRtmpParams.rtmpAddr = "rtmp://10.5.51.11/dms/yonglic";
         mRtmpParams.printDetailMsg = true;
         mRtmpParams.senderQueueLength = 150;
+        mRtmpParams.senderQueueMaxBytes = 512 * 1024;
+        mRtmpParams.senderQueueMaxDelay = 3000;
+        mRtmpParams.senderMaxInterleaveSkew = 200;
+        mRtmpParams.senderReorderWindow = 300;
+        mRtmpParams.senderChunkSize = 4096;
+        mRtmpParams.senderAudioAggregateWindow = 80;
         mRtmpParams.mediacodecAVCBitRate = 750 * 1024;
+        mRtmpParams.mediacodecAVCMinBitRate = 200 * 1024;
+        mRtmpParams.mediacodecAVCMaxBitRate = 1500 * 1024;
         mRtmpParams.mediacodecAVCFrameRate = 20;
+        mRtmpParams.mediacodecAVCAsyncMode = true;
+        mRtmpParams.mediacodecAVCProfile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+        mRtmpParams.mediacodecAVCMaxBFrames = 1;
 
         mRtmpParams.mediacodecAACBitRate = 32 * 1024;
         mRtmpParams.mediacodecAACChannelCount = 1;
         mRtmpParams.mediacodecAACProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
         mRtmpParams.mediacodecAACSampleRate = 44100;
         mRtmpParams.mediacodecAACMaxInputSize = 8820;
+        mRtmpParams.mediacodecAACFramesPerBuffer = 2;
 
         mRtmpParams.audioRecoderSource = MediaRecorder.AudioSource.MIC;
         mRtmpParams.audioRecoderChannelConfig = AudioFormat.CHANNEL_IN_MONO;
@@ -90,6 +131,7 @@ public class CaptureService extends Service {
 
         mMediaProjectionManager = (MediaProjectionManager)
                 getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+        mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         obtainScreenSize();
     }
 
@@ -125,6 +167,7 @@ public class CaptureService extends Service {
 
     public void startRecord() {
         if (mMediaProjection != null) {
+            mHandler.removeCallbacks(mLeakChecker);
 //            String path = Environment.getExternalStorageDirectory() + "/Download/" + "record-"
 //                    + DateTimeFormat.forPattern("MM-dd-HH:mm:ss").print(System.currentTimeMillis()) + ".mp4";
 //            mMediaMuxerWorker = new MediaMuxerWorker(path);
@@ -137,30 +180,136 @@ public class CaptureService extends Service {
                     mRtmpSender.feed(flvData, type);
                 }
             };
+            mInterleaver = new RESFlvInterleaver(mDataCollecter, mRtmpParams.senderReorderWindow);
             mRtmpSender.start(mRtmpParams.rtmpAddr);
+            registerNetworkCallback();
 
-            mAudioRecordWorker = new AudioRecordWorker(mRtmpParams, mDataCollecter);
+            mMediaClock = new RESMediaClock();
+            mMediaClock.start();
+            mAudioRecordWorker = new AudioRecordWorker(mRtmpParams, mInterleaver, mMediaClock);
             mScreenRecordWorker = new ScreenRecordWorker();
             mScreenRecordWorker.init(mRtmpParams, mDensity,
-                    mMediaProjection, mDataCollecter);
+                    mMediaProjection, mInterleaver, mMediaClock);
+            mRtmpSender.setKeyFrameRequestListener(new RESRtmpSender.OnKeyFrameRequestListener() {
+                @Override
+                public void onKeyFrameRequest() {
+                    mScreenRecordWorker.requestSyncFrame();
+                }
+            });
 
             new Thread(mAudioRecordWorker).start();
             new Thread(mScreenRecordWorker).start();
             mRecording = true;
+            startBitrateControl();
         }
     }
 
+    /**
+     * periodically feed the sender statistics back to the video encoder
+     */
+    private void startBitrateControl() {
+        if (mRtmpParams.mediacodecAVCMinBitRate <= 0 || mRtmpParams.mediacodecAVCMaxBitRate <= 0) {
+            return;
+        }
+        mBitrateController = new RESBitrateController(mRtmpParams.mediacodecAVCMinBitRate,
+                mRtmpParams.mediacodecAVCMaxBitRate, mRtmpParams.mediacodecAVCBitRate);
+        mHandler.postDelayed(mBitrateSampler, BITRATE_SAMPLE_INTERVAL);
+    }
+
+    private Runnable mBitrateSampler = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRecording || mRtmpSender == null || mScreenRecordWorker == null) {
+                return;
+            }
+            int bitRate = mBitrateController.onSample(mRtmpSender.getSendBufferFreePercent(),
+                    mRtmpSender.getTotalSpeed());
+            mScreenRecordWorker.setVideoBitRate(bitRate);
+            if (mRtmpParams.printDetailMsg) {
+                Log.d(TAG, "bitrate=" + bitRate + ",avSkew=" + mInterleaver.getAvSkew()
+                        + "ms,maxAvSkew=" + mInterleaver.getMaxAvSkew() + "ms,late=" + mInterleaver.getLateCount()
+                        + ",headerSpeed=" + mRtmpSender.getHeaderSpeed() + "B/s");
+            }
+            mHandler.postDelayed(this, BITRATE_SAMPLE_INTERVAL);
+        }
+    };
+
+    /**
+     * reconnect the rtmp session proactively when the device switches or regains its network
+     */
+    private void registerNetworkCallback() {
+        mCurrentNetwork = null;
+        mNetworkLost = false;
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        mConnectivityManager.registerNetworkCallback(request, mNetworkCallback);
+    }
+
+    private ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(final Network network) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    boolean changed = mCurrentNetwork != null && !mCurrentNetwork.equals(network);
+                    if ((mNetworkLost || changed) && mRecording && mRtmpSender != null) {
+                        Log.i(TAG, "network changed,reconnect");
+                        mRtmpSender.reconnect();
+                    }
+                    mCurrentNetwork = network;
+                    mNetworkLost = false;
+                }
+            });
+        }
+
+        @Override
+        public void onLost(final Network network) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (network.equals(mCurrentNetwork)) {
+                        mNetworkLost = true;
+                    }
+                }
+            });
+        }
+    };
+
     public void stopRecording() {
         mRecording = false;
+        mHandler.removeCallbacks(mBitrateSampler);
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
         mScreenRecordWorker.quit();
         mAudioRecordWorker.quit();
         destroyMediaProjection();
+        if (mInterleaver != null) {
+            mInterleaver.close();
+        }
         if (mRtmpSender != null) {
+            if (mRtmpParams.printDetailMsg) {
+                Log.d(TAG, "latency since start\n" + mRtmpSender.getLatencyTracer());
+                Log.d(TAG, "stream stats\n" + mRtmpSender.getStats());
+            }
             mRtmpSender.stop();
             mRtmpSender.destroy();
         }
+        mHandler.postDelayed(mLeakChecker, LEAK_CHECK_DELAY);
     }
 
+    private Runnable mLeakChecker = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "RESFlvDataPool " + RESFlvDataPool.i().getStats());
+            if (BuildConfig.DEBUG) {
+                int leaks = RESFlvDataPool.i().checkLeaks();
+                if (leaks > 0) {
+                    Log.e(TAG, leaks + " RESFlvData never released");
+                }
+            }
+        }
+    };
+
     public boolean isRecording() {
         return mRecording;
     }
@@ -22,13 +22,21 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
 import com.codyy.pushscreen.media.Packager;
+import com.codyy.pushscreen.media.RESDtsGenerator;
 import com.codyy.pushscreen.media.RESCoreParameters;
 import com.codyy.pushscreen.media.RESFlvData;
 import com.codyy.pushscreen.media.RESFlvDataCollecter;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+import com.codyy.pushscreen.media.RESLatencyMeter;
+import com.codyy.pushscreen.media.RESMediaClock;
 import com.codyy.pushscreen.rtmp.RESRtmpSender;
 
 import java.io.IOException;
@@ -42,17 +50,33 @@ public class ScreenRecordWorker implements Runnable {
 
     private int mWidth;
     private int mHeight;
-    private int mBitRate;
+    private volatile int mBitRate;
     private int mDpi;
     private MediaProjection mMediaProjection;
     // parameters for the encoder
     private static final String MIME_TYPE = "video/avc"; // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 10; // 10 seconds between I-frames
     private static final int TIMEOUT_US = 10000;
+    private static final long LATENCY_WINDOW_MS = 5000;
+    /**
+     * MediaFormat.KEY_MAX_B_FRAMES,public since Q but honoured by many encoders before
+     */
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
 
-    private MediaCodec mEncoder;
+    private volatile MediaCodec mEncoder;
 
     private volatile boolean mQuit = false;
+    private final Object mQuitLock = new Object();
+
+    /**
+     * drain output from MediaCodec callbacks on mEncoderThread instead of polling
+     */
+    private boolean mAsyncMode;
+    private HandlerThread mEncoderThread;
+    /**
+     * capture timestamp to sender queue,ms
+     */
+    private final RESLatencyMeter mOutputLatencyMeter = new RESLatencyMeter(LATENCY_WINDOW_MS);
 
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -61,19 +85,70 @@ public class ScreenRecordWorker implements Runnable {
     private RESFlvDataCollecter mDataCollecter;
 
     private int mFrameRate;
+    private int mProfile;
+    private int mLevel;
+    private int mMaxBFrames;
+    /**
+     * encoder output thread only
+     */
+    private RESDtsGenerator mDtsGenerator;
 
-    private long startTime = 0;
+    private RESMediaClock mClock;
 
     public ScreenRecordWorker() { }
 
-    public void init(RESCoreParameters params, int dpi, MediaProjection mp, RESFlvDataCollecter dataCollecter) {
+    public void init(RESCoreParameters params, int dpi, MediaProjection mp, RESFlvDataCollecter dataCollecter,
+                     RESMediaClock clock) {
         this.mWidth = params.videoWidth;
         this.mHeight = params.videoHeight;
         this.mBitRate = params.mediacodecAVCBitRate;
         this.mFrameRate = params.mediacodecAVCFrameRate;
+        this.mProfile = params.mediacodecAVCProfile;
+        this.mLevel = params.mediacodecAVClevel;
+        this.mMaxBFrames = params.mediacodecAVCMaxBFrames;
         this.mDpi = dpi;
         this.mMediaProjection = mp;
         this.mDataCollecter = dataCollecter;
+        this.mClock = clock;
+        this.mAsyncMode = params.mediacodecAVCAsyncMode;
+    }
+
+    /**
+     * change the bitrate of the running encoder
+     *
+     * @param bitRate bps
+     */
+    public void setVideoBitRate(int bitRate) {
+        MediaCodec encoder = mEncoder;
+        if (encoder == null || bitRate == mBitRate) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            encoder.setParameters(params);
+            Log.d(TAG, "video bitrate " + mBitRate + " -> " + bitRate);
+            mBitRate = bitRate;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "can`t change video bitrate", e);
+        }
+    }
+
+    /**
+     * ask the running encoder for an IDR as soon as possible
+     */
+    public void requestSyncFrame() {
+        MediaCodec encoder = mEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "can`t request sync frame", e);
+        }
     }
 
     /**
@@ -81,38 +156,106 @@ public class ScreenRecordWorker implements Runnable {
      */
     public final void quit() {
         mQuit = true;
+        synchronized (mQuitLock) {
+            mQuitLock.notifyAll();
+        }
+    }
+
+    /**
+     * avg of the last window,ms from frame capture until the tag is handed to the sender
+     */
+    public long getOutputLatencyAvg() {
+        return mOutputLatencyMeter.getAvg();
+    }
+
+    public long getOutputLatencyMax() {
+        return mOutputLatencyMeter.getMax();
     }
 
     @Override
     public void run() {
+        // MediaCodec.setCallback(Callback,Handler) came with M
+        boolean async = mAsyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
         try {
             Surface inputSurface;
             try {
-                inputSurface = prepareEncoder();
+                inputSurface = prepareEncoder(async);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
             mVirtualDisplay = mMediaProjection.createVirtualDisplay(TAG + "-display",
                     mWidth, mHeight, mDpi, DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC,
                     inputSurface, null, null);
-            Log.d(TAG, "created virtual display: " + mVirtualDisplay);
-            recordVirtualDisplay();
+            Log.d(TAG, "created virtual display: " + mVirtualDisplay + ",async=" + async);
+            if (async) {
+                awaitQuit();
+            } else {
+                recordVirtualDisplay();
+            }
         } finally {
             release();
         }
     }
 
+    /**
+     * output is drained on mEncoderThread,just park the worker thread until quit
+     */
+    private void awaitQuit() {
+        synchronized (mQuitLock) {
+            while (!mQuit) {
+                try {
+                    mQuitLock.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (mQuit) {
+                codec.releaseOutputBuffer(index, false);
+                return;
+            }
+            drainOutputBuffer(codec, index, info);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                quit();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            quit();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            onOutputFormatChangedInternal(format);
+        }
+    }
+
+    private void onOutputFormatChangedInternal(MediaFormat outputFormat) {
+        Log.i(TAG, "output format changed.\n new format: " + outputFormat.toString());
+        if (mDataCollecter != null) {
+            sendAVCDecoderConfigurationRecord(0, outputFormat);
+        }
+    }
+
     private void recordVirtualDisplay() {
-        MediaFormat outputFormat;
         while (!mQuit) {
             int outputBufferId = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
             Log.i(TAG, "dequeue output buffer index=" + outputBufferId);
             if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                outputFormat = mEncoder.getOutputFormat();
-                Log.i(TAG, "output format changed.\n new format: " + outputFormat.toString());
-                if (mDataCollecter != null) {
-                    sendAVCDecoderConfigurationRecord(0, mEncoder.getOutputFormat());
-                }
+                onOutputFormatChangedInternal(mEncoder.getOutputFormat());
             } else if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 Log.d(TAG, "retrieving buffers time out!");
                 try {
@@ -122,36 +265,7 @@ public class ScreenRecordWorker implements Runnable {
                     e.printStackTrace();
                 }
             } else if (outputBufferId >= 0) {
-                if (startTime == 0) {
-                    startTime = mBufferInfo.presentationTimeUs / 1000;
-                }
-
-                ByteBuffer outputBuffer = mEncoder.getOutputBuffer(outputBufferId);
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.
-                    // Ignore it.
-                    Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-                if (mBufferInfo.size != 0) {
-                    Log.d(TAG, "got buffer, info: size=" + mBufferInfo.size
-                            + ", presentationTimeUs=" + mBufferInfo.presentationTimeUs
-                            + ", offset=" + mBufferInfo.offset);
-//                    outputBuffer.position(mBufferInfo.offset);
-//                    outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
-                    if (mDataCollecter != null) {
-                        outputBuffer.position(mBufferInfo.offset + 4);
-                        outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
-                        sendRealData(mBufferInfo.presentationTimeUs / 1000 - startTime, outputBuffer);
-                    }
-
-                    Log.i(TAG, "sent " + mBufferInfo.size + " bytes to muxer...");
-                } else {
-                    Log.d(TAG, "info.size == 0, drop it.");
-                }
-                mEncoder.releaseOutputBuffer(outputBufferId, false);
+                drainOutputBuffer(mEncoder, outputBufferId, mBufferInfo);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     // when EOS come.
                     mQuit = true;
@@ -161,6 +275,56 @@ public class ScreenRecordWorker implements Runnable {
         }
     }
 
+    /**
+     * package one output buffer and give it back to the codec,
+     * called from the worker thread in sync mode or from mEncoderThread in async mode
+     */
+    private void drainOutputBuffer(MediaCodec encoder, int outputBufferId, MediaCodec.BufferInfo bufferInfo) {
+        long encodedNanos = System.nanoTime();
+        ByteBuffer outputBuffer = encoder.getOutputBuffer(outputBufferId);
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.
+            // Ignore it.
+            Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+        if (bufferInfo.size != 0) {
+            Log.d(TAG, "got buffer, info: size=" + bufferInfo.size
+                    + ", presentationTimeUs=" + bufferInfo.presentationTimeUs
+                    + ", offset=" + bufferInfo.offset);
+            if (mDataCollecter != null) {
+                outputBuffer.position(bufferInfo.offset + 4);
+                outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                int pts = mClock.toDts(bufferInfo.presentationTimeUs);
+                int dts = mDtsGenerator.next(pts);
+                sendRealData(dts, pts - dts, outputBuffer, bufferInfo.flags, encodedNanos);
+                sampleOutputLatency(bufferInfo.presentationTimeUs);
+            }
+
+            Log.i(TAG, "sent " + bufferInfo.size + " bytes to muxer...");
+        } else {
+            Log.d(TAG, "info.size == 0, drop it.");
+        }
+        encoder.releaseOutputBuffer(outputBufferId, false);
+    }
+
+    /**
+     * virtual display frames are stamped with System.nanoTime(),
+     * so now - pts is capture + encode + drain + packaging
+     */
+    private void sampleOutputLatency(long presentationTimeUs) {
+        long latencyMs = System.nanoTime() / 1000000 - presentationTimeUs / 1000;
+        if (latencyMs < 0 || latencyMs > LATENCY_WINDOW_MS) {
+            return;
+        }
+        if (mOutputLatencyMeter.sample(latencyMs)) {
+            Log.d(TAG, "output latency avg=" + mOutputLatencyMeter.getAvg() + "ms,max=" + mOutputLatencyMeter.getMax()
+                    + "ms,frames=" + mOutputLatencyMeter.getCount());
+        }
+    }
+
     private void sendAVCDecoderConfigurationRecord(long tms, MediaFormat format) {
         byte[] AVCDecoderConfigurationRecord = Packager.H264Packager.generateAVCDecoderConfigurationRecord(format);
         int packetLen = Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
@@ -183,33 +347,41 @@ public class ScreenRecordWorker implements Runnable {
         mDataCollecter.collect(resFlvData, RESRtmpSender.FROM_VIDEO);
     }
 
-    private void sendRealData(long tms, ByteBuffer realData) {
+    private void sendRealData(long tms, int compositionTime, ByteBuffer realData, int flags, long encodedNanos) {
         int realDataLength = realData.remaining();
         int packetLen = Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
                 Packager.FLVPackager.NALU_HEADER_LENGTH +
                 realDataLength;
-        byte[] finalBuff = new byte[packetLen];
-        realData.get(finalBuff, Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
-                        Packager.FLVPackager.NALU_HEADER_LENGTH,
-                realDataLength);
-        int frameType = finalBuff[Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
-                Packager.FLVPackager.NALU_HEADER_LENGTH] & 0x1F;
+        RESFlvData resFlvData = RESFlvDataPool.i().acquire(packetLen);
+        ByteBuffer finalBuff = resFlvData.directBuffer;
+        int tagPos = finalBuff.position();
+        int naluPos = tagPos + Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
+                Packager.FLVPackager.NALU_HEADER_LENGTH;
+        finalBuff.position(naluPos);
+        finalBuff.put(realData);
+        finalBuff.position(tagPos);
+        int frameType = finalBuff.get(naluPos) & 0x1F;
+        if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            // some encoders put SPS/PPS or SEI in front of the IDR slice
+            frameType = RESFlvData.NALU_TYPE_IDR;
+        }
         Packager.FLVPackager.fillFlvVideoTag(finalBuff,
-                0,
+                tagPos,
                 false,
                 frameType == 5,
-                realDataLength);
-        RESFlvData resFlvData = new RESFlvData();
+                realDataLength,
+                compositionTime);
         resFlvData.droppable = true;
-        resFlvData.byteBuffer = finalBuff;
-        resFlvData.size = finalBuff.length;
+        resFlvData.size = packetLen;
         resFlvData.dts = (int) tms;
         resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
         resFlvData.videoFrameType = frameType;
+        resFlvData.encodedNanos = encodedNanos;
+        resFlvData.packagedNanos = System.nanoTime();
         mDataCollecter.collect(resFlvData, RESRtmpSender.FROM_VIDEO);
     }
 
-    private Surface prepareEncoder() throws IOException {
+    private Surface prepareEncoder(boolean async) throws IOException {
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -217,17 +389,96 @@ public class ScreenRecordWorker implements Runnable {
         format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
 
-        Log.d(TAG, "created video format: " + format);
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (async) {
+            mEncoderThread = new HandlerThread(TAG + "-encoder");
+            mEncoderThread.start();
+            mEncoder.setCallback(new EncoderCallback(), new Handler(mEncoderThread.getLooper()));
+        }
+        int bFrames = applyProfile(format);
+        Log.d(TAG, "created video format: " + format);
+        try {
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            if (!format.containsKey(MediaFormat.KEY_PROFILE)) {
+                throw e;
+            }
+            Log.w(TAG, "encoder rejected profile " + mProfile + ",fall back to default", e);
+            format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+            bFrames = 0;
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+        mDtsGenerator = new RESDtsGenerator(bFrames, mFrameRate);
         Surface inputSurface = mEncoder.createInputSurface();
         Log.d(TAG, "created input surface: " + inputSurface);
         mEncoder.start();
         return inputSurface;
     }
 
+    /**
+     * ask for the configured profile and B-frames if the encoder lists that profile
+     *
+     * @return B-frames requested,the reorder depth dts has to account for
+     */
+    private int applyProfile(MediaFormat format) {
+        if (mProfile <= 0 || mProfile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+            return 0;
+        }
+        MediaCodecInfo.CodecProfileLevel supported = null;
+        try {
+            for (MediaCodecInfo.CodecProfileLevel profileLevel :
+                    mEncoder.getCodecInfo().getCapabilitiesForType(MIME_TYPE).profileLevels) {
+                if (profileLevel.profile == mProfile
+                        && (supported == null || profileLevel.level > supported.level)) {
+                    supported = profileLevel;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "can`t query encoder profiles", e);
+        }
+        if (supported == null) {
+            Log.d(TAG, "encoder does not support profile " + mProfile);
+            return 0;
+        }
+        format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+        // profile without level is ignored or rejected by many encoders before M
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_LEVEL, mLevel > 0 ? Math.min(mLevel, supported.level) : supported.level);
+        }
+        int bFrames = mMaxBFrames > 0 ? mMaxBFrames : 0;
+        if (bFrames > 0) {
+            format.setInteger(KEY_MAX_B_FRAMES, bFrames);
+        }
+        return bFrames;
+    }
+
     private void release() {
-        if (mEncoder != null) {
+        if (mEncoderThread != null) {
+            // stop on the callback thread so no callback races with stop()
+            final MediaCodec encoder = mEncoder;
+            mEncoder = null;
+            if (encoder != null) {
+                new Handler(mEncoderThread.getLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        encoder.stop();
+                        encoder.release();
+                    }
+                });
+            }
+            mEncoderThread.quitSafely();
+            try {
+                mEncoderThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mEncoderThread = null;
+        } else if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
@@ -1,5 +1,7 @@
 package com.codyy.pushscreen.media;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by lake on 16-3-30.
  * Big-endian
@@ -16,4 +18,14 @@ public class ByteArrayTools {
         dst[pos] = (byte) ((interger >> 8) & 0xFF);
         dst[pos + 1] = (byte) ((interger) & 0xFF);
     }
+
+    /**
+     * absolute put,independent of the buffer's byte order
+     */
+    public static void intToByteBufferFull(ByteBuffer dst, int pos, int interger) {
+        dst.put(pos, (byte) ((interger >> 24) & 0xFF));
+        dst.put(pos + 1, (byte) ((interger >> 16) & 0xFF));
+        dst.put(pos + 2, (byte) ((interger >> 8) & 0xFF));
+        dst.put(pos + 3, (byte) ((interger) & 0xFF));
+    }
 }
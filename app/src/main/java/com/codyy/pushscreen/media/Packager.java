@@ -59,20 +59,48 @@ public class Packager {
         public static final int NALU_HEADER_LENGTH = 4;
 
         public static void fillFlvVideoTag(byte[] dst, int pos, boolean isAVCSequenceHeader, boolean isIDR, int readDataLength) {
+            fillFlvVideoTag(dst, pos, isAVCSequenceHeader, isIDR, readDataLength, 0);
+        }
+
+        /**
+         * @param compositionTime pts - dts,ms,signed 24bit
+         */
+        public static void fillFlvVideoTag(byte[] dst, int pos, boolean isAVCSequenceHeader, boolean isIDR, int readDataLength,
+                                           int compositionTime) {
             //FrameType&CodecID
             dst[pos] = isIDR ? (byte) 0x17 : (byte) 0x27;
             //AVCPacketType
             dst[pos + 1] = isAVCSequenceHeader ? (byte) 0x00 : (byte) 0x01;
-            //LAKETODO CompositionTime
-            dst[pos + 2] = 0x00;
-            dst[pos + 3] = 0x00;
-            dst[pos + 4] = 0x00;
+            //CompositionTime
+            dst[pos + 2] = (byte) (compositionTime >> 16);
+            dst[pos + 3] = (byte) (compositionTime >> 8);
+            dst[pos + 4] = (byte) compositionTime;
             if (!isAVCSequenceHeader) {
                 //NALU HEADER
                 ByteArrayTools.intToByteArrayFull(dst, pos + 5, readDataLength);
             }
         }
 
+        /**
+         * same as {@link #fillFlvVideoTag(byte[], int, boolean, boolean, int, int)},
+         * fills a direct buffer in place for {@link com.codyy.pushscreen.rtmp.RtmpClient#write(long, ByteBuffer, int, int, int, int)}
+         */
+        public static void fillFlvVideoTag(ByteBuffer dst, int pos, boolean isAVCSequenceHeader, boolean isIDR, int readDataLength,
+                                           int compositionTime) {
+            //FrameType&CodecID
+            dst.put(pos, isIDR ? (byte) 0x17 : (byte) 0x27);
+            //AVCPacketType
+            dst.put(pos + 1, isAVCSequenceHeader ? (byte) 0x00 : (byte) 0x01);
+            //CompositionTime
+            dst.put(pos + 2, (byte) (compositionTime >> 16));
+            dst.put(pos + 3, (byte) (compositionTime >> 8));
+            dst.put(pos + 4, (byte) compositionTime);
+            if (!isAVCSequenceHeader) {
+                //NALU HEADER
+                ByteArrayTools.intToByteBufferFull(dst, pos + 5, readDataLength);
+            }
+        }
+
         public static void fillFlvAudioTag(byte[] dst, int pos, boolean isAACSequenceHeader) {
             /**
              * UB[4] 10=AAC
@@ -83,6 +111,40 @@ public class Packager {
             dst[pos] = (byte) 0xAE;
             dst[pos + 1] = isAACSequenceHeader ? (byte) 0x00 : (byte) 0x01;
         }
+
+        public static void fillFlvAudioTag(ByteBuffer dst, int pos, boolean isAACSequenceHeader) {
+            dst.put(pos, (byte) 0xAE);
+            dst.put(pos + 1, isAACSequenceHeader ? (byte) 0x00 : (byte) 0x01);
+        }
+
+        /**
+         * FLV tag header,FLV_TAG_LENGTH bytes,stream id 0
+         *
+         * @param timestamp ms,the upper 8 bits go to TimestampExtended
+         */
+        public static void fillFlvTagHeader(ByteBuffer dst, int pos, int tagType, int dataSize, int timestamp) {
+            dst.put(pos, (byte) tagType);
+            //DataSize
+            dst.put(pos + 1, (byte) (dataSize >> 16));
+            dst.put(pos + 2, (byte) (dataSize >> 8));
+            dst.put(pos + 3, (byte) dataSize);
+            //Timestamp&TimestampExtended
+            dst.put(pos + 4, (byte) (timestamp >> 16));
+            dst.put(pos + 5, (byte) (timestamp >> 8));
+            dst.put(pos + 6, (byte) timestamp);
+            dst.put(pos + 7, (byte) (timestamp >> 24));
+            //StreamID
+            dst.put(pos + 8, (byte) 0);
+            dst.put(pos + 9, (byte) 0);
+            dst.put(pos + 10, (byte) 0);
+        }
+
+        /**
+         * PreviousTagSize,FLV_TAG_FOOTER_LENGTH bytes
+         */
+        public static void fillFlvTagFooter(ByteBuffer dst, int pos, int dataSize) {
+            ByteArrayTools.intToByteBufferFull(dst, pos, FLV_TAG_LENGTH + dataSize);
+        }
     }
 
 }
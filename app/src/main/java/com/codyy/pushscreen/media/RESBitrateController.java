@@ -0,0 +1,117 @@
+package com.codyy.pushscreen.media;
+
+/**
+ * Closed-loop bitrate decision for the live AVC encoder.
+ * Fed periodically with the sender's buffer free percent and send speed,
+ * it steps the bitrate down as soon as the queue backs up and only steps it up again
+ * after the queue stayed clear for several samples in a row.
+ * No android dependency,so it can be replayed against recorded traces in unit tests.
+ * Not thread safe.
+ */
+public class RESBitrateController {
+    private final int minBitrate;
+    private final int maxBitrate;
+    private float stepUpRatio = 1.1f;
+    private float stepDownRatio = 0.75f;
+    /**
+     * below this free percent the link is considered congested
+     */
+    private float congestedFreePercent = 0.5f;
+    /**
+     * at or above this free percent the link is considered clear
+     */
+    private float clearFreePercent = 0.9f;
+    private int stepDownSamples = 1;
+    private int stepUpSamples = 5;
+
+    private int currentBitrate;
+    private int congestedCount = 0;
+    private int clearCount = 0;
+
+    /**
+     * @param minBitrate     floor,bps
+     * @param maxBitrate     ceiling,bps
+     * @param initialBitrate the bitrate the encoder was configured with,bps
+     */
+    public RESBitrateController(int minBitrate, int maxBitrate, int initialBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("invalid bitrate range " + minBitrate + "-" + maxBitrate);
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.currentBitrate = clamp(initialBitrate);
+    }
+
+    public void setStepRatio(float stepUpRatio, float stepDownRatio) {
+        if (stepUpRatio <= 1f || stepDownRatio <= 0f || stepDownRatio >= 1f) {
+            throw new IllegalArgumentException("invalid step ratio " + stepUpRatio + "/" + stepDownRatio);
+        }
+        this.stepUpRatio = stepUpRatio;
+        this.stepDownRatio = stepDownRatio;
+    }
+
+    public void setWatermark(float congestedFreePercent, float clearFreePercent) {
+        if (congestedFreePercent < 0f || clearFreePercent > 1f || congestedFreePercent >= clearFreePercent) {
+            throw new IllegalArgumentException("invalid watermark " + congestedFreePercent + "/" + clearFreePercent);
+        }
+        this.congestedFreePercent = congestedFreePercent;
+        this.clearFreePercent = clearFreePercent;
+    }
+
+    /**
+     * @param stepDownSamples consecutive congested samples before stepping down
+     * @param stepUpSamples   consecutive clear samples before stepping up
+     */
+    public void setHysteresis(int stepDownSamples, int stepUpSamples) {
+        if (stepDownSamples <= 0 || stepUpSamples <= 0) {
+            throw new IllegalArgumentException("invalid hysteresis " + stepDownSamples + "/" + stepUpSamples);
+        }
+        this.stepDownSamples = stepDownSamples;
+        this.stepUpSamples = stepUpSamples;
+    }
+
+    /**
+     * @param sendBufferFreePercent {@link com.codyy.pushscreen.rtmp.RESRtmpSender#getSendBufferFreePercent()}
+     * @param sendSpeed             {@link com.codyy.pushscreen.rtmp.RESRtmpSender#getTotalSpeed()},bytes per second
+     * @return the bitrate the encoder should run at
+     */
+    public int onSample(float sendBufferFreePercent, int sendSpeed) {
+        if (sendBufferFreePercent < congestedFreePercent) {
+            clearCount = 0;
+            if (++congestedCount >= stepDownSamples) {
+                congestedCount = 0;
+                int target = (int) (currentBitrate * stepDownRatio);
+                long measured = (long) sendSpeed * 8;
+                if (measured > 0 && measured < target) {
+                    // the link already told us what it can carry
+                    target = (int) measured;
+                }
+                currentBitrate = clamp(target);
+            }
+        } else if (sendBufferFreePercent >= clearFreePercent) {
+            congestedCount = 0;
+            if (++clearCount >= stepUpSamples) {
+                clearCount = 0;
+                currentBitrate = clamp((int) (currentBitrate * stepUpRatio));
+            }
+        } else {
+            congestedCount = 0;
+            clearCount = 0;
+        }
+        return currentBitrate;
+    }
+
+    public int getCurrentBitrate() {
+        return currentBitrate;
+    }
+
+    public void reset(int bitrate) {
+        currentBitrate = clamp(bitrate);
+        congestedCount = 0;
+        clearCount = 0;
+    }
+
+    private int clamp(int bitrate) {
+        return bitrate < minBitrate ? minBitrate : (bitrate > maxBitrate ? maxBitrate : bitrate);
+    }
+}
@@ -1,59 +1,204 @@
 package com.codyy.pushscreen.media;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by lake on 16-4-8.
+ * Bytes and frames per second over a ring of fixed time buckets.
+ * gain() is lock free and allocation free,from any thread;
+ * reads walk the buckets once,O(window/resolution),from any thread.
+ * Three views of the same buckets:
+ * windowed,everything within the window over its length;
+ * instant,the last complete bucket;
+ * ewma,the complete buckets weighted down by age with a half life.
+ * A gain racing with the roll over of its own bucket may get lost,which is fine for a meter.
  */
 public class RESByteSpeedometer {
-    private int timeGranularity;
-    private LinkedList<ByteFrame> byteList;
-    private final Object syncByteList = new Object();
+    public static final int DEFAULT_RESOLUTION = 100;
+    public static final int DEFAULT_HALF_LIFE = 1000;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private final int resolution;
+    /**
+     * complete buckets in the window,the ring holds one more for the running interval
+     */
+    private final int windowBuckets;
+    /**
+     * interval number,time/resolution,each bucket currently counts
+     */
+    private final AtomicLongArray intervals;
+    private final AtomicLongArray bytes;
+    private final AtomicLongArray frames;
+    /**
+     * time of the first gain since reset
+     */
+    private final AtomicLong startTime = new AtomicLong(EMPTY);
+    private volatile double[] ewmaWeights;
 
+    /**
+     * @param timeGranularity window,ms
+     */
     public RESByteSpeedometer(int timeGranularity) {
-        this.timeGranularity = timeGranularity;
-        byteList = new LinkedList<>();
+        this(timeGranularity, Math.min(DEFAULT_RESOLUTION, timeGranularity));
     }
 
-    public int getSpeed() {
-        synchronized (syncByteList) {
-            long now = System.currentTimeMillis();
-            trim(now);
-            long sumByte = 0;
-            for (ByteFrame byteFrame : byteList) {
-                sumByte += byteFrame.bytenum;
-            }
-            return (int) (sumByte * 1000 / timeGranularity);
+    /**
+     * @param timeGranularity window,ms
+     * @param resolution      bucket length,ms
+     */
+    public RESByteSpeedometer(int timeGranularity, int resolution) {
+        if (resolution <= 0 || timeGranularity < resolution) {
+            throw new IllegalArgumentException("window " + timeGranularity + "ms,resolution " + resolution + "ms");
         }
+        this.resolution = resolution;
+        windowBuckets = timeGranularity / resolution;
+        intervals = new AtomicLongArray(windowBuckets + 1);
+        bytes = new AtomicLongArray(windowBuckets + 1);
+        frames = new AtomicLongArray(windowBuckets + 1);
+        setEwmaHalfLife(DEFAULT_HALF_LIFE);
+        reset();
     }
 
-    public void gain(int byteCount) {
-        synchronized (syncByteList) {
-            long now = System.currentTimeMillis();
-            byteList.addLast(new ByteFrame(now, byteCount));
-            trim(now);
+    /**
+     * @param halfLife ms after which a bucket counts half in the ewma rates
+     */
+    public void setEwmaHalfLife(int halfLife) {
+        double[] weights = new double[windowBuckets];
+        for (int k = 0; k < windowBuckets; k++) {
+            weights[k] = Math.pow(0.5, (double) k * resolution / halfLife);
         }
+        ewmaWeights = weights;
+    }
+
+    long now() {
+        return System.nanoTime() / 1000000;
     }
 
-    private void trim(long time) {
-        while (!byteList.isEmpty() && (time - byteList.getFirst().time) > timeGranularity) {
-            byteList.removeFirst();
+    /**
+     * one frame of byteCount bytes
+     */
+    public void gain(int byteCount) {
+        gain(byteCount, 1);
+    }
+
+    public void gain(int byteCount, int frameCount) {
+        long now = now();
+        long interval = intervalOf(now);
+        int i = indexOf(interval);
+        long held = intervals.get(i);
+        if (held < interval && intervals.compareAndSet(i, held, interval)) {
+            bytes.set(i, 0);
+            frames.set(i, 0);
         }
+        startTime.compareAndSet(EMPTY, now);
+        bytes.addAndGet(i, byteCount);
+        frames.addAndGet(i, frameCount);
     }
 
-    public void reset() {
-        synchronized (syncByteList) {
-            byteList.clear();
+    /**
+     * nanoTime() has an arbitrary origin,time may be negative,rounded down then too
+     */
+    private long intervalOf(long time) {
+        long interval = time / resolution;
+        return time < 0 && interval * resolution != time ? interval - 1 : interval;
+    }
+
+    private int indexOf(long interval) {
+        int n = intervals.length();
+        return (int) (((interval % n) + n) % n);
+    }
+
+    /**
+     * @return bytes per second over the window
+     */
+    public int getSpeed() {
+        return (int) windowed(bytes);
+    }
+
+    /**
+     * @return bytes per second in the last complete bucket
+     */
+    public int getInstantSpeed() {
+        return (int) instant(bytes);
+    }
+
+    public int getEwmaSpeed() {
+        return (int) ewma(bytes);
+    }
+
+    /**
+     * @return frames per second over the window
+     */
+    public float getFrameRate() {
+        return (float) windowed(frames);
+    }
+
+    public float getInstantFrameRate() {
+        return (float) instant(frames);
+    }
+
+    public float getEwmaFrameRate() {
+        return (float) ewma(frames);
+    }
+
+    /**
+     * the complete buckets plus the running one,over the time they cover since the first gain
+     */
+    private double windowed(AtomicLongArray values) {
+        long start = startTime.get();
+        if (start == EMPTY) {
+            return 0;
         }
+        long now = now();
+        long interval = intervalOf(now);
+        long sum = 0;
+        for (int i = 0; i < intervals.length(); i++) {
+            long held = intervals.get(i);
+            if (held <= interval && held >= interval - windowBuckets) {
+                sum += values.get(i);
+            }
+        }
+        long covered = Math.min((long) windowBuckets * resolution + now - interval * resolution, now - start);
+        return sum * 1000.0 / Math.max(covered, resolution);
+    }
+
+    private double instant(AtomicLongArray values) {
+        long last = intervalOf(now()) - 1;
+        int i = indexOf(last);
+        return intervals.get(i) == last ? values.get(i) * 1000.0 / resolution : 0;
     }
 
-    private class ByteFrame {
-        long time;
-        long bytenum;
+    /**
+     * complete buckets since the first gain,windowed before the first one completed
+     */
+    private double ewma(AtomicLongArray values) {
+        long start = startTime.get();
+        if (start == EMPTY) {
+            return 0;
+        }
+        long interval = intervalOf(now());
+        long firstInterval = intervalOf(start);
+        double[] weights = ewmaWeights;
+        double sum = 0;
+        double weightSum = 0;
+        for (int k = 1; k <= windowBuckets && interval - k >= firstInterval; k++) {
+            int i = indexOf(interval - k);
+            long value = intervals.get(i) == interval - k ? values.get(i) : 0;
+            sum += weights[k - 1] * value;
+            weightSum += weights[k - 1];
+        }
+        if (weightSum == 0) {
+            return windowed(values);
+        }
+        return sum / weightSum * 1000.0 / resolution;
+    }
 
-        public ByteFrame(long time, long bytenum) {
-            this.time = time;
-            this.bytenum = bytenum;
+    public void reset() {
+        for (int i = 0; i < intervals.length(); i++) {
+            intervals.set(i, EMPTY);
+            bytes.set(i, 0);
+            frames.set(i, 0);
         }
+        startTime.set(EMPTY);
     }
 }
@@ -42,6 +42,15 @@ public class RESCoreParameters {
     public int previewBufferSize;
     public int mediacodecAVCColorFormat;
     public int mediacodecAVCBitRate;
+    /**
+     * adaptive bitrate range,disabled if not set
+     */
+    public int mediacodecAVCMinBitRate;
+    public int mediacodecAVCMaxBitRate;
+    /**
+     * drain the AVC encoder from MediaCodec callbacks,needs M,polls otherwise
+     */
+    public boolean mediacodecAVCAsyncMode;
     public int videoBufferQueueNum;
     public int audioBufferQueueNum;
     public int audioRecoderFormat;
@@ -56,15 +65,57 @@ public class RESCoreParameters {
     public int mediacodecAVCIFrameInterval;
     public int mediacodecAVCProfile;
     public int mediacodecAVClevel;
+    /**
+     * B-frames between references,only used with a profile above baseline the encoder supports
+     */
+    public int mediacodecAVCMaxBFrames;
 
     public int mediacodecAACProfile;
     public int mediacodecAACSampleRate;
     public int mediacodecAACChannelCount;
     public int mediacodecAACBitRate;
     public int mediacodecAACMaxInputSize;
+    /**
+     * AAC frames per encoder input buffer,see {@link RESPcmAggregator}
+     */
+    public int mediacodecAACFramesPerBuffer;
+    /**
+     * max time a tag waits in {@link RESFlvInterleaver} for the other stream,ms
+     */
+    public int senderReorderWindow;
 
     //sender
+    /**
+     * hard limit of queued tags,the real bound is senderQueueMaxBytes/senderQueueMaxDelay
+     */
     public int senderQueueLength;
+    public int senderQueueMaxBytes;
+    /**
+     * ms needed to drain the queue at the measured send speed
+     */
+    public int senderQueueMaxDelay;
+    /**
+     * how far (ms) an audio tag may overtake an older video tag in the sender
+     */
+    public int senderMaxInterleaveSkew;
+    /**
+     * reconnect backoff range,ms
+     */
+    public int senderReconnectMinDelay;
+    public int senderReconnectMaxDelay;
+    /**
+     * outbound rtmp chunk size,bigger chunks mean fewer chunk headers
+     */
+    public int senderChunkSize;
+    /**
+     * audio tags within this many ms go out as one RTMP Aggregate message,
+     * 0 turns it off for servers without aggregate support
+     */
+    public int senderAudioAggregateWindow;
+    /**
+     * publish through the pure java RESNioRtmpClient instead of librtmp
+     */
+    public boolean senderJavaTransport;
 
     public RESCoreParameters() {
         done = false;
@@ -76,17 +127,31 @@ public class RESCoreParameters {
         previewColorFormat = -1;
         mediacodecAVCColorFormat = -1;
         mediacodecAVCBitRate = -1;
+        mediacodecAVCMinBitRate = -1;
+        mediacodecAVCMaxBitRate = -1;
+        mediacodecAVCAsyncMode = false;
         videoBufferQueueNum = -1;
         audioBufferQueueNum = -1;
         mediacodecAVCFrameRate = -1;
         mediacodecAVCIFrameInterval = -1;
         mediacodecAVCProfile = -1;
         mediacodecAVClevel = -1;
+        mediacodecAVCMaxBFrames = -1;
         mediacodecAACProfile = -1;
         mediacodecAACSampleRate = -1;
         mediacodecAACChannelCount = -1;
         mediacodecAACBitRate = -1;
         mediacodecAACMaxInputSize = -1;
+        mediacodecAACFramesPerBuffer = -1;
+        senderReorderWindow = -1;
+        senderQueueMaxBytes = -1;
+        senderQueueMaxDelay = -1;
+        senderMaxInterleaveSkew = -1;
+        senderReconnectMinDelay = -1;
+        senderReconnectMaxDelay = -1;
+        senderChunkSize = -1;
+        senderAudioAggregateWindow = -1;
+        senderJavaTransport = false;
     }
 
     public void dump() {
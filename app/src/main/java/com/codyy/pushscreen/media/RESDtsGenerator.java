@@ -0,0 +1,64 @@
+package com.codyy.pushscreen.media;
+
+import java.util.PriorityQueue;
+
+/**
+ * Derives a monotonic dts for encoder output that may be reordered by B-frames.
+ * MediaCodec only reports pts,in decode order. With at most reorderDepth B-frames in a row,
+ * the n-th smallest pts is known once reorderDepth more frames have been seen,
+ * so after the first reorderDepth frames dts simply walks the sorted pts.
+ * The first reorderDepth frames are extrapolated backwards by the nominal frame duration.
+ * Without B-frames (reorderDepth 0) dts equals pts.
+ * Not thread safe.
+ */
+public class RESDtsGenerator {
+    private final int reorderDepth;
+    private final int frameDurationMs;
+    private final PriorityQueue<Integer> pending = new PriorityQueue<>();
+    private int frames = 0;
+    private int firstPts = 0;
+    private int lastDts = 0;
+
+    /**
+     * @param reorderDepth max consecutive B-frames the encoder was asked for
+     * @param frameRate    nominal fps,only used for the first reorderDepth frames
+     */
+    public RESDtsGenerator(int reorderDepth, int frameRate) {
+        this.reorderDepth = reorderDepth < 0 ? 0 : reorderDepth;
+        this.frameDurationMs = frameRate > 0 ? 1000 / frameRate : 0;
+    }
+
+    /**
+     * @param pts of the next output buffer in decode order,ms
+     * @return its dts,ms,never below 0 and never below the previous one
+     */
+    public int next(int pts) {
+        if (frames == 0) {
+            firstPts = pts;
+        }
+        pending.add(pts);
+        int dts;
+        if (pending.size() > reorderDepth) {
+            dts = pending.poll();
+        } else {
+            dts = firstPts - (reorderDepth - frames) * frameDurationMs;
+        }
+        ++frames;
+        if (dts < lastDts) {
+            dts = lastDts;
+        }
+        lastDts = dts;
+        return dts;
+    }
+
+    public int getReorderDepth() {
+        return reorderDepth;
+    }
+
+    public void reset() {
+        pending.clear();
+        frames = 0;
+        firstPts = 0;
+        lastDts = 0;
+    }
+}
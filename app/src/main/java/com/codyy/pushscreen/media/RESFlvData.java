@@ -1,5 +1,8 @@
 package com.codyy.pushscreen.media;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by lake on 16-3-16.
  */
@@ -8,6 +11,10 @@ public class RESFlvData {
     public final static int FLV_RTMP_PACKET_TYPE_VIDEO = 9;
     public final static int FLV_RTMP_PACKET_TYPE_AUDIO = 8;
     public final static int FLV_RTMP_PACKET_TYPE_INFO = 18;
+    /**
+     * RTMP Aggregate message,a run of FLV tags,only built by the sender
+     */
+    public final static int FLV_RTMP_PACKET_TYPE_AGGREGATE = 22;
     public final static int NALU_TYPE_IDR = 5;
 
     public boolean droppable;
@@ -16,14 +23,77 @@ public class RESFlvData {
 
     public byte[] byteBuffer; //数据
 
+    /**
+     * optional direct buffer holding the tag from position() on,size bytes,
+     * with RtmpClient.DIRECT_HEADROOM free bytes in front.
+     * sent with zero copy instead of byteBuffer when set,its content is consumed by the write
+     */
+    public ByteBuffer directBuffer;
+
     public int size; //字节长度
 
     public int flvTagType; //视频和音频的分类
 
     public int videoFrameType;
 
+    /**
+     * System.nanoTime() stamps of the stages the frame passed,0 if not passed or not traced,
+     * see RESLatencyTracer
+     */
+    public long encodedNanos;
+    public long packagedNanos;
+    public long enqueuedNanos;
+    public long dequeuedNanos;
+
+    /**
+     * owning pool,null for frames that were not acquired from {@link RESFlvDataPool}
+     */
+    RESFlvDataPool pool;
+    int sizeClass = -1;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
     public boolean isKeyframe() {
         return videoFrameType == NALU_TYPE_IDR;
     }
 
+    /**
+     * keep the frame alive for one more {@link #release()}
+     */
+    public RESFlvData retain() {
+        if (pool != null && refCnt.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain on released RESFlvData");
+        }
+        return this;
+    }
+
+    /**
+     * hand the frame back to its pool once the last reference is gone,
+     * no-op for frames that were not pooled
+     */
+    public void release() {
+        if (pool == null) {
+            return;
+        }
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            pool.recycle(this);
+        } else if (cnt < 0) {
+            throw new IllegalStateException("RESFlvData released twice,type=" + flvTagType + ",dts=" + dts);
+        }
+    }
+
+    void reset() {
+        refCnt.set(1);
+        droppable = false;
+        dts = 0;
+        byteBuffer = null;
+        size = 0;
+        flvTagType = 0;
+        videoFrameType = 0;
+        encodedNanos = 0;
+        packagedNanos = 0;
+        enqueuedNanos = 0;
+        dequeuedNanos = 0;
+    }
+
 }
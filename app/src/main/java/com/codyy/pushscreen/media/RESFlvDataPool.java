@@ -0,0 +1,217 @@
+package com.codyy.pushscreen.media;
+
+import android.util.Log;
+
+import com.codyy.pushscreen.rtmp.RtmpClient;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-class pool of {@link RESFlvData} backed by direct buffers.
+ * acquire() hands out a frame with refCnt 1 whose directBuffer has
+ * {@link #HEADROOM} free bytes in front of position(),ready for the zero copy rtmp write.
+ * The last {@link RESFlvData#release()} puts it back.
+ * Frames larger than the largest size class are allocated and dropped,never pooled.
+ */
+public class RESFlvDataPool {
+    private static final String TAG = "RESFlvDataPool";
+    public static final int HEADROOM = RtmpClient.DIRECT_HEADROOM;
+    private static final int[] CLASS_SIZES = {512, 2 * 1024, 8 * 1024, 32 * 1024, 128 * 1024, 512 * 1024};
+    private static final int[] CLASS_MAX_FREE = {64, 64, 32, 16, 8, 4};
+    static private RESFlvDataPool instance;
+
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong acquireCount = new AtomicLong(0);
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong oversizeCount = new AtomicLong(0);
+    private final AtomicLong releaseCount = new AtomicLong(0);
+    private volatile boolean leakDetection = false;
+    /**
+     * outstanding frames and where they were acquired,only filled with leak detection on
+     */
+    private final Map<RESFlvData, Throwable> outstanding = new IdentityHashMap<>();
+
+    public static synchronized RESFlvDataPool i() {
+        return instance == null ? instance = new RESFlvDataPool() : instance;
+    }
+
+    RESFlvDataPool() {
+        sizeClasses = new SizeClass[CLASS_SIZES.length];
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            sizeClasses[i] = new SizeClass(CLASS_SIZES[i], CLASS_MAX_FREE[i]);
+        }
+    }
+
+    /**
+     * record the acquire site of every frame so {@link #checkLeaks()} can report it,
+     * meant for debug builds only
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection) {
+            synchronized (outstanding) {
+                outstanding.clear();
+            }
+        }
+    }
+
+    /**
+     * @param size payload bytes the caller is going to write
+     * @return frame with refCnt 1,directBuffer positioned after the headroom
+     */
+    public RESFlvData acquire(int size) {
+        acquireCount.incrementAndGet();
+        SizeClass sizeClass = sizeClassOf(size);
+        RESFlvData flvData = sizeClass == null ? null : sizeClass.poll();
+        if (flvData != null) {
+            hitCount.incrementAndGet();
+        } else {
+            if (sizeClass == null) {
+                oversizeCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+            }
+            flvData = new RESFlvData();
+            flvData.directBuffer = ByteBuffer.allocateDirect(HEADROOM + (sizeClass == null ? size : sizeClass.size));
+            flvData.pool = this;
+            flvData.sizeClass = sizeClass == null ? -1 : sizeClass.index;
+        }
+        flvData.reset();
+        flvData.directBuffer.clear();
+        flvData.directBuffer.position(HEADROOM);
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.put(flvData, new Throwable("acquired here"));
+            }
+        }
+        return flvData;
+    }
+
+    void recycle(RESFlvData flvData) {
+        releaseCount.incrementAndGet();
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.remove(flvData);
+            }
+        }
+        if (flvData.sizeClass >= 0) {
+            sizeClasses[flvData.sizeClass].offer(flvData);
+        }
+    }
+
+    /**
+     * log every frame that was acquired but never released,
+     * call it once the pipeline is stopped
+     *
+     * @return number of leaked frames,always 0 without leak detection
+     */
+    public int checkLeaks() {
+        synchronized (outstanding) {
+            for (Map.Entry<RESFlvData, Throwable> entry : outstanding.entrySet()) {
+                RESFlvData flvData = entry.getKey();
+                Log.e(TAG, "leaked RESFlvData,type=" + flvData.flvTagType + ",dts=" + flvData.dts + ",size=" + flvData.size,
+                        entry.getValue());
+            }
+            return outstanding.size();
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.acquireCount = acquireCount.get();
+        stats.hitCount = hitCount.get();
+        stats.missCount = missCount.get();
+        stats.oversizeCount = oversizeCount.get();
+        stats.releaseCount = releaseCount.get();
+        stats.pooledBytes = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            stats.pooledBytes += (long) sizeClass.freeCount() * sizeClass.size;
+        }
+        return stats;
+    }
+
+    private SizeClass sizeClassOf(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    public static class Stats {
+        public long acquireCount;
+        /**
+         * acquires served from the pool
+         */
+        public long hitCount;
+        /**
+         * acquires that allocated a new pooled frame
+         */
+        public long missCount;
+        /**
+         * acquires larger than the biggest size class
+         */
+        public long oversizeCount;
+        public long releaseCount;
+        /**
+         * direct memory currently held by free frames
+         */
+        public long pooledBytes;
+
+        @Override
+        public String toString() {
+            return "acquire=" + acquireCount + ",hit=" + hitCount + ",miss=" + missCount
+                    + ",oversize=" + oversizeCount + ",release=" + releaseCount
+                    + ",outstanding=" + (acquireCount - releaseCount) + ",pooledBytes=" + pooledBytes;
+        }
+    }
+
+    /**
+     * bounded free list,the frames themselves are the storage so offer/poll never allocate
+     */
+    private class SizeClass {
+        final int size;
+        final int index;
+        private final RESFlvData[] free;
+        private int freeCount = 0;
+
+        SizeClass(int size, int maxFree) {
+            this.size = size;
+            this.index = indexOf(size);
+            this.free = new RESFlvData[maxFree];
+        }
+
+        private int indexOf(int size) {
+            for (int i = 0; i < CLASS_SIZES.length; i++) {
+                if (CLASS_SIZES[i] == size) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        synchronized RESFlvData poll() {
+            if (freeCount == 0) {
+                return null;
+            }
+            RESFlvData flvData = free[--freeCount];
+            free[freeCount] = null;
+            return flvData;
+        }
+
+        synchronized void offer(RESFlvData flvData) {
+            if (freeCount < free.length) {
+                free[freeCount++] = flvData;
+            }
+        }
+
+        synchronized int freeCount() {
+            return freeCount;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.codyy.pushscreen.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Merges the audio and video tags into non-decreasing dts order before they reach the sender.
+ * A tag is held until the other stream has caught up with it,or until it is older than
+ * the reorder window,measured against the newest dts of its own stream.
+ * A stream whose partner has not shown up within its first window passes straight through.
+ * A tag that still arrives behind what was already emitted is stamped with the last emitted dts,
+ * a video tag's CompositionTime goes down by as much so its pts stays.
+ * Sequence headers pass straight through.
+ * collect() may be called from several encoder threads.The monitor only guards the held tags,
+ * downstream is called outside of it by one thread at a time,the others leave their ready tags to it.
+ */
+public class RESFlvInterleaver implements RESFlvDataCollecter {
+    public static final int DEFAULT_REORDER_WINDOW = 300;
+    /**
+     * held tags per stream before the oldest one is forced out
+     */
+    private static final int MAX_HELD = 64;
+
+    private final RESFlvDataCollecter downstream;
+    private final int reorderWindowMs;
+    private final TagRing audio = new TagRing(MAX_HELD + 1);
+    private final TagRing video = new TagRing(MAX_HELD + 1);
+    /**
+     * tags on their way downstream,only touched by the emitting thread
+     */
+    private final RESFlvData[] ready = new RESFlvData[2 * (MAX_HELD + 1)];
+    private final int[] readyTypes = new int[ready.length];
+    private boolean emitting = false;
+    private int firstAudioDts = -1;
+    private int firstVideoDts = -1;
+    private int lastAudioDts = -1;
+    private int lastVideoDts = -1;
+    private int lastEmittedDts = 0;
+    private volatile int avSkew = 0;
+    private volatile int maxAvSkew = 0;
+    private volatile long lateCount = 0;
+    private boolean closed = false;
+
+    /**
+     * fifo of held tags and their types,
+     * allocation free unless the emitting thread falls behind the encoders
+     */
+    private static class TagRing {
+        private RESFlvData[] tags;
+        private int[] types;
+        private int head = 0;
+        private int size = 0;
+
+        TagRing(int capacity) {
+            tags = new RESFlvData[capacity];
+            types = new int[capacity];
+        }
+
+        void add(RESFlvData flvData, int type) {
+            if (size == tags.length) {
+                grow();
+            }
+            int i = (head + size) % tags.length;
+            tags[i] = flvData;
+            types[i] = type;
+            ++size;
+        }
+
+        /**
+         * @return null if empty
+         */
+        RESFlvData peek() {
+            return size == 0 ? null : tags[head];
+        }
+
+        int peekType() {
+            return types[head];
+        }
+
+        RESFlvData poll() {
+            RESFlvData flvData = tags[head];
+            tags[head] = null;
+            head = (head + 1) % tags.length;
+            --size;
+            return flvData;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            RESFlvData[] newTags = new RESFlvData[tags.length * 2];
+            int[] newTypes = new int[tags.length * 2];
+            for (int i = 0; i < size; i++) {
+                newTags[i] = tags[(head + i) % tags.length];
+                newTypes[i] = types[(head + i) % tags.length];
+            }
+            tags = newTags;
+            types = newTypes;
+            head = 0;
+        }
+    }
+
+    /**
+     * @param reorderWindowMs max time a tag waits for the other stream,ms
+     */
+    public RESFlvInterleaver(RESFlvDataCollecter downstream, int reorderWindowMs) {
+        this.downstream = downstream;
+        this.reorderWindowMs = reorderWindowMs > 0 ? reorderWindowMs : DEFAULT_REORDER_WINDOW;
+    }
+
+    @Override
+    public void collect(RESFlvData flvData, int type) {
+        if (!flvData.droppable) {
+            downstream.collect(flvData, type);
+            return;
+        }
+        boolean held = false;
+        synchronized (this) {
+            if (!closed) {
+                hold(flvData, type);
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+                held = true;
+            }
+        }
+        if (held) {
+            emitReady();
+        } else {
+            downstream.collect(flvData, type);
+        }
+    }
+
+    private void hold(RESFlvData flvData, int type) {
+        if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO) {
+            if (firstAudioDts < 0) {
+                firstAudioDts = flvData.dts;
+            }
+            lastAudioDts = Math.max(lastAudioDts, flvData.dts);
+            audio.add(flvData, type);
+        } else {
+            if (firstVideoDts < 0) {
+                firstVideoDts = flvData.dts;
+            }
+            lastVideoDts = Math.max(lastVideoDts, flvData.dts);
+            video.add(flvData, type);
+        }
+        if (lastAudioDts >= 0 && lastVideoDts >= 0) {
+            int skew = lastAudioDts - lastVideoDts;
+            avSkew = skew;
+            if (Math.abs(skew) > maxAvSkew) {
+                maxAvSkew = Math.abs(skew);
+            }
+        }
+    }
+
+    /**
+     * emit everything still held,later tags from winding down workers pass straight through.
+     * if another thread is emitting right now,it passes the held tags on instead
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (emitting) {
+                return;
+            }
+            emitting = true;
+        }
+        emitReady();
+    }
+
+    /**
+     * pass the ready tags downstream until none is left,called with emitting set
+     */
+    private void emitReady() {
+        for (;;) {
+            int count;
+            synchronized (this) {
+                count = takeReady(closed);
+                if (count == 0) {
+                    emitting = false;
+                    return;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                RESFlvData flvData = ready[i];
+                ready[i] = null;
+                downstream.collect(flvData, readyTypes[i]);
+            }
+        }
+    }
+
+    /**
+     * move the tags that may go out,in dts order,from the rings to ready
+     *
+     * @return number of tags moved
+     */
+    private int takeReady(boolean all) {
+        int count = 0;
+        while (count < ready.length) {
+            RESFlvData a = audio.peek();
+            RESFlvData v = video.peek();
+            TagRing next;
+            if (a != null && v != null) {
+                next = a.dts <= v.dts ? audio : video;
+            } else if (a != null) {
+                if (!all && !expired(audio, lastAudioDts) && !partnerMissing(firstAudioDts, lastAudioDts, lastVideoDts)) {
+                    break;
+                }
+                next = audio;
+            } else if (v != null) {
+                if (!all && !expired(video, lastVideoDts) && !partnerMissing(firstVideoDts, lastVideoDts, lastAudioDts)) {
+                    break;
+                }
+                next = video;
+            } else {
+                break;
+            }
+            readyTypes[count] = next.peekType();
+            ready[count] = restamp(next.poll());
+            ++count;
+        }
+        return count;
+    }
+
+    private boolean expired(TagRing ring, int newestDts) {
+        return ring.size() > MAX_HELD || newestDts - ring.peek().dts > reorderWindowMs;
+    }
+
+    /**
+     * the other stream has not produced a tag within the first window of this one,
+     * e.g. audio capture failed or is off,so there is nothing to wait for
+     */
+    private boolean partnerMissing(int firstDts, int newestDts, int partnerNewestDts) {
+        return partnerNewestDts < 0 && newestDts - firstDts > reorderWindowMs;
+    }
+
+    private RESFlvData restamp(RESFlvData flvData) {
+        if (flvData.dts < lastEmittedDts) {
+            ++lateCount;
+            if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO) {
+                shiftCompositionTime(flvData, lastEmittedDts - flvData.dts);
+            }
+            flvData.dts = lastEmittedDts;
+        } else {
+            lastEmittedDts = flvData.dts;
+        }
+        return flvData;
+    }
+
+    /**
+     * lower the CompositionTime of a video tag whose dts moves forward by delta ms,
+     * clamped at 0,a B-frame shown before its new dts would be invalid
+     */
+    private static void shiftCompositionTime(RESFlvData flvData, int delta) {
+        ByteBuffer direct = flvData.directBuffer;
+        byte[] array = flvData.byteBuffer;
+        if (direct == null && array == null) {
+            return;
+        }
+        int pos = (direct != null ? direct.position() : 0) + 2;
+        int b0 = direct != null ? direct.get(pos) : array[pos];
+        int b1 = direct != null ? direct.get(pos + 1) : array[pos + 1];
+        int b2 = direct != null ? direct.get(pos + 2) : array[pos + 2];
+        // signed 24bit
+        int compositionTime = ((b0 << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8)) >> 8;
+        compositionTime = Math.max(0, compositionTime - delta);
+        if (direct != null) {
+            direct.put(pos, (byte) (compositionTime >> 16));
+            direct.put(pos + 1, (byte) (compositionTime >> 8));
+            direct.put(pos + 2, (byte) compositionTime);
+        } else {
+            array[pos] = (byte) (compositionTime >> 16);
+            array[pos + 1] = (byte) (compositionTime >> 8);
+            array[pos + 2] = (byte) compositionTime;
+        }
+    }
+
+    /**
+     * newest audio dts minus newest video dts,ms
+     */
+    public int getAvSkew() {
+        return avSkew;
+    }
+
+    public int getMaxAvSkew() {
+        return maxAvSkew;
+    }
+
+    /**
+     * tags that arrived behind the reorder window and were restamped
+     */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * tags waiting in the rings,not counting those the emitting thread is passing on
+     */
+    public synchronized int getHeldCount() {
+        return audio.size() + video.size();
+    }
+}
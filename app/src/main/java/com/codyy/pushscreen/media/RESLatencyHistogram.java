@@ -0,0 +1,113 @@
+package com.codyy.pushscreen.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution in a fixed set of log-linear buckets,microseconds.
+ * Values below 16us get a bucket each,above every power of two is split into 16 buckets,
+ * so a percentile is off by at most 1/16 of its value,up to about 71 minutes.
+ * record() is lock free and allocation free,from any thread;
+ * reads walk the 464 buckets once,from any thread,and may miss records racing with them.
+ * Counts since construction or the last reset().
+ */
+public class RESLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param latencyNanos negative samples,e.g. of a frame missing a timestamp,are ignored
+     */
+    public void record(long latencyNanos) {
+        if (latencyNanos < 0) {
+            return;
+        }
+        long us = latencyNanos / 1000;
+        counts.incrementAndGet(indexOf(us));
+        long held;
+        while (us > (held = max.get()) && !max.compareAndSet(held, us)) {
+        }
+    }
+
+    static int indexOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest value of bucket index,us
+     */
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile 0..1,e.g. 0.99
+     * @return us,the middle of the bucket holding the quantile,never above the max.0 if empty
+     */
+    public long getPercentile(double quantile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long lower = lowerBoundOf(i);
+                long upper = i + 1 < BUCKETS ? lowerBoundOf(i + 1) : lower + 1;
+                return Math.min((lower + upper - 1) / 2, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return us,exact
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    /**
+     * p50/p90/p99/max in ms
+     */
+    @Override
+    public String toString() {
+        return String.format("p50=%.1fms,p90=%.1fms,p99=%.1fms,max=%.1fms,n=%d",
+                getPercentile(0.5) / 1000.0, getPercentile(0.9) / 1000.0, getPercentile(0.99) / 1000.0,
+                getMax() / 1000.0, getCount());
+    }
+}
@@ -0,0 +1,72 @@
+package com.codyy.pushscreen.media;
+
+/**
+ * Average and max of latency samples over a fixed time window.
+ * fed from a single thread,read from any thread.
+ */
+public class RESLatencyMeter {
+    private final long windowMs;
+    private long sum;
+    private long max;
+    private int count;
+    private long windowStart;
+    private volatile long lastAvg;
+    private volatile long lastMax;
+    private volatile int lastCount;
+
+    public RESLatencyMeter(long windowMs) {
+        this.windowMs = windowMs;
+        reSet();
+    }
+
+    /**
+     * @return true if this sample closed a window
+     */
+    public boolean sample(long latency) {
+        long now = System.currentTimeMillis();
+        if (windowStart == 0) {
+            windowStart = now;
+        }
+        sum += latency;
+        if (latency > max) {
+            max = latency;
+        }
+        ++count;
+        if (now - windowStart < windowMs) {
+            return false;
+        }
+        lastAvg = sum / count;
+        lastMax = max;
+        lastCount = count;
+        sum = 0;
+        max = 0;
+        count = 0;
+        windowStart = now;
+        return true;
+    }
+
+    /**
+     * of the last complete window
+     */
+    public long getAvg() {
+        return lastAvg;
+    }
+
+    public long getMax() {
+        return lastMax;
+    }
+
+    public int getCount() {
+        return lastCount;
+    }
+
+    public void reSet() {
+        sum = 0;
+        max = 0;
+        count = 0;
+        windowStart = 0;
+        lastAvg = 0;
+        lastMax = 0;
+        lastCount = 0;
+    }
+}
@@ -0,0 +1,42 @@
+package com.codyy.pushscreen.media;
+
+/**
+ * Session time base shared by the audio and video workers.
+ * Both capture paths stamp their buffers with System.nanoTime() in us
+ * (virtual display frames are stamped by SurfaceFlinger on the same monotonic clock),
+ * and every FLV dts is taken relative to one origin,so the streams can not drift apart.
+ */
+public class RESMediaClock {
+    private volatile long originUs = -1;
+
+    /**
+     * @return now on the monotonic clock the capture timestamps use,us
+     */
+    public static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * start the session,call before any worker produces data
+     */
+    public void start() {
+        originUs = nowUs();
+    }
+
+    public boolean isStarted() {
+        return originUs >= 0;
+    }
+
+    /**
+     * @param monotonicUs capture timestamp,us on the {@link #nowUs()} clock
+     * @return FLV dts,ms since the session started,0 for anything captured before it
+     */
+    public int toDts(long monotonicUs) {
+        long origin = originUs;
+        if (origin < 0) {
+            return 0;
+        }
+        long ms = (monotonicUs - origin) / 1000;
+        return ms < 0 ? 0 : (int) ms;
+    }
+}
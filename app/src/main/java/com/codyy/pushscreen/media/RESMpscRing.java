@@ -0,0 +1,121 @@
+package com.codyy.pushscreen.media;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer,
+ * the lanes between the encoders and the rtmp writer thread and the PCM hand-off
+ * from the audio capture thread to the AAC encoder.
+ * offer() is wait-free: two fetch-and-adds and one store, no lock and no retry loop.
+ * poll() and peek() may only be called from the single consumer thread,
+ * which is also responsible for its own parking.
+ */
+public class RESMpscRing<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    /**
+     * claimed but not yet consumed slots, always >= tail - head
+     */
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    /**
+     * consumer only
+     */
+    private long head = 0;
+    private volatile int peakSize = 0;
+
+    public RESMpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        int length = Integer.highestOneBit(capacity);
+        if (length < capacity) {
+            length <<= 1;
+        }
+        this.mask = length - 1;
+        this.slots = new AtomicReferenceArray<>(length);
+    }
+
+    /**
+     * @return false if the queue is full, the element is not enqueued
+     */
+    public boolean offer(E e) {
+        if (count.getAndIncrement() >= capacity) {
+            count.decrementAndGet();
+            return false;
+        }
+        long seq = tail.getAndIncrement();
+        slots.set((int) seq & mask, e);
+        return true;
+    }
+
+    /**
+     * consumer thread only
+     *
+     * @return null if nothing is published at the head yet
+     */
+    public E poll() {
+        int index = (int) head & mask;
+        E e = slots.get(index);
+        if (e == null) {
+            return null;
+        }
+        int n = count.get();
+        if (n > peakSize) {
+            peakSize = n > capacity ? capacity : n;
+        }
+        slots.lazySet(index, null);
+        ++head;
+        count.decrementAndGet();
+        return e;
+    }
+
+    /**
+     * consumer thread only
+     *
+     * @return the element poll() would return,without removing it
+     */
+    public E peek() {
+        return slots.get((int) head & mask);
+    }
+
+    /**
+     * @return sequence number the next offer() will get
+     */
+    public long producedCount() {
+        return tail.get();
+    }
+
+    /**
+     * consumer thread only
+     *
+     * @return sequence number the next poll() will return
+     */
+    public long consumedCount() {
+        return head;
+    }
+
+    public int size() {
+        int n = count.get();
+        return n < 0 ? 0 : (n > capacity ? capacity : n);
+    }
+
+    /**
+     * consumer thread only,updated on every poll
+     */
+    public int peakSize() {
+        return peakSize;
+    }
+
+    public void resetPeakSize() {
+        peakSize = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,148 @@
+package com.codyy.pushscreen.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Regroups captured 16bit PCM into encoder input chunks of exactly framesPerBuffer AAC frames,
+ * so the encoder never has to re-buffer odd sized input.
+ * An encoder input buffer shorter than a chunk gets as many whole AAC frames as it holds.
+ * The pts of every chunk is derived from the number of samples emitted since the last resync,
+ * and is only pulled back to the capture clock when they drift apart,e.g. after pcm was dropped.
+ * Not thread safe.
+ */
+public class RESPcmAggregator {
+    public static final int SAMPLES_PER_FRAME = 1024;
+    public static final int DEFAULT_FRAMES_PER_BUFFER = 2;
+    private static final int BYTES_PER_SAMPLE = 2;
+    /**
+     * capture clock and sample clock further apart than this start a new timeline
+     */
+    private static final long RESYNC_THRESHOLD_US = 50000;
+
+    private final int sampleRate;
+    private final int frameSize;
+    private final int frameBytes;
+    private final int chunkSize;
+    /**
+     * size of the chunk being built,chunkSize unless the encoder input buffer is shorter
+     */
+    private int chunkTarget = 0;
+    private int chunkFilled = 0;
+    private int lastChunkSize = 0;
+    private long chunkPts = 0;
+    private long ptsBase = -1;
+    private long samples = 0;
+
+    /**
+     * @param framesPerBuffer AAC frames per encoder input,less means lower latency but more codec calls
+     * @param maxInputSize    capacity of the encoder input buffers,bytes
+     */
+    public RESPcmAggregator(int sampleRate, int channelCount, int framesPerBuffer, int maxInputSize) {
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("invalid pcm format " + sampleRate + "/" + channelCount);
+        }
+        this.sampleRate = sampleRate;
+        this.frameSize = BYTES_PER_SAMPLE * channelCount;
+        this.frameBytes = SAMPLES_PER_FRAME * frameSize;
+        if (framesPerBuffer <= 0) {
+            framesPerBuffer = DEFAULT_FRAMES_PER_BUFFER;
+        }
+        if (maxInputSize > 0 && framesPerBuffer * frameBytes > maxInputSize) {
+            framesPerBuffer = Math.max(1, maxInputSize / frameBytes);
+        }
+        this.chunkSize = framesPerBuffer * frameBytes;
+    }
+
+    /**
+     * bytes per full chunk
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * copy as much of src as fits into the current chunk
+     *
+     * @param src   pcm from position() on,consumed by this call
+     * @param srcPts capture pts of the first sample of src at position() 0,us
+     * @param dst   encoder input buffer the current chunk is built in
+     * @return true when the chunk is complete,see {@link #getLastChunkSize()} and {@link #getChunkPts()}
+     */
+    public boolean fill(ByteBuffer src, long srcPts, ByteBuffer dst) {
+        if (chunkFilled == 0) {
+            long capturePts = srcPts + samplesToUs(src.position() / frameSize);
+            long samplePts = ptsBase + samplesToUs(samples);
+            if (ptsBase < 0 || Math.abs(capturePts - samplePts) > RESYNC_THRESHOLD_US) {
+                ptsBase = capturePts;
+                samples = 0;
+            }
+            chunkPts = ptsBase + samplesToUs(samples);
+            chunkTarget = chunkTargetFor(dst.remaining());
+        }
+        int n = Math.min(src.remaining(), Math.min(chunkTarget - chunkFilled, dst.remaining()));
+        n -= n % frameSize;
+        if (n > 0) {
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+            chunkFilled += n;
+        }
+        if (src.remaining() < frameSize && chunkFilled < chunkTarget) {
+            // never leave a torn sample behind
+            src.position(src.limit());
+        }
+        if (chunkFilled > 0 && chunkFilled == chunkTarget) {
+            lastChunkSize = chunkFilled;
+            samples += chunkFilled / frameSize;
+            chunkFilled = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * whole AAC frames that fit into an encoder input buffer of room bytes,
+     * or whole samples if not even one frame does
+     */
+    private int chunkTargetFor(int room) {
+        if (room >= chunkSize) {
+            return chunkSize;
+        }
+        if (room >= frameBytes) {
+            return room - room % frameBytes;
+        }
+        return room - room % frameSize;
+    }
+
+    public int getLastChunkSize() {
+        return lastChunkSize;
+    }
+
+    /**
+     * pts of the chunk being built or just completed,us
+     */
+    public long getChunkPts() {
+        return chunkPts;
+    }
+
+    /**
+     * duration of the given number of bytes,us
+     */
+    public long bytesToUs(int bytes) {
+        return samplesToUs(bytes / frameSize);
+    }
+
+    public void reset() {
+        chunkTarget = 0;
+        chunkFilled = 0;
+        lastChunkSize = 0;
+        chunkPts = 0;
+        ptsBase = -1;
+        samples = 0;
+    }
+
+    private long samplesToUs(long sampleCount) {
+        return sampleCount * 1000000 / sampleRate;
+    }
+}
@@ -79,11 +79,7 @@ public class VideoSenderThread extends Thread {
                         break;
                 }
             }
-            try {
-                sleep(5);
-            } catch (InterruptedException ignored) {
-                ignored.printStackTrace();
-            }
+            // dequeueOutputBuffer already blocks up to WAIT_TIME,no extra sleep
         }
         eInfo = null;
     }
@@ -111,28 +107,33 @@ public class VideoSenderThread extends Thread {
     }
 
     private void sendRealData(long tms, ByteBuffer realData) {
+        long encodedNanos = System.nanoTime();
         int realDataLength = realData.remaining();
         int packetLen = Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
                 Packager.FLVPackager.NALU_HEADER_LENGTH +
                 realDataLength;
-        byte[] finalBuff = new byte[packetLen];
-        realData.get(finalBuff, Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
-                        Packager.FLVPackager.NALU_HEADER_LENGTH,
-                realDataLength);
-        int frameType = finalBuff[Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
-                Packager.FLVPackager.NALU_HEADER_LENGTH] & 0x1F;
+        RESFlvData resFlvData = RESFlvDataPool.i().acquire(packetLen);
+        ByteBuffer finalBuff = resFlvData.directBuffer;
+        int tagPos = finalBuff.position();
+        int naluPos = tagPos + Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
+                Packager.FLVPackager.NALU_HEADER_LENGTH;
+        finalBuff.position(naluPos);
+        finalBuff.put(realData);
+        finalBuff.position(tagPos);
+        int frameType = finalBuff.get(naluPos) & 0x1F;
         Packager.FLVPackager.fillFlvVideoTag(finalBuff,
-                0,
+                tagPos,
                 false,
                 frameType == 5,
-                realDataLength);
-        RESFlvData resFlvData = new RESFlvData();
+                realDataLength,
+                0);
         resFlvData.droppable = true;
-        resFlvData.byteBuffer = finalBuff;
-        resFlvData.size = finalBuff.length;
+        resFlvData.size = packetLen;
         resFlvData.dts = (int) tms;
         resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
         resFlvData.videoFrameType = frameType;
+        resFlvData.encodedNanos = encodedNanos;
+        resFlvData.packagedNanos = System.nanoTime();
         dataCollecter.collect(resFlvData, 6);
     }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of AMF0 rtmp commands need.
+ * Numbers are Double,objects and ecma arrays LinkedHashMap,strict arrays List,null and undefined null.
+ */
+class RESAmf0 {
+    static final int NUMBER = 0x00;
+    static final int BOOLEAN = 0x01;
+    static final int STRING = 0x02;
+    static final int OBJECT = 0x03;
+    static final int NULL = 0x05;
+    static final int UNDEFINED = 0x06;
+    static final int ECMA_ARRAY = 0x08;
+    static final int OBJECT_END = 0x09;
+    static final int STRICT_ARRAY = 0x0a;
+    static final int LONG_STRING = 0x0c;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RESAmf0() {
+    }
+
+    static void write(ByteBuffer dst, Object value) {
+        if (value == null) {
+            dst.put((byte) NULL);
+        } else if (value instanceof Number) {
+            dst.put((byte) NUMBER);
+            dst.putDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            dst.put((byte) BOOLEAN);
+            dst.put((byte) (((Boolean) value) ? 1 : 0));
+        } else if (value instanceof String) {
+            byte[] utf8 = ((String) value).getBytes(UTF8);
+            if (utf8.length > 0xffff) {
+                dst.put((byte) LONG_STRING);
+                dst.putInt(utf8.length);
+            } else {
+                dst.put((byte) STRING);
+                dst.putShort((short) utf8.length);
+            }
+            dst.put(utf8);
+        } else if (value instanceof Map) {
+            dst.put((byte) OBJECT);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeKey(dst, String.valueOf(entry.getKey()));
+                write(dst, entry.getValue());
+            }
+            writeKey(dst, "");
+            dst.put((byte) OBJECT_END);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            dst.put((byte) STRICT_ARRAY);
+            dst.putInt(list.size());
+            for (Object item : list) {
+                write(dst, item);
+            }
+        } else {
+            throw new IllegalArgumentException("no amf0 type for " + value.getClass());
+        }
+    }
+
+    private static void writeKey(ByteBuffer dst, String key) {
+        byte[] utf8 = key.getBytes(UTF8);
+        dst.putShort((short) utf8.length);
+        dst.put(utf8);
+    }
+
+    /**
+     * @return every value from position() to limit()
+     */
+    static List<Object> readAll(ByteBuffer src) {
+        List<Object> values = new ArrayList<>();
+        while (src.hasRemaining()) {
+            values.add(read(src));
+        }
+        return values;
+    }
+
+    static Object read(ByteBuffer src) {
+        int marker = src.get() & 0xff;
+        switch (marker) {
+            case NUMBER:
+                return src.getDouble();
+            case BOOLEAN:
+                return src.get() != 0;
+            case STRING:
+                return readString(src, src.getShort() & 0xffff);
+            case LONG_STRING:
+                return readString(src, src.getInt());
+            case OBJECT:
+                return readProperties(src);
+            case ECMA_ARRAY:
+                src.getInt();
+                return readProperties(src);
+            case STRICT_ARRAY: {
+                int count = src.getInt();
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(read(src));
+                }
+                return list;
+            }
+            case NULL:
+            case UNDEFINED:
+                return null;
+            default:
+                throw new IllegalArgumentException("unsupported amf0 marker " + marker);
+        }
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer src) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (;;) {
+            String key = readString(src, src.getShort() & 0xffff);
+            if (key.isEmpty() && src.get(src.position()) == OBJECT_END) {
+                src.get();
+                return map;
+            }
+            map.put(key, read(src));
+        }
+    }
+
+    private static String readString(ByteBuffer src, int length) {
+        byte[] utf8 = new byte[length];
+        src.get(utf8);
+        return new String(utf8, UTF8);
+    }
+}
@@ -0,0 +1,149 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.Packager;
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bundles consecutive audio tags into one RTMP Aggregate message(type 22),
+ * saving the per message chunk header,JNI call and syscall of tiny AAC frames.
+ * The body is a run of FLV tags,each one tag header + data + PreviousTagSize,
+ * the message timestamp is the timestamp of the first tag.
+ * The body is built in one reused direct buffer,RtmpClient.DIRECT_HEADROOM bytes after its start.
+ * Used by the sender thread only,not thread safe.
+ */
+class RESAudioAggregator {
+    private static final int TAG_OVERHEAD = Packager.FLVPackager.FLV_TAG_LENGTH + Packager.FLVPackager.FLV_TAG_FOOTER_LENGTH;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final int windowMs;
+    private final int maxBytes;
+    private ByteBuffer buffer;
+    private int size = 0;
+    private int count = 0;
+    private int payloadBytes = 0;
+    private int firstDts = 0;
+    private long firstEncodedNanos = 0;
+    private long firstDequeuedNanos = 0;
+
+    /**
+     * @param windowMs max dts span of one bundle,ms
+     * @param maxBytes max body size of one bundle
+     */
+    RESAudioAggregator(int windowMs, int maxBytes) {
+        this.windowMs = windowMs;
+        this.maxBytes = maxBytes;
+        buffer = ByteBuffer.allocateDirect(RtmpClient.DIRECT_HEADROOM + INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return false if flvData has to start a new bundle,flush this one first
+     */
+    boolean accepts(RESFlvData flvData) {
+        return count == 0 ||
+                (flvData.dts - firstDts < windowMs && size + flvData.size + TAG_OVERHEAD <= maxBytes);
+    }
+
+    /**
+     * copy the tag into the bundle,the caller still owns flvData
+     */
+    void append(RESFlvData flvData) {
+        ensureCapacity(size + flvData.size + TAG_OVERHEAD);
+        if (count == 0) {
+            firstDts = flvData.dts;
+            firstEncodedNanos = flvData.encodedNanos;
+            firstDequeuedNanos = flvData.dequeuedNanos;
+        }
+        int pos = RtmpClient.DIRECT_HEADROOM + size;
+        Packager.FLVPackager.fillFlvTagHeader(buffer, pos, RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, flvData.size, flvData.dts);
+        pos += Packager.FLVPackager.FLV_TAG_LENGTH;
+        buffer.position(pos);
+        if (flvData.directBuffer != null) {
+            ByteBuffer src = flvData.directBuffer;
+            int srcPosition = src.position();
+            int srcLimit = src.limit();
+            src.limit(srcPosition + flvData.size);
+            buffer.put(src);
+            src.limit(srcLimit);
+            src.position(srcPosition);
+        } else {
+            buffer.put(flvData.byteBuffer, 0, flvData.size);
+        }
+        Packager.FLVPackager.fillFlvTagFooter(buffer, pos + flvData.size, flvData.size);
+        size += flvData.size + TAG_OVERHEAD;
+        payloadBytes += flvData.size;
+        ++count;
+    }
+
+    private void ensureCapacity(int bodySize) {
+        if (RtmpClient.DIRECT_HEADROOM + bodySize <= buffer.capacity()) {
+            return;
+        }
+        int capacity = buffer.capacity() * 2;
+        while (capacity < RtmpClient.DIRECT_HEADROOM + bodySize) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffer.position(0);
+        buffer.limit(RtmpClient.DIRECT_HEADROOM + size);
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * tags in the bundle
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * body of the Aggregate message,from RtmpClient.DIRECT_HEADROOM on,{@link #getSize()} bytes
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * audio data bytes in the bundle,without FLV tag framing
+     */
+    int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * timestamp of the Aggregate message
+     */
+    int getDts() {
+        return firstDts;
+    }
+
+    /**
+     * latency stamps of the first,oldest tag,see RESLatencyTracer
+     */
+    long getEncodedNanos() {
+        return firstEncodedNanos;
+    }
+
+    long getDequeuedNanos() {
+        return firstDequeuedNanos;
+    }
+
+    void reset() {
+        size = 0;
+        count = 0;
+        payloadBytes = 0;
+        firstDts = 0;
+        firstEncodedNanos = 0;
+        firstDequeuedNanos = 0;
+    }
+}
@@ -0,0 +1,258 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reassembles rtmp messages from a chunk stream.
+ * Received bytes are put into {@link #getBuffer()},{@link #parse(Listener)} hands out every complete message.
+ * Chunk payloads are taken as they arrive,only a partial chunk header is kept for the next call,
+ * so neither the buffer nor a message payload grows beyond what the peer really sent.
+ * Set Chunk Size and Abort are left to the listener,see {@link #setChunkSize(int)} and {@link #abort(int)}.
+ * Not thread safe.
+ */
+class RESChunkReader {
+    private static final int MAX_HEADER_SIZE = 3 + 11 + 4;
+    private static final long EXTENDED_TIMESTAMP = 0xffffff;
+    /**
+     * a chunk never holds more than a message,whose length is 24bit
+     */
+    static final int MAX_CHUNK_SIZE = 0xffffff;
+    /**
+     * payload allocated for a new message before its bytes arrive
+     */
+    private static final int INITIAL_PAYLOAD_SIZE = 4096;
+
+    interface Listener {
+        void onMessage(Message message) throws IOException;
+    }
+
+    static class Message {
+        int csid;
+        int type;
+        int streamId;
+        /**
+         * ms,unsigned 32bit
+         */
+        long timestamp;
+        byte[] payload;
+    }
+
+    private static class State {
+        long timestamp;
+        long delta;
+        int length;
+        int type;
+        int streamId;
+        boolean extended;
+        byte[] payload;
+        int received;
+    }
+
+    private int chunkSize = RESChunkWriter.DEFAULT_CHUNK_SIZE;
+    private State[] states = new State[64];
+    private final ByteBuffer buffer;
+    /**
+     * chunk stream whose chunk payload is being received,and the bytes of it still to come
+     */
+    private State current;
+    private int currentCsid;
+    private int chunkRemaining = 0;
+
+    RESChunkReader(int bufferSize) {
+        buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_HEADER_SIZE));
+    }
+
+    /**
+     * in fill mode,put received bytes from position() on
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @param chunkSize clamped to MAX_CHUNK_SIZE,larger sizes read the same
+     */
+    void setChunkSize(int chunkSize) throws IOException {
+        if (chunkSize < 1) {
+            throw new IOException("invalid chunk size " + chunkSize);
+        }
+        this.chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * drop the partial message of a chunk stream
+     */
+    void abort(int csid) {
+        if (csid >= 0 && csid < states.length && states[csid] != null) {
+            states[csid].payload = null;
+            states[csid].received = 0;
+        }
+    }
+
+    /**
+     * parse everything complete in the buffer,the listener may change the chunk size in between
+     */
+    void parse(Listener listener) throws IOException {
+        buffer.flip();
+        try {
+            while (parseChunk(listener)) {
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private boolean parseChunk(Listener listener) throws IOException {
+        if (chunkRemaining == 0 && !parseChunkHeader()) {
+            return false;
+        }
+        ByteBuffer in = buffer;
+        int n = Math.min(chunkRemaining, in.remaining());
+        if (n == 0 && chunkRemaining > 0) {
+            return false;
+        }
+        State state = current;
+        if (state.payload.length < state.received + n) {
+            // grow with what arrives,the message length alone is up to the peer
+            int capacity = Math.min(state.length, Math.max(state.received + n, state.payload.length * 2));
+            state.payload = Arrays.copyOf(state.payload, capacity);
+        }
+        in.get(state.payload, state.received, n);
+        state.received += n;
+        chunkRemaining -= n;
+        if (chunkRemaining > 0) {
+            return false;
+        }
+        if (state.received == state.length) {
+            Message message = new Message();
+            message.csid = currentCsid;
+            message.type = state.type;
+            message.streamId = state.streamId;
+            message.timestamp = state.timestamp;
+            message.payload = state.payload;
+            state.payload = null;
+            state.received = 0;
+            current = null;
+            listener.onMessage(message);
+        }
+        return true;
+    }
+
+    /**
+     * consume a whole chunk header and make its stream the current one
+     *
+     * @return false if the header is not complete yet
+     */
+    private boolean parseChunkHeader() throws IOException {
+        ByteBuffer in = buffer;
+        int start = in.position();
+        int available = in.remaining();
+        if (available < 1) {
+            return false;
+        }
+        int first = in.get(start) & 0xff;
+        int fmt = first >> 6;
+        int csid = first & 0x3f;
+        int basicLength = 1;
+        if (csid == 0) {
+            if (available < 2) {
+                return false;
+            }
+            csid = 64 + (in.get(start + 1) & 0xff);
+            basicLength = 2;
+        } else if (csid == 1) {
+            if (available < 3) {
+                return false;
+            }
+            csid = 64 + (in.get(start + 1) & 0xff) + ((in.get(start + 2) & 0xff) << 8);
+            basicLength = 3;
+        }
+        int messageHeaderLength = fmt == 0 ? 11 : fmt == 1 ? 7 : fmt == 2 ? 3 : 0;
+        if (available < basicLength + messageHeaderLength) {
+            return false;
+        }
+        State state = stateOf(csid);
+        if (fmt == 3 && state.length < 0) {
+            throw new IOException("fmt 3 chunk on a new chunk stream " + csid);
+        }
+        int pos = start + basicLength;
+        long field = 0;
+        int length = state.length;
+        int type = state.type;
+        int streamId = state.streamId;
+        boolean extended = state.extended;
+        if (fmt <= 2) {
+            field = getInt24(in, pos);
+            extended = field == EXTENDED_TIMESTAMP;
+        }
+        if (fmt <= 1) {
+            length = getInt24(in, pos + 3);
+            type = in.get(pos + 6) & 0xff;
+        }
+        if (fmt == 0) {
+            streamId = (in.get(pos + 7) & 0xff) | ((in.get(pos + 8) & 0xff) << 8)
+                    | ((in.get(pos + 9) & 0xff) << 16) | ((in.get(pos + 10) & 0xff) << 24);
+        }
+        pos += messageHeaderLength;
+        if (extended) {
+            if (start + available < pos + 4) {
+                return false;
+            }
+            long extendedField = in.getInt(pos) & 0xffffffffL;
+            if (fmt <= 2) {
+                field = extendedField;
+            }
+            pos += 4;
+        }
+        boolean newMessage = state.payload == null;
+        int n = newMessage ? Math.min(chunkSize, length) : Math.min(chunkSize, state.length - state.received);
+        if (newMessage) {
+            if (fmt == 0) {
+                state.timestamp = field;
+                state.delta = 0;
+            } else if (fmt <= 2) {
+                state.delta = field;
+                state.timestamp = (state.timestamp + field) & 0xffffffffL;
+            } else {
+                state.timestamp = (state.timestamp + state.delta) & 0xffffffffL;
+            }
+            state.length = length;
+            state.type = type;
+            state.streamId = streamId;
+            state.extended = extended;
+            state.payload = new byte[Math.min(length, INITIAL_PAYLOAD_SIZE)];
+            state.received = 0;
+        } else if (fmt != 3) {
+            throw new IOException("fmt " + fmt + " chunk inside a message on chunk stream " + csid);
+        }
+        in.position(pos);
+        current = state;
+        currentCsid = csid;
+        chunkRemaining = n;
+        return true;
+    }
+
+    private State stateOf(int csid) {
+        if (csid >= states.length) {
+            State[] grown = new State[Math.max(csid + 1, states.length * 2)];
+            System.arraycopy(states, 0, grown, 0, states.length);
+            states = grown;
+        }
+        State state = states[csid];
+        if (state == null) {
+            state = states[csid] = new State();
+            state.length = -1;
+        }
+        return state;
+    }
+
+    private static int getInt24(ByteBuffer in, int pos) {
+        return ((in.get(pos) & 0xff) << 16) | ((in.get(pos + 1) & 0xff) << 8) | (in.get(pos + 2) & 0xff);
+    }
+}
@@ -0,0 +1,142 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes rtmp messages as chunks into a ByteBuffer,the java twin of the native scatter-gather writer.
+ * A header is compressed against the previous message of its chunk stream:
+ * fmt 1 if size or type changed,fmt 2 if only the timestamp delta changed,fmt 3 if the delta repeats.
+ * fmt 0 for the first message,another message stream,a timestamp going back
+ * or a delta that needs an extended timestamp.
+ * Chunk stream ids 2-63 only.Not thread safe.
+ */
+class RESChunkWriter {
+    static final int DEFAULT_CHUNK_SIZE = 128;
+    static final int MAX_CHUNK_SIZE = 65536;
+    static final int MAX_CSID = 63;
+    private static final long EXTENDED_TIMESTAMP = 0xffffff;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private final State[] states = new State[MAX_CSID + 1];
+    private long headerBytes = 0;
+
+    private static class State {
+        boolean valid;
+        long timestamp;
+        int size;
+        int type;
+        int streamId;
+        boolean deltaValid;
+        long delta;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * takes effect for the next message,announce it with Set Chunk Size before
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    }
+
+    /**
+     * @return chunk header bytes written so far
+     */
+    long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /**
+     * @return upper bound of the bytes a message of size takes on the wire
+     */
+    int maxWireSize(int size) {
+        int chunks = size == 0 ? 1 : (size + chunkSize - 1) / chunkSize;
+        return size + 16 + (chunks - 1) * 5;
+    }
+
+    /**
+     * @param src     payload is src[offset,offset+size),src position and limit are left as they were
+     * @param dst     needs {@link #maxWireSize(int)} bytes remaining
+     */
+    void write(ByteBuffer dst, int csid, int type, int streamId, int timestamp, ByteBuffer src, int offset, int size) {
+        if (csid < 2 || csid > MAX_CSID) {
+            throw new IllegalArgumentException("unsupported chunk stream id " + csid);
+        }
+        State state = states[csid];
+        if (state == null) {
+            state = states[csid] = new State();
+        }
+        long ts = timestamp & 0xffffffffL;
+        long delta = (ts - state.timestamp) & 0xffffffffL;
+        int fmt;
+        if (!state.valid || state.streamId != streamId || ts < state.timestamp || delta >= EXTENDED_TIMESTAMP) {
+            fmt = 0;
+        } else if (state.size != size || state.type != type) {
+            fmt = 1;
+        } else if (!state.deltaValid || state.delta != delta) {
+            fmt = 2;
+        } else {
+            fmt = 3;
+        }
+        long tsField = fmt == 0 ? ts : delta;
+        boolean extended = fmt != 3 && tsField >= EXTENDED_TIMESTAMP;
+        int start = dst.position();
+        dst.put((byte) ((fmt << 6) | csid));
+        if (fmt != 3) {
+            putInt24(dst, extended ? (int) EXTENDED_TIMESTAMP : (int) tsField);
+        }
+        if (fmt <= 1) {
+            putInt24(dst, size);
+            dst.put((byte) type);
+        }
+        if (fmt == 0) {
+            // message stream id is little endian
+            dst.put((byte) streamId);
+            dst.put((byte) (streamId >> 8));
+            dst.put((byte) (streamId >> 16));
+            dst.put((byte) (streamId >> 24));
+        }
+        if (extended) {
+            dst.putInt((int) tsField);
+        }
+        headerBytes += dst.position() - start;
+
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+        int written = 0;
+        do {
+            if (written > 0) {
+                dst.put((byte) (0xc0 | csid));
+                headerBytes += 1;
+                if (extended) {
+                    dst.putInt((int) tsField);
+                    headerBytes += 4;
+                }
+            }
+            int n = Math.min(chunkSize, size - written);
+            src.limit(src.capacity());
+            src.position(offset + written);
+            src.limit(offset + written + n);
+            dst.put(src);
+            written += n;
+        } while (written < size);
+        src.limit(srcLimit);
+        src.position(srcPosition);
+
+        state.valid = true;
+        state.timestamp = ts;
+        state.size = size;
+        state.type = type;
+        state.streamId = streamId;
+        state.deltaValid = fmt != 0;
+        state.delta = delta;
+    }
+
+    private static void putInt24(ByteBuffer dst, int value) {
+        dst.put((byte) (value >> 16));
+        dst.put((byte) (value >> 8));
+        dst.put((byte) value);
+    }
+}
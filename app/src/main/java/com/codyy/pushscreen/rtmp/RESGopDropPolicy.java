@@ -0,0 +1,98 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Congestion drop policy working on whole GOPs.
+ * Once a video frame is dropped every following frame is dropped too until the next IDR,
+ * so the decoder never gets a P-frame whose reference is missing.
+ * A video frame the queue refused on offer breaks its GOP the same way.
+ * Audio and sequence headers (droppable==false) are never dropped.
+ * onRejected() is called from the encoder threads,everything else from the sender thread only.
+ */
+class RESGopDropPolicy {
+    private static final long NOT_BROKEN = Long.MAX_VALUE;
+    /**
+     * video lane sequence number of the first tag after a refused one,NOT_BROKEN if none is pending
+     */
+    private final AtomicLong brokenFrom = new AtomicLong(NOT_BROKEN);
+    private boolean dropping = false;
+    private int gopDroppedFrames = 0;
+    private long gopDroppedBytes = 0;
+    private int lastDroppedFrames = 0;
+    private long lastDroppedBytes = 0;
+
+    /**
+     * the send queue refused flvData,wait-free
+     *
+     * @param nextSequence video lane sequence number the next accepted tag gets
+     */
+    void onRejected(RESFlvData flvData, long nextSequence) {
+        if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO && flvData.droppable) {
+            brokenFrom.compareAndSet(NOT_BROKEN, nextSequence);
+        }
+    }
+
+    /**
+     * @param sequence video lane sequence number of flvData
+     * @param crowded  whether the send queue is above its crowded threshold
+     * @return true if flvData must not be sent
+     */
+    boolean shouldDrop(RESFlvData flvData, long sequence, boolean crowded) {
+        if (flvData.flvTagType != RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO || !flvData.droppable) {
+            return false;
+        }
+        long broken = brokenFrom.get();
+        boolean afterRejected = sequence >= broken;
+        if (afterRejected) {
+            brokenFrom.compareAndSet(broken, NOT_BROKEN);
+        }
+        if (flvData.isKeyframe()) {
+            /**
+             * an IDR ends the broken GOP and is always sent,
+             * the decoder can resume from it
+             */
+            if (dropping) {
+                finishGop();
+            }
+            return false;
+        }
+        if (!dropping) {
+            if (!crowded && !afterRejected) {
+                return false;
+            }
+            dropping = true;
+            gopDroppedFrames = 0;
+            gopDroppedBytes = 0;
+        }
+        ++gopDroppedFrames;
+        gopDroppedBytes += flvData.size;
+        return true;
+    }
+
+    private void finishGop() {
+        dropping = false;
+        lastDroppedFrames = gopDroppedFrames;
+        lastDroppedBytes = gopDroppedBytes;
+    }
+
+    boolean isDropping() {
+        return dropping;
+    }
+
+    void reset() {
+        dropping = false;
+        gopDroppedFrames = 0;
+        gopDroppedBytes = 0;
+    }
+
+    int getLastDroppedFrames() {
+        return lastDroppedFrames;
+    }
+
+    long getLastDroppedBytes() {
+        return lastDroppedBytes;
+    }
+}
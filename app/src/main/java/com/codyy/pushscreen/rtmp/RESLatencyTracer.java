@@ -0,0 +1,106 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESLatencyHistogram;
+
+/**
+ * Where the time of a frame goes between the encoder and the socket,
+ * one {@link RESLatencyHistogram} per stage and per media type,
+ * fed from the System.nanoTime() stamps a {@link RESFlvData} collects on its way.
+ * A stage is skipped for frames missing one of its stamps,e.g. sequence headers have no encoder stamp.
+ * Aggregated audio goes out in one write,it counts once for the write and total stages,
+ * with the stamps of its oldest tag.
+ * Fed by the sender thread,read from any thread.
+ */
+public class RESLatencyTracer {
+    /**
+     * encoder output to packaged
+     */
+    public static final int STAGE_PACKAGE = 0;
+    /**
+     * packaged to enqueued in the sender,the interleaver holds frames here
+     */
+    public static final int STAGE_INTERLEAVE = 1;
+    /**
+     * enqueued to dequeued by the sender thread
+     */
+    public static final int STAGE_QUEUE = 2;
+    /**
+     * dequeued to the write returned,including the time spent in a batch or an aggregate
+     */
+    public static final int STAGE_WRITE = 3;
+    /**
+     * encoder output to the write returned
+     */
+    public static final int STAGE_TOTAL = 4;
+    private static final String[] STAGE_NAMES = {"package", "interleave", "queue", "write", "total"};
+    private static final int STAGES = STAGE_NAMES.length;
+    private final RESLatencyHistogram[] audio = new RESLatencyHistogram[STAGES];
+    private final RESLatencyHistogram[] video = new RESLatencyHistogram[STAGES];
+
+    public RESLatencyTracer() {
+        for (int i = 0; i < STAGES; i++) {
+            audio[i] = new RESLatencyHistogram();
+            video[i] = new RESLatencyHistogram();
+        }
+    }
+
+    /**
+     * @param flvTagType RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO,anything else counts as audio
+     * @param stage      one of the STAGE_ constants
+     */
+    public RESLatencyHistogram getHistogram(int flvTagType, int stage) {
+        return histogramsOf(flvTagType)[stage];
+    }
+
+    private RESLatencyHistogram[] histogramsOf(int flvTagType) {
+        return flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO ? video : audio;
+    }
+
+    /**
+     * the stages up to the sender thread,flvData.dequeuedNanos has to be set
+     */
+    void onDequeued(RESFlvData flvData) {
+        RESLatencyHistogram[] histograms = histogramsOf(flvData.flvTagType);
+        record(histograms[STAGE_PACKAGE], flvData.encodedNanos, flvData.packagedNanos);
+        record(histograms[STAGE_INTERLEAVE], flvData.packagedNanos, flvData.enqueuedNanos);
+        record(histograms[STAGE_QUEUE], flvData.enqueuedNanos, flvData.dequeuedNanos);
+    }
+
+    /**
+     * @param writtenNanos the write returned successfully
+     */
+    void onWritten(int flvTagType, long encodedNanos, long dequeuedNanos, long writtenNanos) {
+        RESLatencyHistogram[] histograms = histogramsOf(flvTagType);
+        record(histograms[STAGE_WRITE], dequeuedNanos, writtenNanos);
+        record(histograms[STAGE_TOTAL], encodedNanos, writtenNanos);
+    }
+
+    private static void record(RESLatencyHistogram histogram, long from, long to) {
+        if (from != 0 && to != 0) {
+            histogram.record(to - from);
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGES; i++) {
+            audio[i].reset();
+            video[i].reset();
+        }
+    }
+
+    /**
+     * one line per media type and stage
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGES; i++) {
+            sb.append("video ").append(STAGE_NAMES[i]).append(' ').append(video[i]).append('\n');
+        }
+        for (int i = 0; i < STAGES; i++) {
+            sb.append("audio ").append(STAGE_NAMES[i]).append(' ').append(audio[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link RESRtmpTransport} on librtmp,a thin wrapper around the native handle of {@link RtmpClient}.
+ */
+public class RESLibRtmpTransport implements RESRtmpTransport {
+    private long jniRtmpPointer = 0;
+
+    @Override
+    public boolean open(String url, int chunkSize) {
+        jniRtmpPointer = RtmpClient.open(url, true, chunkSize);
+        return jniRtmpPointer != 0;
+    }
+
+    @Override
+    public int write(byte[] data, int size, int type, int ts) {
+        return RtmpClient.write(jniRtmpPointer, data, size, type, ts);
+    }
+
+    @Override
+    public int write(ByteBuffer data, int offset, int size, int type, int ts) {
+        return RtmpClient.write(jniRtmpPointer, data, offset, size, type, ts);
+    }
+
+    @Override
+    public int writeBatch(ByteBuffer[] data, int[] offsets, int[] sizes, int[] types, int[] timestamps, int count, int[] results) {
+        return RtmpClient.writeBatch(jniRtmpPointer, data, offsets, sizes, types, timestamps, count, results);
+    }
+
+    @Override
+    public int close() {
+        int res = RtmpClient.close(jniRtmpPointer);
+        jniRtmpPointer = 0;
+        return res;
+    }
+
+    @Override
+    public String getServerIpAddr() {
+        return RtmpClient.getIpAddr(jniRtmpPointer);
+    }
+
+    @Override
+    public long getHeaderBytes() {
+        return RtmpClient.getHeaderBytes(jniRtmpPointer);
+    }
+
+    @Override
+    public long getPacketPoolHits() {
+        return RtmpClient.getPacketPoolHits(jniRtmpPointer);
+    }
+
+    @Override
+    public long getPacketPoolMisses() {
+        return RtmpClient.getPacketPoolMisses(jniRtmpPointer);
+    }
+}
@@ -0,0 +1,595 @@
+package com.codyy.pushscreen.rtmp;
+
+import android.util.Log;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Pure java rtmp publisher on a non-blocking SocketChannel,an alternative to librtmp.
+ * Covers the simple handshake,connect/createStream/publish,Set Chunk Size,
+ * window acknowledgements and ping responses.
+ * Messages are chunked straight into one direct output buffer and written with as few writes as possible,
+ * a full socket buffer is waited out with the selector,answering the server meanwhile.
+ * Unlike the native writev path every payload byte is copied once into that buffer,see {@link #writeBatch}.
+ * Control messages received while publishing are serviced every SERVICE_INTERVAL ms.
+ * Runs on a plain JVM.Called from one thread only.
+ */
+public class RESNioRtmpClient implements RESRtmpTransport {
+    private static final String TAG = "RESNioRtmpClient";
+    public static final int ERROR = -1;
+    static final int CONNECT_TIMEOUT = 10000;
+    static final int IO_TIMEOUT = 10000;
+    static final int HANDSHAKE_SIZE = 1536;
+    static final int RTMP_VERSION = 3;
+
+    static final int TYPE_SET_CHUNK_SIZE = 1;
+    static final int TYPE_ABORT = 2;
+    static final int TYPE_ACK = 3;
+    static final int TYPE_USER_CONTROL = 4;
+    static final int TYPE_WINDOW_ACK_SIZE = 5;
+    static final int TYPE_SET_PEER_BANDWIDTH = 6;
+    static final int TYPE_COMMAND_AMF0 = 20;
+    static final int USER_CONTROL_PING_REQUEST = 6;
+    static final int USER_CONTROL_PING_RESPONSE = 7;
+
+    static final int CSID_CONTROL = 2;
+    static final int CSID_COMMAND = 3;
+    static final int CSID_VIDEO = 4;
+    static final int CSID_AUDIO = 5;
+
+    private static final int SERVICE_INTERVAL = 200;
+    private static final int OUT_INITIAL_CAPACITY = 64 * 1024;
+    /**
+     * a batch is flushed once this much is buffered
+     */
+    private static final int FLUSH_THRESHOLD = 256 * 1024;
+    private static final int WINDOW_ACK_SIZE = 2500000;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private ByteBuffer out = ByteBuffer.allocateDirect(OUT_INITIAL_CAPACITY);
+    private final RESChunkReader reader = new RESChunkReader(64 * 1024);
+    private final RESChunkWriter writer = new RESChunkWriter();
+    private final RESChunkReader.Listener messageListener = new RESChunkReader.Listener() {
+        @Override
+        public void onMessage(RESChunkReader.Message message) throws IOException {
+            handleMessage(message);
+        }
+    };
+    private RESRtmpUrl url;
+    private String serverIpAddr;
+    private int streamId = 0;
+    private int transactionId = 0;
+    private boolean publishing = false;
+    private boolean broken = false;
+    private IOException lastError;
+    private long lastServiceTime = 0;
+
+    private long bytesIn = 0;
+    private long lastAckBytesIn = 0;
+    private long serverWindowAckSize = 0;
+    private boolean pendingAck = false;
+    private boolean pendingPong = false;
+    private int pingTimestamp = 0;
+    private boolean pendingWindowAckSize = false;
+
+    private int awaitedTransaction = -1;
+    private List<Object> awaitedResult;
+    private Map<?, ?> publishStatus;
+
+    @Override
+    public boolean open(String url, int chunkSize) {
+        try {
+            this.url = RESRtmpUrl.parse(url);
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            connectSocket(deadline);
+            handshake(deadline);
+            connectApp(deadline);
+            if (chunkSize > RESChunkWriter.DEFAULT_CHUNK_SIZE) {
+                sendChunkSize(chunkSize, deadline);
+            }
+            createStream(deadline);
+            publish(deadline);
+            lastServiceTime = System.currentTimeMillis();
+            Log.d(TAG, "publishing " + this.url.playPath + " on " + serverIpAddr + ",streamId=" + streamId);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "open failed:" + url, e);
+            lastError = e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+            closeChannel();
+            return false;
+        }
+    }
+
+    private void connectSocket(long deadline) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(url.host, url.port);
+        if (address.isUnresolved()) {
+            throw new IOException("can not resolve " + url.host);
+        }
+        serverIpAddr = address.getAddress().getHostAddress();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        selector = Selector.open();
+        key = channel.register(selector, 0);
+        if (!channel.connect(address)) {
+            await(SelectionKey.OP_CONNECT, deadline);
+            channel.finishConnect();
+        }
+    }
+
+    /**
+     * C0C1 with random bytes,S1 echoed back as C2
+     */
+    private void handshake(long deadline) throws IOException {
+        ByteBuffer c0c1 = ByteBuffer.allocate(1 + HANDSHAKE_SIZE);
+        c0c1.put((byte) RTMP_VERSION);
+        c0c1.putInt((int) System.currentTimeMillis());
+        c0c1.putInt(0);
+        byte[] random = new byte[HANDSHAKE_SIZE - 8];
+        new Random().nextBytes(random);
+        c0c1.put(random);
+        c0c1.flip();
+        writeFully(c0c1, deadline);
+        ByteBuffer s0s1 = ByteBuffer.allocate(1 + HANDSHAKE_SIZE);
+        readFully(s0s1, deadline);
+        if (s0s1.get(0) != RTMP_VERSION) {
+            throw new IOException("unsupported rtmp version " + s0s1.get(0));
+        }
+        s0s1.position(1);
+        writeFully(s0s1, deadline);
+        readFully(ByteBuffer.allocate(HANDSHAKE_SIZE), deadline);
+    }
+
+    private void connectApp(long deadline) throws IOException {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("app", url.app);
+        info.put("type", "nonprivate");
+        info.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        info.put("tcUrl", url.tcUrl);
+        int transaction = sendCommand(0, "connect", info);
+        awaitResult(transaction, deadline);
+    }
+
+    private void sendChunkSize(int chunkSize, long deadline) throws IOException {
+        chunkSize = Math.min(chunkSize, RESChunkWriter.MAX_CHUNK_SIZE);
+        sendControl(TYPE_SET_CHUNK_SIZE, chunkSize);
+        flush(deadline);
+        writer.setChunkSize(chunkSize);
+    }
+
+    private void createStream(long deadline) throws IOException {
+        sendCommand(0, "releaseStream", null, url.playPath);
+        sendCommand(0, "FCPublish", null, url.playPath);
+        int transaction = sendCommand(0, "createStream", (Object) null);
+        List<Object> result = awaitResult(transaction, deadline);
+        if (result.size() < 4 || !(result.get(3) instanceof Number)) {
+            throw new IOException("createStream returned no stream id");
+        }
+        streamId = ((Number) result.get(3)).intValue();
+    }
+
+    private void publish(long deadline) throws IOException {
+        publishStatus = null;
+        sendCommand(streamId, "publish", null, url.playPath, "live");
+        flush(deadline);
+        while (publishStatus == null) {
+            receive(deadline);
+        }
+        Object code = publishStatus.get("code");
+        if (!"NetStream.Publish.Start".equals(code)) {
+            throw new IOException("publish rejected:" + code + "," + publishStatus.get("description"));
+        }
+        publishing = true;
+    }
+
+    /**
+     * @return the transaction id
+     */
+    private int sendCommand(int messageStreamId, String name, Object... args) throws IOException {
+        int transaction = ++transactionId;
+        ByteBuffer body = ByteBuffer.allocate(4096);
+        RESAmf0.write(body, name);
+        RESAmf0.write(body, (double) transaction);
+        for (Object arg : args) {
+            RESAmf0.write(body, arg);
+        }
+        body.flip();
+        append(CSID_COMMAND, TYPE_COMMAND_AMF0, messageStreamId, 0, body, 0, body.limit());
+        return transaction;
+    }
+
+    private void sendControl(int type, int value) {
+        ByteBuffer body = ByteBuffer.allocate(4);
+        body.putInt(0, value);
+        append(CSID_CONTROL, type, 0, 0, body, 0, 4);
+    }
+
+    private List<Object> awaitResult(int transaction, long deadline) throws IOException {
+        awaitedTransaction = transaction;
+        awaitedResult = null;
+        flush(deadline);
+        while (awaitedResult == null) {
+            receive(deadline);
+        }
+        awaitedTransaction = -1;
+        if ("_error".equals(awaitedResult.get(0))) {
+            throw new IOException("command failed:" + awaitedResult);
+        }
+        return awaitedResult;
+    }
+
+    private void handleMessage(RESChunkReader.Message message) throws IOException {
+        try {
+            handleMessage(message.type, ByteBuffer.wrap(message.payload));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("malformed message of type " + message.type, e);
+        }
+    }
+
+    private void handleMessage(int type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case TYPE_SET_CHUNK_SIZE:
+                reader.setChunkSize(payload.getInt() & 0x7fffffff);
+                break;
+            case TYPE_ABORT:
+                reader.abort(payload.getInt());
+                break;
+            case TYPE_USER_CONTROL:
+                if (payload.getShort() == USER_CONTROL_PING_REQUEST) {
+                    pingTimestamp = payload.getInt();
+                    pendingPong = true;
+                }
+                break;
+            case TYPE_WINDOW_ACK_SIZE:
+                serverWindowAckSize = payload.getInt() & 0xffffffffL;
+                break;
+            case TYPE_SET_PEER_BANDWIDTH:
+                pendingWindowAckSize = true;
+                break;
+            case TYPE_COMMAND_AMF0:
+                handleCommand(RESAmf0.readAll(payload));
+                break;
+            default:
+                // acks,data and media from the server are of no use to a publisher
+                break;
+        }
+    }
+
+    private void handleCommand(List<Object> values) {
+        if (values.size() < 2) {
+            return;
+        }
+        Object name = values.get(0);
+        if (("_result".equals(name) || "_error".equals(name)) && values.get(1) instanceof Number
+                && ((Number) values.get(1)).intValue() == awaitedTransaction) {
+            awaitedResult = values;
+        } else if ("onStatus".equals(name) && values.size() >= 4 && values.get(3) instanceof Map) {
+            Map<?, ?> status = (Map<?, ?>) values.get(3);
+            Object code = status.get("code");
+            Log.d(TAG, "onStatus " + code);
+            if (!publishing && code instanceof String && ((String) code).startsWith("NetStream.Publish.")) {
+                publishStatus = status;
+            }
+        }
+    }
+
+    private static int csidOf(int type) {
+        switch (type) {
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_INFO:
+                return CSID_COMMAND;
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO:
+                return CSID_VIDEO;
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO:
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE:
+                return CSID_AUDIO;
+            default:
+                return -1;
+        }
+    }
+
+    private void append(int csid, int type, int messageStreamId, int timestamp, ByteBuffer src, int offset, int size) {
+        int needed = writer.maxWireSize(size);
+        if (out.remaining() < needed) {
+            int capacity = out.capacity();
+            while (capacity - out.position() < needed) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+        writer.write(out, csid, type, messageStreamId, timestamp, src, offset, size);
+    }
+
+    /**
+     * write out everything buffered,then whatever the server asked for meanwhile
+     */
+    private void flush(long deadline) throws IOException {
+        do {
+            out.flip();
+            try {
+                writeFully(out, deadline);
+            } finally {
+                out.clear();
+            }
+        } while (appendPendingControl());
+    }
+
+    private boolean appendPendingControl() {
+        boolean any = false;
+        if (pendingWindowAckSize) {
+            pendingWindowAckSize = false;
+            sendControl(TYPE_WINDOW_ACK_SIZE, WINDOW_ACK_SIZE);
+            any = true;
+        }
+        if (pendingAck) {
+            pendingAck = false;
+            lastAckBytesIn = bytesIn;
+            sendControl(TYPE_ACK, (int) bytesIn);
+            any = true;
+        }
+        if (pendingPong) {
+            pendingPong = false;
+            ByteBuffer body = ByteBuffer.allocate(6);
+            body.putShort(0, (short) USER_CONTROL_PING_RESPONSE);
+            body.putInt(2, pingTimestamp);
+            append(CSID_CONTROL, TYPE_USER_CONTROL, 0, 0, body, 0, 6);
+            any = true;
+        }
+        return any;
+    }
+
+    private void writeFully(ByteBuffer src, long deadline) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                int ready = await(SelectionKey.OP_WRITE | (publishingOrConnected() ? SelectionKey.OP_READ : 0), deadline);
+                if ((ready & SelectionKey.OP_READ) != 0) {
+                    readAvailable();
+                }
+            }
+        }
+    }
+
+    /**
+     * after the handshake everything read is a chunk stream
+     */
+    private boolean publishingOrConnected() {
+        return transactionId > 0;
+    }
+
+    private void readFully(ByteBuffer dst, long deadline) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst);
+            if (n < 0) {
+                throw new EOFException("closed by server");
+            } else if (n == 0) {
+                await(SelectionKey.OP_READ, deadline);
+            }
+        }
+    }
+
+    /**
+     * wait for input and handle it
+     */
+    private void receive(long deadline) throws IOException {
+        if (readAvailable() == 0) {
+            await(SelectionKey.OP_READ, deadline);
+            readAvailable();
+        }
+        if (pendingAck || pendingPong || pendingWindowAckSize) {
+            flush(deadline);
+        }
+    }
+
+    /**
+     * @return bytes read,whatever the socket had without blocking
+     */
+    private int readAvailable() throws IOException {
+        int total = 0;
+        for (;;) {
+            ByteBuffer buffer = reader.getBuffer();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("closed by server");
+            }
+            if (n > 0) {
+                total += n;
+                bytesIn += n;
+                reader.parse(messageListener);
+                if (serverWindowAckSize > 0 && bytesIn - lastAckBytesIn >= serverWindowAckSize) {
+                    pendingAck = true;
+                }
+            }
+            if (n == 0 || buffer.hasRemaining()) {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * @return ready ops
+     */
+    private int await(int ops, long deadline) throws IOException {
+        key.interestOps(ops);
+        try {
+            for (;;) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("rtmp io timeout");
+                }
+                selector.select(remaining);
+                if (selector.selectedKeys().remove(key)) {
+                    int ready = key.readyOps() & ops;
+                    if (ready != 0) {
+                        return ready;
+                    }
+                }
+            }
+        } finally {
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * answer pings and acknowledge received bytes,
+     * a publisher rarely gets anything so this is only looked at every SERVICE_INTERVAL ms
+     */
+    private void maybeService(long deadline) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastServiceTime < SERVICE_INTERVAL) {
+            return;
+        }
+        lastServiceTime = now;
+        readAvailable();
+        if (pendingAck || pendingPong || pendingWindowAckSize) {
+            flush(deadline);
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int size, int type, int ts) {
+        return write(ByteBuffer.wrap(data), 0, size, type, ts);
+    }
+
+    @Override
+    public int write(ByteBuffer data, int offset, int size, int type, int ts) {
+        int csid = csidOf(type);
+        if (broken || !publishing || csid < 0) {
+            return ERROR;
+        }
+        try {
+            append(csid, type, streamId, ts, data, offset, size);
+            long deadline = System.currentTimeMillis() + IO_TIMEOUT;
+            flush(deadline);
+            maybeService(deadline);
+            return 0;
+        } catch (IOException e) {
+            fail(e);
+            return ERROR;
+        }
+    }
+
+    /**
+     * Copies every tag,chunk headers interleaved,into the output buffer and writes it with one write per
+     * FLUSH_THRESHOLD bytes,rather than a gathering write over the headers and payload slices.
+     * The copy is a direct to direct memcpy,about 6us for a 150KB IDR in 4KB chunks,
+     * where a gathering write would need a ByteBuffer view per chunk,i.e. garbage on every frame.
+     */
+    @Override
+    public int writeBatch(ByteBuffer[] data, int[] offsets, int[] sizes, int[] types, int[] timestamps, int count, int[] results) {
+        if (count <= 0 || count > RtmpClient.WRITE_BATCH_MAX) {
+            return ERROR;
+        }
+        for (int i = 0; i < count; i++) {
+            if (csidOf(types[i]) < 0) {
+                return ERROR;
+            }
+        }
+        int sent = 0;
+        if (!broken && publishing) {
+            try {
+                long deadline = System.currentTimeMillis() + IO_TIMEOUT;
+                for (int i = 0; i < count; i++) {
+                    if (out.position() >= FLUSH_THRESHOLD) {
+                        flush(deadline);
+                        sent = i;
+                    }
+                    append(csidOf(types[i]), types[i], streamId, timestamps[i], data[i], offsets[i], sizes[i]);
+                }
+                flush(deadline);
+                sent = count;
+                maybeService(deadline);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            results[i] = i < sent ? 0 : ERROR;
+        }
+        return sent;
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "write failed", e);
+        lastError = e;
+        broken = true;
+    }
+
+    /**
+     * @return what made the last open or write fail,null if nothing did
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public int close() {
+        if (channel != null && publishing && !broken) {
+            try {
+                long deadline = System.currentTimeMillis() + 1000;
+                // on message stream 0 like librtmp,the stream is named by the argument
+                sendCommand(0, "FCUnpublish", null, url.playPath);
+                sendCommand(0, "deleteStream", null, (double) streamId);
+                flush(deadline);
+            } catch (IOException e) {
+                Log.d(TAG, "unpublish failed," + e.getMessage());
+            }
+        }
+        publishing = false;
+        closeChannel();
+        return 0;
+    }
+
+    private void closeChannel() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "close," + e.getMessage());
+        }
+        selector = null;
+        channel = null;
+        key = null;
+    }
+
+    @Override
+    public String getServerIpAddr() {
+        return serverIpAddr;
+    }
+
+    @Override
+    public long getHeaderBytes() {
+        return writer.getHeaderBytes();
+    }
+
+    @Override
+    public long getPacketPoolHits() {
+        return 0;
+    }
+
+    @Override
+    public long getPacketPoolMisses() {
+        return 0;
+    }
+}
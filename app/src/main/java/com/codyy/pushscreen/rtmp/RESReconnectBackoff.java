@@ -0,0 +1,48 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between reconnect attempts.
+ * The n-th delay is min(maxDelay, minDelay * 2^n) scaled by a random factor in [1-jitter,1+jitter],
+ * so several clients that lost the same Wi-Fi do not hammer the server in lockstep.
+ * Not thread safe.
+ */
+class RESReconnectBackoff {
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final float jitter;
+    private final Random random;
+    private int attempts = 0;
+
+    RESReconnectBackoff(long minDelayMs, long maxDelayMs, float jitter, Random random) {
+        if (minDelayMs <= 0 || maxDelayMs < minDelayMs || jitter < 0f || jitter >= 1f) {
+            throw new IllegalArgumentException("invalid backoff " + minDelayMs + "-" + maxDelayMs + "," + jitter);
+        }
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * @return ms to wait before the next attempt
+     */
+    long nextDelay() {
+        long delay = maxDelayMs;
+        if (attempts < 31) {
+            delay = Math.min(maxDelayMs, minDelayMs << attempts);
+        }
+        ++attempts;
+        float factor = 1f + jitter * (2f * random.nextFloat() - 1f);
+        return (long) (delay * factor);
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    void reset() {
+        attempts = 0;
+    }
+}
@@ -1,88 +1,192 @@
 package com.codyy.pushscreen.rtmp;
 
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 import com.codyy.pushscreen.media.RESByteSpeedometer;
 import com.codyy.pushscreen.media.RESCoreParameters;
 import com.codyy.pushscreen.media.RESFlvData;
-import com.codyy.pushscreen.media.RESFrameRateMeter;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by lake on 16-4-8.
  */
 public class RESRtmpSender {
     private static final int TIMEGRANULARITY = 3000;
+    private static final int DEFAULT_MAX_INTERLEAVE_SKEW = 200;
+    private static final int DEFAULT_QUEUE_MAX_BYTES = 1024 * 1024;
+    private static final int DEFAULT_QUEUE_MAX_DELAY = 3000;
+    private static final int DEFAULT_RECONNECT_MIN_DELAY = 500;
+    private static final int DEFAULT_RECONNECT_MAX_DELAY = 30000;
+    private static final float RECONNECT_JITTER = 0.3f;
+    private static final int DEFAULT_CHUNK_SIZE = 4096;
+    private static final int DEFAULT_AUDIO_AGGREGATE_WINDOW = 80;
+    private static final int AUDIO_AGGREGATE_MAX_BYTES = 16 * 1024;
     public static final int FROM_AUDIO = 8;
     public static final int FROM_VIDEO = 6;
-    private WorkHandler workHandler;
-    private HandlerThread workHandlerThread;
+    private volatile WorkThread workThread;
     private final Object syncOp = new Object();
 
     public void prepare(RESCoreParameters coreParameters) {
         synchronized (syncOp) {
-            workHandlerThread = new HandlerThread("RESRtmpSender,workHandlerThread");
-            workHandlerThread.start();
-            workHandler = new WorkHandler(coreParameters.senderQueueLength,
-                    new FLvMetaData(coreParameters),
-                    workHandlerThread.getLooper());
+            RESSendBudget budget = new RESSendBudget(
+                    coreParameters.senderQueueMaxBytes <= 0 ? DEFAULT_QUEUE_MAX_BYTES : coreParameters.senderQueueMaxBytes,
+                    coreParameters.senderQueueMaxDelay <= 0 ? DEFAULT_QUEUE_MAX_DELAY : coreParameters.senderQueueMaxDelay);
+            workThread = new WorkThread(coreParameters.senderQueueLength,
+                    budget,
+                    coreParameters.senderMaxInterleaveSkew < 0 ? DEFAULT_MAX_INTERLEAVE_SKEW : coreParameters.senderMaxInterleaveSkew,
+                    new RESReconnectBackoff(
+                            coreParameters.senderReconnectMinDelay <= 0 ? DEFAULT_RECONNECT_MIN_DELAY : coreParameters.senderReconnectMinDelay,
+                            coreParameters.senderReconnectMaxDelay <= 0 ? DEFAULT_RECONNECT_MAX_DELAY : coreParameters.senderReconnectMaxDelay,
+                            RECONNECT_JITTER, new Random()),
+                    coreParameters.senderChunkSize <= 0 ? DEFAULT_CHUNK_SIZE : coreParameters.senderChunkSize,
+                    coreParameters.senderAudioAggregateWindow == 0 ? null : new RESAudioAggregator(
+                            coreParameters.senderAudioAggregateWindow < 0 ? DEFAULT_AUDIO_AGGREGATE_WINDOW : coreParameters.senderAudioAggregateWindow,
+                            AUDIO_AGGREGATE_MAX_BYTES),
+                    coreParameters.senderJavaTransport,
+                    new FLvMetaData(coreParameters));
+            workThread.start();
         }
     }
 
     public void setConnectionListener(RESConnectionListener connectionListener) {
         synchronized (syncOp) {
-            workHandler.setConnectionListener(connectionListener);
+            workThread.setConnectionListener(connectionListener);
+        }
+    }
+
+    /**
+     * @param keyFrameRequestListener called on the sender thread whenever video resumes
+     *                                only from the next IDR,e.g. after a reconnect
+     */
+    public void setKeyFrameRequestListener(OnKeyFrameRequestListener keyFrameRequestListener) {
+        synchronized (syncOp) {
+            workThread.keyFrameRequestListener = keyFrameRequestListener;
         }
     }
 
     public String getServerIpAddr() {
         synchronized (syncOp) {
-            return workHandler == null ? null : workHandler.getServerIpAddr();
+            return workThread == null ? null : workThread.getServerIpAddr();
         }
     }
 
     public float getSendFrameRate() {
         synchronized (syncOp) {
-            return workHandler == null ? 0 : workHandler.getSendFrameRate();
+            return workThread == null ? 0 : workThread.getSendFrameRate();
         }
     }
 
     public float getSendBufferFreePercent() {
         synchronized (syncOp) {
-            return workHandler == null ? 0 : workHandler.getSendBufferFreePercent();
+            return workThread == null ? 0 : workThread.getSendBufferFreePercent();
         }
     }
 
     public void start(String rtmpAddr) {
         synchronized (syncOp) {
-            workHandler.sendStart(rtmpAddr);
+            workThread.sendStart(rtmpAddr);
         }
     }
 
+    /**
+     * called from the encoder threads,lock free.
+     * takes over the caller's reference,the tag is released once sent or dropped
+     */
     public void feed(RESFlvData flvData, int type) {
-        synchronized (syncOp) {
-            workHandler.sendFood(flvData, type);
+        WorkThread w = workThread;
+        if (w != null) {
+            w.sendFood(flvData, type);
+        } else {
+            flvData.release();
         }
     }
 
     public void stop() {
         synchronized (syncOp) {
-            workHandler.sendStop();
+            workThread.sendStop();
+        }
+    }
+
+    /**
+     * drop the current connection and connect again right away,
+     * e.g. when the network changed.ignored if not started
+     */
+    public void reconnect() {
+        synchronized (syncOp) {
+            workThread.sendReconnect();
+        }
+    }
+
+    /**
+     * @return {hits,misses} of the native packet pool over all connections of this sender
+     */
+    public long[] getPacketPoolStats() {
+        synchronized (syncOp) {
+            return workThread == null ? new long[]{0, 0} :
+                    new long[]{workThread.packetPoolHits, workThread.packetPoolMisses};
+        }
+    }
+
+    /**
+     * @return rtmp chunk header bytes per second
+     */
+    public int getHeaderSpeed() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.headerByteSpeedometer.getSpeed();
+        }
+    }
+
+    /**
+     * @return per stage latency of the frames sent since start(),null before prepare()
+     */
+    public RESLatencyTracer getLatencyTracer() {
+        synchronized (syncOp) {
+            return workThread == null ? null : workThread.latencyTracer;
+        }
+    }
+
+    /**
+     * cheap enough to poll every frame,a few dozen atomic reads and a few small objects
+     *
+     * @return null before prepare()
+     */
+    public RESStreamStats getStats() {
+        synchronized (syncOp) {
+            return workThread == null ? null : workThread.getStats();
+        }
+    }
+
+    /**
+     * @param statsListener called on the main thread with a fresh snapshot every intervalMs
+     *                      until destroy(),null to stop
+     * @param intervalMs    at least 100ms apart in practice,the sender thread checks that often when idle
+     */
+    public void setStatsListener(OnStatsListener statsListener, int intervalMs) {
+        synchronized (syncOp) {
+            workThread.setStatsListener(statsListener, intervalMs);
+        }
+    }
+
+    /**
+     * @return reconnects that succeeded,failed attempts are not counted
+     */
+    public int getReconnectCount() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.reconnectCount;
         }
     }
 
     public void destroy() {
         synchronized (syncOp) {
-            workHandler.removeCallbacksAndMessages(null);
-            workHandlerThread.quit();
+            workThread.quit();
             /**
              * do not wait librtmp to quit
              */
 //        try {
-//            workHandlerThread.join();
+//            workThread.join();
 //        } catch (InterruptedException ignored) {
 //        }
         }
@@ -90,42 +194,163 @@ public class RESRtmpSender {
 
     public int getTotalSpeed() {
         synchronized (syncOp) {
-            if (workHandler != null) {
-                return workHandler.getTotalSpeed();
+            if (workThread != null) {
+                return workThread.getTotalSpeed();
             } else {
                 return 0;
             }
         }
     }
 
-    static class WorkHandler extends Handler {
+    public long getQueuedBytes() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendBudget.getQueuedBytes();
+        }
+    }
+
+    /**
+     * @return estimated ms to send what is queued at the current send speed,
+     * Long.MAX_VALUE while nothing is sent with bytes queued
+     */
+    public long getQueueDrainTime() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendBudget.getEstimatedDrainMs();
+        }
+    }
+
+    public int getAudioQueueDepth() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendScheduler.getAudioQueueDepth();
+        }
+    }
+
+    public int getVideoQueueDepth() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendScheduler.getVideoQueueDepth();
+        }
+    }
+
+    public int getAudioQueuePeakDepth() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendScheduler.getAudioQueuePeakDepth();
+        }
+    }
+
+    public int getVideoQueuePeakDepth() {
+        synchronized (syncOp) {
+            return workThread == null ? 0 : workThread.sendScheduler.getVideoQueuePeakDepth();
+        }
+    }
+
+    public interface OnKeyFrameRequestListener {
+        void onKeyFrameRequest();
+    }
+
+    public interface OnStatsListener {
+        void onStats(RESStreamStats stats);
+    }
+
+    static class WorkThread extends Thread {
         private final static int MSG_START = 1;
-        private final static int MSG_WRITE = 2;
         private final static int MSG_STOP = 3;
-        private long jniRtmpPointer = 0;
+        private final static int MSG_RECONNECT = 4;
+        private final static long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+        private final static long SPEED_UPDATE_INTERVAL_MS = 500;
+        private final static float CROWDED_OCCUPANCY = 2f / 3f;
+        /**
+         * null while not connected
+         */
+        private RESRtmpTransport transport;
+        private final boolean javaTransport;
         private String serverIpAddr = null;
-        private int maxQueueLength;
-        private int writeMsgNum = 0;
-        private final Object syncWriteMsgNum = new Object();
+        private final RESSendScheduler sendScheduler;
+        private final RESSendBudget sendBudget;
+        private long lastSpeedUpdateTime = 0;
+        private long closedPoolHits = 0;
+        private long closedPoolMisses = 0;
+        private volatile long packetPoolHits = 0;
+        private volatile long packetPoolMisses = 0;
+        private final int chunkSize;
+        /**
+         * null if aggregate messages are off
+         */
+        private final RESAudioAggregator audioAggregator;
+        private final RESWriteBatch writeBatch = new RESWriteBatch();
+        /**
+         * writeBatch points into the aggregator buffer,flush it before the aggregator is reused
+         */
+        private boolean batchHoldsAggregate = false;
+        /**
+         * header bytes of the current connection already fed to headerByteSpeedometer
+         */
+        private long countedHeaderBytes = 0;
+        private final ArrayDeque<Command> commands = new ArrayDeque<>();
         private RESByteSpeedometer videoByteSpeedometer = new RESByteSpeedometer(TIMEGRANULARITY);
         private RESByteSpeedometer audioByteSpeedometer = new RESByteSpeedometer(TIMEGRANULARITY);
-        private RESFrameRateMeter sendFrameRateMeter = new RESFrameRateMeter();
+        private RESByteSpeedometer headerByteSpeedometer = new RESByteSpeedometer(TIMEGRANULARITY);
+        private final RESGopDropPolicy gopDropPolicy = new RESGopDropPolicy();
+        private final RESLatencyTracer latencyTracer = new RESLatencyTracer();
+        private final RESStreamCounters streamCounters = new RESStreamCounters(TIMEGRANULARITY);
+        private volatile OnStatsListener statsListener;
+        private volatile int statsInterval;
+        private long lastStatsTime = 0;
         private FLvMetaData fLvMetaData;
         private RESConnectionListener connectionListener;
         private final Object syncConnectionListener = new Object();
         private int errorTime = 0;
+        private volatile boolean shouldQuit = false;
+        private String rtmpAddr;
+        private final RESReconnectBackoff reconnectBackoff;
+        private long nextReconnectTime = 0;
+        private volatile int reconnectCount = 0;
+        private volatile OnKeyFrameRequestListener keyFrameRequestListener;
+        /**
+         * replayed on every new connection
+         */
+        private RESFlvData avcSequenceHeader;
+        private RESFlvData aacSequenceHeader;
+        private int lastDts = 0;
+        /**
+         * after a reconnect video resumes from the next IDR
+         */
+        private boolean waitKeyFrame = false;
 
         private enum STATE {
             IDLE,
             RUNNING,
+            RECONNECTING,
             STOPPED
         }
 
-        private STATE state;
+        private volatile STATE state;
 
-        WorkHandler(int maxQueueLength, FLvMetaData fLvMetaData, Looper looper) {
-            super(looper);
-            this.maxQueueLength = maxQueueLength;
+        /**
+         * start/stop/reconnect request,every tag enqueued before it was sent is discarded
+         */
+        private static class Command {
+            final int what;
+            final String rtmpAddr;
+            final long audioMark;
+            final long videoMark;
+
+            Command(int what, String rtmpAddr, long audioMark, long videoMark) {
+                this.what = what;
+                this.rtmpAddr = rtmpAddr;
+                this.audioMark = audioMark;
+                this.videoMark = videoMark;
+            }
+        }
+
+        WorkThread(int maxQueueLength, RESSendBudget sendBudget, int maxInterleaveSkew,
+                   RESReconnectBackoff reconnectBackoff, int chunkSize, RESAudioAggregator audioAggregator,
+                   boolean javaTransport, FLvMetaData fLvMetaData) {
+            super("RESRtmpSender,WorkThread");
+            this.javaTransport = javaTransport;
+            this.chunkSize = chunkSize;
+            this.audioAggregator = audioAggregator;
+            this.reconnectBackoff = reconnectBackoff;
+            this.sendBudget = sendBudget;
+            this.sendScheduler = new RESSendScheduler(maxQueueLength, sendBudget, maxInterleaveSkew);
             this.fLvMetaData = fLvMetaData;
             state = STATE.IDLE;
         }
@@ -135,132 +360,545 @@ public class RESRtmpSender {
         }
 
         public float getSendFrameRate() {
-            return sendFrameRateMeter.getFps();
+            return videoByteSpeedometer.getFrameRate();
         }
 
         public float getSendBufferFreePercent() {
-            synchronized (syncWriteMsgNum) {
-                float res = (float) (maxQueueLength - writeMsgNum) / (float) maxQueueLength;
-                return res <= 0 ? 0f : res;
-            }
+            float res = 1f - sendBudget.getOccupancy();
+            return res <= 0 ? 0f : res;
+        }
+
+        void quit() {
+            shouldQuit = true;
+            sendScheduler.wakeUp();
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_START:
-                    if (state == STATE.RUNNING) {
-                        break;
+        public void run() {
+            Log.d("RESRtmpSender", "RESRtmpSender,WorkThread,tid=" + Thread.currentThread().getId());
+            while (!shouldQuit) {
+                Command command;
+                synchronized (commands) {
+                    command = commands.poll();
+                }
+                if (command != null) {
+                    runCommand(command);
+                    continue;
+                }
+                long waitNs = IDLE_WAIT_NS;
+                if (state == STATE.RECONNECTING) {
+                    long untilReconnect = TimeUnit.MILLISECONDS.toNanos(nextReconnectTime - System.currentTimeMillis());
+                    waitNs = Math.max(0, Math.min(waitNs, untilReconnect));
+                }
+                RESFlvData flvData = sendScheduler.poll(waitNs);
+                if (flvData != null) {
+                    // drain what is queued already,it goes out with one native call
+                    int drained = 0;
+                    do {
+                        handleWrite(flvData);
+                    } while (++drained < RtmpClient.WRITE_BATCH_MAX && (flvData = sendScheduler.poll()) != null);
+                } else {
+                    flushAudio();
+                }
+                flushBatch();
+                maybeReconnect();
+                updateSendSpeed();
+                maybePublishStats();
+            }
+            sendScheduler.discardBefore(Long.MAX_VALUE, Long.MAX_VALUE, streamCounters);
+            avcSequenceHeader = cacheHeader(avcSequenceHeader, null);
+            aacSequenceHeader = cacheHeader(aacSequenceHeader, null);
+        }
+
+        private void runCommand(Command command) {
+            sendScheduler.discardBefore(command.audioMark, command.videoMark, streamCounters);
+            if (command.what == MSG_START) {
+                handleStart(command.rtmpAddr);
+            } else if (command.what == MSG_RECONNECT) {
+                handleReconnect();
+            } else {
+                handleStop();
+            }
+        }
+
+        /**
+         * a command that came in while the tag was queued takes effect before it,
+         * otherwise e.g. the first IDR after start() could meet the idle state and be lost.
+         * called right after the tag was polled
+         *
+         * @param sequence lane sequence number of flvData
+         * @return false if a pending command discards the tag
+         */
+        private boolean runCommandsBefore(RESFlvData flvData, long sequence) {
+            boolean isAudio = flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+            for (;;) {
+                Command command;
+                synchronized (commands) {
+                    command = commands.peek();
+                    if (command == null) {
+                        return true;
                     }
-                    sendFrameRateMeter.reSet();
-                    Log.d("RESRtmpSender", "RESRtmpSender,WorkHandler,tid=" + Thread.currentThread().getId());
-                    jniRtmpPointer = RtmpClient.open((String) msg.obj, true);
-                    final int openR = jniRtmpPointer == 0 ? 1 : 0;
-                    if (openR == 0) {
-                        serverIpAddr = RtmpClient.getIpAddr(jniRtmpPointer);
+                    if (sequence < (isAudio ? command.audioMark : command.videoMark)) {
+                        return false;
                     }
-                    synchronized (syncConnectionListener) {
-                        if (connectionListener != null) {
-                            CallbackDelivery.i().post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    connectionListener.onOpenConnectionResult(openR);
-                                }
-                            });
+                    commands.poll();
+                }
+                // what is pending belongs to the old state
+                flushAudio();
+                flushBatch();
+                runCommand(command);
+            }
+        }
+
+        /**
+         * the drain time estimate of the budget follows the measured speed
+         */
+        private void updateSendSpeed() {
+            long now = System.currentTimeMillis();
+            if (now - lastSpeedUpdateTime >= SPEED_UPDATE_INTERVAL_MS) {
+                lastSpeedUpdateTime = now;
+                sendBudget.updateSendSpeed(getTotalSpeed());
+                updatePoolStats();
+                updateHeaderBytes();
+            }
+        }
+
+        private void maybePublishStats() {
+            final OnStatsListener listener = statsListener;
+            if (listener == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastStatsTime < statsInterval) {
+                return;
+            }
+            lastStatsTime = now;
+            final RESStreamStats stats = getStats();
+            CallbackDelivery.i().post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onStats(stats);
+                }
+            });
+        }
+
+        void setStatsListener(OnStatsListener statsListener, int intervalMs) {
+            this.statsInterval = intervalMs;
+            this.statsListener = statsListener;
+        }
+
+        RESStreamStats getStats() {
+            return new RESStreamStats(System.currentTimeMillis(),
+                    streamCounters.media(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, sendScheduler.getAudioQueueDepth(),
+                            sendScheduler.getAudioQueuePeakDepth(), audioByteSpeedometer.getFrameRate()),
+                    streamCounters.media(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, sendScheduler.getVideoQueueDepth(),
+                            sendScheduler.getVideoQueuePeakDepth(), videoByteSpeedometer.getFrameRate()),
+                    streamCounters.getWriteErrors(), streamCounters.getLastWriteError(),
+                    reconnectCount, state == STATE.RUNNING);
+        }
+
+        private void updateHeaderBytes() {
+            if (transport == null) {
+                return;
+            }
+            long headerBytes = transport.getHeaderBytes();
+            headerByteSpeedometer.gain((int) (headerBytes - countedHeaderBytes), 0);
+            countedHeaderBytes = headerBytes;
+        }
+
+        private void updatePoolStats() {
+            long hits = closedPoolHits;
+            long misses = closedPoolMisses;
+            if (transport != null) {
+                hits += transport.getPacketPoolHits();
+                misses += transport.getPacketPoolMisses();
+            }
+            packetPoolHits = hits;
+            packetPoolMisses = misses;
+        }
+
+        /**
+         * the packet pool dies with the connection,keep its counters
+         */
+        private int closeTransport() {
+            closedPoolHits += transport.getPacketPoolHits();
+            closedPoolMisses += transport.getPacketPoolMisses();
+            updateHeaderBytes();
+            countedHeaderBytes = 0;
+            if (audioAggregator != null) {
+                dropHeldAudio();
+            }
+            int res = transport.close();
+            transport = null;
+            updatePoolStats();
+            return res;
+        }
+
+        private void handleStart(String rtmpAddr) {
+            if (state == STATE.RUNNING || state == STATE.RECONNECTING) {
+                return;
+            }
+            this.rtmpAddr = rtmpAddr;
+            videoByteSpeedometer.reset();
+            latencyTracer.reset();
+            gopDropPolicy.reset();
+            sendScheduler.resetPeakDepth();
+            reconnectBackoff.reset();
+            final int openR = connect(false) ? 0 : 1;
+            synchronized (syncConnectionListener) {
+                if (connectionListener != null) {
+                    CallbackDelivery.i().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionListener.onOpenConnectionResult(openR);
                         }
-                    }
-                    if (jniRtmpPointer == 0) {
-                        break;
-                    } else {
-                        byte[] MetaData = fLvMetaData.getMetaData();
-                        RtmpClient.write(jniRtmpPointer,
-                                MetaData,
-                                MetaData.length,
-                                RESFlvData.FLV_RTMP_PACKET_TYPE_INFO, 0);
-                        state = STATE.RUNNING;
-                    }
-                    break;
-                case MSG_STOP:
-                    if (state == STATE.STOPPED || jniRtmpPointer == 0) {
-                        break;
-                    }
-                    errorTime = 0;
-                    final int closeR = RtmpClient.close(jniRtmpPointer);
-                    serverIpAddr = null;
-                    synchronized (syncConnectionListener) {
-                        if (connectionListener != null) {
-                            CallbackDelivery.i().post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    connectionListener.onCloseConnectionResult(closeR);
-                                }
-                            });
+                    });
+                }
+            }
+            if (openR != 0) {
+                scheduleReconnect();
+            }
+        }
+
+        /**
+         * open the connection and write metadata,
+         * plus the cached sequence headers when resuming a broken session
+         */
+        private boolean connect(boolean replayHeaders) {
+            RESRtmpTransport opened = javaTransport ? new RESNioRtmpClient() : new RESLibRtmpTransport();
+            if (!opened.open(rtmpAddr, chunkSize)) {
+                return false;
+            }
+            transport = opened;
+            serverIpAddr = transport.getServerIpAddr();
+            byte[] MetaData = fLvMetaData.getMetaData();
+            int res = transport.write(MetaData,
+                    MetaData.length,
+                    RESFlvData.FLV_RTMP_PACKET_TYPE_INFO, 0);
+            if (res == 0 && replayHeaders) {
+                res = replayHeader(avcSequenceHeader);
+                if (res == 0) {
+                    res = replayHeader(aacSequenceHeader);
+                }
+            }
+            if (res != 0) {
+                closeConnection();
+                return false;
+            }
+            state = STATE.RUNNING;
+            return true;
+        }
+
+        private int replayHeader(RESFlvData header) {
+            if (header == null) {
+                return 0;
+            }
+            return transport.write(header.byteBuffer, header.byteBuffer.length, header.flvTagType, lastDts);
+        }
+
+        private void closeConnection() {
+            if (transport != null) {
+                closeTransport();
+            }
+            serverIpAddr = null;
+        }
+
+        private void scheduleReconnect() {
+            long delay = reconnectBackoff.nextDelay();
+            nextReconnectTime = System.currentTimeMillis() + delay;
+            state = STATE.RECONNECTING;
+            Log.d("RESRtmpSender", "reconnect in " + delay + "ms,attempt=" + reconnectBackoff.getAttempts());
+        }
+
+        private void maybeReconnect() {
+            if (state != STATE.RECONNECTING || System.currentTimeMillis() < nextReconnectTime) {
+                return;
+            }
+            if (!connect(true)) {
+                scheduleReconnect();
+                return;
+            }
+            ++reconnectCount;
+            Log.d("RESRtmpSender", "reconnected after " + reconnectBackoff.getAttempts() + " attempts");
+            reconnectBackoff.reset();
+            errorTime = 0;
+            gopDropPolicy.reset();
+            waitKeyFrame = true;
+            OnKeyFrameRequestListener listener = keyFrameRequestListener;
+            if (listener != null) {
+                listener.onKeyFrameRequest();
+            }
+        }
+
+        private void handleReconnect() {
+            if (state != STATE.RUNNING && state != STATE.RECONNECTING) {
+                return;
+            }
+            closeConnection();
+            reconnectBackoff.reset();
+            nextReconnectTime = System.currentTimeMillis();
+            state = STATE.RECONNECTING;
+        }
+
+        private void handleStop() {
+            if (state == STATE.STOPPED || state == STATE.IDLE) {
+                return;
+            }
+            errorTime = 0;
+            final int closeR = transport == null ? 0 : closeTransport();
+            serverIpAddr = null;
+            synchronized (syncConnectionListener) {
+                if (connectionListener != null) {
+                    CallbackDelivery.i().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionListener.onCloseConnectionResult(closeR);
                         }
-                    }
-                    state = STATE.STOPPED;
-                    break;
-                case MSG_WRITE:
-                    synchronized (syncWriteMsgNum) {
-                        --writeMsgNum;
-                    }
-                    if (state != STATE.RUNNING) {
+                    });
+                }
+            }
+            state = STATE.STOPPED;
+        }
+
+        /**
+         * every polled tag is released here,whether it was written or dropped
+         */
+        private void handleWrite(RESFlvData flvData) {
+            try {
+                long sequence = sendScheduler.sequenceOf(flvData);
+                if (runCommandsBefore(flvData, sequence)) {
+                    flvData.dequeuedNanos = System.nanoTime();
+                    latencyTracer.onDequeued(flvData);
+                    writeTag(flvData, sequence);
+                } else {
+                    streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                }
+            } finally {
+                flvData.release();
+            }
+        }
+
+        private RESFlvData cacheHeader(RESFlvData old, RESFlvData header) {
+            if (header != null) {
+                header.retain();
+            }
+            if (old != null) {
+                old.release();
+            }
+            return header;
+        }
+
+        /**
+         * @param sequence lane sequence number of flvData
+         */
+        private void writeTag(RESFlvData flvData, long sequence) {
+            if (!flvData.droppable) {
+                if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO) {
+                    avcSequenceHeader = cacheHeader(avcSequenceHeader, flvData);
+                } else if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO) {
+                    aacSequenceHeader = cacheHeader(aacSequenceHeader, flvData);
+                }
+            }
+            if (state != STATE.RUNNING) {
+                streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                return;
+            }
+            if (waitKeyFrame && flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO && flvData.droppable) {
+                if (!flvData.isKeyframe()) {
+                    streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                    return;
+                }
+                waitKeyFrame = false;
+            }
+            boolean wasDropping = gopDropPolicy.isDropping();
+            boolean drop = gopDropPolicy.shouldDrop(flvData, sequence, sendBudget.getOccupancy() >= CROWDED_OCCUPANCY);
+            if (!wasDropping && drop) {
+                Log.d("RESRtmpSender", "senderQueue is crowded or refused a frame,abandon video until next IDR");
+            } else if (wasDropping && !gopDropPolicy.isDropping()) {
+                Log.d("RESRtmpSender", "GOP drop finished,frames=" + gopDropPolicy.getLastDroppedFrames()
+                        + ",bytes=" + gopDropPolicy.getLastDroppedBytes());
+            }
+            if (drop) {
+                streamCounters.onDropped(flvData, RESStreamStats.DROP_CONGESTION);
+                return;
+            }
+            boolean isAudio = flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+            if (audioAggregator != null && isAudio && flvData.droppable) {
+                if ((!audioAggregator.accepts(flvData) && !flushAudio())
+                        || (batchHoldsAggregate && !flushBatch())) {
+                    streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                    return;
+                }
+                audioAggregator.append(flvData);
+                return;
+            }
+            // keep the wire in dts order,held audio goes first
+            if (!flushAudio()) {
+                streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                return;
+            }
+            if (flvData.directBuffer != null) {
+                writeBatch.add(flvData);
+                if (writeBatch.isFull()) {
+                    flushBatch();
+                }
+                return;
+            }
+            if (!flushBatch()) {
+                streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+                return;
+            }
+            final int res = transport.write(flvData.byteBuffer, flvData.byteBuffer.length, flvData.flvTagType, flvData.dts);
+            if (onWriteResult(res, flvData.dts)) {
+                onWritten(flvData.flvTagType, flvData.size, 1, flvData.size);
+                latencyTracer.onWritten(flvData.flvTagType, flvData.encodedNanos, flvData.dequeuedNanos, System.nanoTime());
+            } else {
+                streamCounters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+            }
+        }
+
+        /**
+         * @param size       bytes of the rtmp message
+         * @param frames     tags in it,more than one for an aggregate
+         * @param frameBytes their FLV tag bytes
+         */
+        private void onWritten(int flvTagType, int size, int frames, int frameBytes) {
+            if (flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO) {
+                videoByteSpeedometer.gain(size, frames);
+            } else {
+                audioByteSpeedometer.gain(size, frames);
+            }
+            streamCounters.onSent(flvTagType, frames, frameBytes);
+        }
+
+        /**
+         * write the collected direct buffer tags with one transport call
+         *
+         * @return false if a write failed and the connection was closed
+         */
+        private boolean flushBatch() {
+            if (writeBatch.isEmpty()) {
+                return true;
+            }
+            boolean ok = true;
+            int written = 0;
+            if (state == STATE.RUNNING) {
+                int sent = transport.writeBatch(writeBatch.data, writeBatch.offsets, writeBatch.sizes,
+                        writeBatch.types, writeBatch.timestamps, writeBatch.size(), writeBatch.results);
+                long writtenNanos = System.nanoTime();
+                for (; written < writeBatch.size(); written++) {
+                    int i = written;
+                    if (!onWriteResult(sent < 0 ? -1 : writeBatch.results[i], writeBatch.timestamps[i])) {
+                        ok = false;
                         break;
                     }
-                    RESFlvData flvData = (RESFlvData) msg.obj;
-                    if (writeMsgNum >= (maxQueueLength * 2 / 3) && flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO && flvData.droppable) {
-                        Log.d("RESRtmpSender", "senderQueue is crowded,abandon video");
-                        break;
+                    onWritten(writeBatch.types[i], writeBatch.sizes[i], writeBatch.frames[i], writeBatch.frameBytes[i]);
+                    latencyTracer.onWritten(writeBatch.types[i], writeBatch.encodedNanos[i],
+                            writeBatch.dequeuedNanos[i], writtenNanos);
+                }
+            }
+            // the failed write and everything after it,or all of it when not connected
+            for (int i = written; i < writeBatch.size(); i++) {
+                streamCounters.onDropped(writeBatch.types[i], writeBatch.frames[i], writeBatch.frameBytes[i],
+                        RESStreamStats.DROP_NOT_CONNECTED);
+            }
+            writeBatch.clear();
+            batchHoldsAggregate = false;
+            return ok;
+        }
+
+        /**
+         * queue the held audio tags for the next batch,a single tag goes out as a plain audio message
+         *
+         * @return false if a write failed and the connection was closed
+         */
+        private boolean flushAudio() {
+            if (audioAggregator == null || audioAggregator.isEmpty()) {
+                return true;
+            }
+            if (state != STATE.RUNNING) {
+                dropHeldAudio();
+                return true;
+            }
+            if (writeBatch.isFull() && !flushBatch()) {
+                return false;
+            }
+            writeBatch.add(audioAggregator);
+            batchHoldsAggregate = true;
+            audioAggregator.reset();
+            return true;
+        }
+
+        private void dropHeldAudio() {
+            streamCounters.onDropped(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, audioAggregator.getCount(),
+                    audioAggregator.getPayloadBytes(), RESStreamStats.DROP_NOT_CONNECTED);
+            audioAggregator.reset();
+        }
+
+        /**
+         * @return true if written,otherwise the connection is closed and a reconnect scheduled
+         */
+        private boolean onWriteResult(int res, int dts) {
+            if (res == 0) {
+                errorTime = 0;
+                if (dts > lastDts) {
+                    lastDts = dts;
+                }
+                return true;
+            } else {
+                ++errorTime;
+                streamCounters.onWriteError(res);
+                synchronized (syncConnectionListener) {
+                    if (connectionListener != null) {
+                        CallbackDelivery.i().post(new RESConnectionListener.RESWriteErrorRunable(connectionListener, res));
                     }
-                    final int res = RtmpClient.write(jniRtmpPointer, flvData.byteBuffer, flvData.byteBuffer.length, flvData.flvTagType, flvData.dts);
-                    if (res == 0) {
-                        errorTime = 0;
-                        if (flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO) {
-                            videoByteSpeedometer.gain(flvData.size);
-                            sendFrameRateMeter.count();
-                        } else {
-                            audioByteSpeedometer.gain(flvData.size);
-                        }
-                    } else {
-                        ++errorTime;
-                        synchronized (syncConnectionListener) {
-                            if (connectionListener != null) {
-                                CallbackDelivery.i().post(new RESConnectionListener.RESWriteErrorRunable(connectionListener, res));
-                            }
-                        }
+                }
+                closeConnection();
+                scheduleReconnect();
+                return false;
+            }
+        }
+
+        private void sendCommand(int what, String rtmpAddr) {
+            synchronized (commands) {
+                for (Command pending : commands) {
+                    if (pending.what == what) {
+                        commands.remove(pending);
+                        break;
                     }
-                    break;
-                default:
-                    break;
+                }
+                commands.add(new Command(what, rtmpAddr,
+                        sendScheduler.audioProducedCount(), sendScheduler.videoProducedCount()));
             }
+            sendScheduler.wakeUp();
         }
 
         public void sendStart(String rtmpAddr) {
-            this.removeMessages(MSG_START);
-            synchronized (syncWriteMsgNum) {
-                this.removeMessages(MSG_WRITE);
-                writeMsgNum = 0;
-            }
-            this.sendMessage(this.obtainMessage(MSG_START, rtmpAddr));
+            sendCommand(MSG_START, rtmpAddr);
         }
 
         public void sendStop() {
-            this.removeMessages(MSG_STOP);
-            synchronized (syncWriteMsgNum) {
-                this.removeMessages(MSG_WRITE);
-                writeMsgNum = 0;
-            }
-            this.sendEmptyMessage(MSG_STOP);
+            sendCommand(MSG_STOP, null);
+        }
+
+        public void sendReconnect() {
+            sendCommand(MSG_RECONNECT, null);
         }
 
+        /**
+         * wait-free,called from the audio and video encoder threads
+         */
         public void sendFood(RESFlvData flvData, int type) {
-            synchronized (syncWriteMsgNum) {
-                //LAKETODO optimize
-                if (writeMsgNum <= maxQueueLength) {
-                    this.sendMessage(this.obtainMessage(MSG_WRITE, type, 0, flvData));
-                    ++writeMsgNum;
-                } else {
-                    Log.d("RESRtmpSender", "senderQueue is full,abandon");
-                }
+            flvData.enqueuedNanos = System.nanoTime();
+            // once offered the tag may be sent and recycled right away
+            int flvTagType = flvData.flvTagType;
+            int size = flvData.size;
+            boolean accepted = sendScheduler.offer(flvData);
+            streamCounters.onOffered(flvTagType, size, accepted);
+            if (!accepted) {
+                Log.d("RESRtmpSender", "senderQueue is full,abandon");
+                gopDropPolicy.onRejected(flvData, sendScheduler.videoProducedCount());
+                flvData.release();
             }
         }
 
@@ -283,4 +921,3 @@ public class RESRtmpSender {
         }
     }
 }
-
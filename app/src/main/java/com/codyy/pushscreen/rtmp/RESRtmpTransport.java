@@ -0,0 +1,50 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One rtmp publish connection as seen by {@link RESRtmpSender},
+ * {@link RESLibRtmpTransport} for librtmp through JNI or {@link RESNioRtmpClient} in pure java.
+ * Write methods return 0 on success and an error code otherwise,
+ * after an error the connection is unusable and has to be closed.
+ * Called from the sender thread only.
+ */
+public interface RESRtmpTransport {
+    /**
+     * connect,handshake and start publishing
+     *
+     * @param chunkSize outbound chunk size,128 or less keeps the protocol default
+     * @return false if the connection could not be set up,nothing to close then
+     */
+    boolean open(String url, int chunkSize);
+
+    int write(byte[] data, int size, int type, int ts);
+
+    /**
+     * tag at data[offset,offset+size),with RtmpClient.DIRECT_HEADROOM free bytes in front of it.
+     * the content may be clobbered by the write
+     */
+    int write(ByteBuffer data, int offset, int size, int type, int ts);
+
+    /**
+     * @return tags written before the first failure,-1 for invalid arguments
+     * @see RtmpClient#writeBatch(long, ByteBuffer[], int[], int[], int[], int[], int, int[])
+     */
+    int writeBatch(ByteBuffer[] data, int[] offsets, int[] sizes, int[] types, int[] timestamps, int count, int[] results);
+
+    int close();
+
+    String getServerIpAddr();
+
+    /**
+     * @return chunk header bytes written on this connection
+     */
+    long getHeaderBytes();
+
+    /**
+     * @return writes served by a packet pool without allocating,0 if the transport has none
+     */
+    long getPacketPoolHits();
+
+    long getPacketPoolMisses();
+}
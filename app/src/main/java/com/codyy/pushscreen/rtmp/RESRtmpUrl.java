@@ -0,0 +1,57 @@
+package com.codyy.pushscreen.rtmp;
+
+/**
+ * rtmp://host[:port]/app[/instance]/playpath[?query]
+ * app is everything up to the last '/',the playpath keeps its query.
+ */
+class RESRtmpUrl {
+    static final int DEFAULT_PORT = 1935;
+
+    final String host;
+    final int port;
+    final String app;
+    final String playPath;
+    final String tcUrl;
+
+    private RESRtmpUrl(String host, int port, String app, String playPath) {
+        this.host = host;
+        this.port = port;
+        this.app = app;
+        this.playPath = playPath;
+        this.tcUrl = "rtmp://" + host + (port == DEFAULT_PORT ? "" : ":" + port) + "/" + app;
+    }
+
+    /**
+     * @throws IllegalArgumentException if url is not a plain rtmp url with app and playpath
+     */
+    static RESRtmpUrl parse(String url) {
+        String prefix = "rtmp://";
+        if (url == null || !url.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            throw new IllegalArgumentException("not an rtmp url:" + url);
+        }
+        String rest = url.substring(prefix.length());
+        int slash = rest.indexOf('/');
+        if (slash <= 0) {
+            throw new IllegalArgumentException("no app in " + url);
+        }
+        String authority = rest.substring(0, slash);
+        String path = rest.substring(slash + 1);
+        int query = path.indexOf('?');
+        int lastSlash = path.lastIndexOf('/', query < 0 ? path.length() : query);
+        if (lastSlash <= 0 || lastSlash == path.length() - 1) {
+            throw new IllegalArgumentException("no playpath in " + url);
+        }
+        String host = authority;
+        int port = DEFAULT_PORT;
+        int colon = authority.lastIndexOf(':');
+        if (colon > 0 && authority.indexOf(']') < colon) {
+            host = authority.substring(0, colon);
+            try {
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad port in " + url);
+            }
+        }
+        return new RESRtmpUrl(host, port, path.substring(0, lastSlash), path.substring(lastSlash + 1));
+    }
+}
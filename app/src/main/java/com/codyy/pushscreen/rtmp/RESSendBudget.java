@@ -0,0 +1,105 @@
+package com.codyy.pushscreen.rtmp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte and drain-time budget of the sender queue.
+ * A 90 byte AAC tag and a 150KB IDR used to cost the same queue slot,
+ * now the queue is bounded by the bytes it holds and by how long those bytes
+ * take to drain at the measured send speed.
+ * tryAcquire() is wait-free and called from the encoder threads,
+ * updateSendSpeed() from the writer thread.
+ */
+class RESSendBudget {
+    private final long maxBytes;
+    private final long maxDelayMs;
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    /**
+     * bytes per second,the last non-zero measurement,0 until the first one
+     */
+    private volatile int sendSpeed = 0;
+    /**
+     * the last measurement was 0 while bytes were queued,nothing drains
+     */
+    private volatile boolean stalled = false;
+
+    RESSendBudget(long maxBytes, long maxDelayMs) {
+        this.maxBytes = maxBytes;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * a tag is always accepted into an empty queue,even if it is larger than the budget
+     *
+     * @return false if adding size bytes would exceed the byte or the drain time budget
+     */
+    boolean tryAcquire(int size) {
+        long after = queuedBytes.addAndGet(size);
+        long before = after - size;
+        if (before > 0 && (after > maxBytes || drainMs(after) > maxDelayMs)) {
+            queuedBytes.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * count size bytes whatever the budget says
+     */
+    void acquire(int size) {
+        queuedBytes.addAndGet(size);
+    }
+
+    void release(int size) {
+        queuedBytes.addAndGet(-size);
+    }
+
+    /**
+     * a 0 keeps the last speed for the estimate,but with bytes queued the queue counts as stalled
+     * and over the drain time budget until something is sent again.
+     * nothing stalls before the first speed,the queue fills up while the first connect is under way
+     */
+    void updateSendSpeed(int bytesPerSecond) {
+        if (bytesPerSecond > 0) {
+            sendSpeed = bytesPerSecond;
+            stalled = false;
+        } else {
+            stalled = sendSpeed > 0 && getQueuedBytes() > 0;
+        }
+    }
+
+    long getQueuedBytes() {
+        long n = queuedBytes.get();
+        return n < 0 ? 0 : n;
+    }
+
+    /**
+     * @return estimated ms to send what is queued,0 while the speed is unknown,
+     * Long.MAX_VALUE while stalled
+     */
+    long getEstimatedDrainMs() {
+        return drainMs(getQueuedBytes());
+    }
+
+    /**
+     * @return the larger of byte usage and drain time usage,0..1
+     */
+    float getOccupancy() {
+        long bytes = getQueuedBytes();
+        float byBytes = (float) bytes / (float) maxBytes;
+        float byTime = (float) drainMs(bytes) / (float) maxDelayMs;
+        float res = byBytes > byTime ? byBytes : byTime;
+        return res >= 1f ? 1f : res;
+    }
+
+    private long drainMs(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        if (stalled) {
+            return Long.MAX_VALUE;
+        }
+        int speed = sendSpeed;
+        return speed <= 0 ? 0 : bytes * 1000 / speed;
+    }
+}
@@ -0,0 +1,164 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESMpscRing;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Two-lane scheduler in front of the rtmp writer thread.
+ * Audio and video are queued separately so a large IDR never sits in front of the small AAC tags.
+ * The audio head is always sent first unless the video head is older than it by more than maxSkewMs,
+ * which keeps the output in DTS order within that skew.
+ * Both lanes share one {@link RESSendBudget},the lanes' slot capacity is only a hard upper bound.
+ * offer() is called from the encoder threads,everything else from the writer thread only.
+ */
+class RESSendScheduler {
+    private final RESMpscRing<RESFlvData> audioQueue;
+    private final RESMpscRing<RESFlvData> videoQueue;
+    private final RESSendBudget budget;
+    private final int maxSkewMs;
+    private volatile Thread consumer;
+    private volatile boolean consumerParked = false;
+
+    RESSendScheduler(int maxQueueLength, RESSendBudget budget, int maxSkewMs) {
+        this.budget = budget;
+        this.maxSkewMs = maxSkewMs;
+        audioQueue = new RESMpscRing<>(maxQueueLength);
+        videoQueue = new RESMpscRing<>(maxQueueLength);
+    }
+
+    /**
+     * wait-free.sequence headers (droppable==false) are counted in the budget but never refused by it
+     *
+     * @return false if the lane or the shared budget is full
+     */
+    boolean offer(RESFlvData flvData) {
+        if (!flvData.droppable) {
+            budget.acquire(flvData.size);
+        } else if (!budget.tryAcquire(flvData.size)) {
+            return false;
+        }
+        if (!laneOf(flvData).offer(flvData)) {
+            budget.release(flvData.size);
+            return false;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * @return the next tag to send,null if both lanes are empty
+     */
+    RESFlvData poll() {
+        RESFlvData flvData = next();
+        if (flvData != null) {
+            budget.release(flvData.size);
+        }
+        return flvData;
+    }
+
+    private RESFlvData next() {
+        RESFlvData audio = audioQueue.peek();
+        RESFlvData video = videoQueue.peek();
+        if (audio == null) {
+            return video == null ? null : videoQueue.poll();
+        }
+        if (video == null) {
+            return audioQueue.poll();
+        }
+        if (video.dts + maxSkewMs < audio.dts) {
+            return videoQueue.poll();
+        }
+        return audioQueue.poll();
+    }
+
+    /**
+     * parks up to timeoutNs when both lanes are empty
+     */
+    RESFlvData poll(long timeoutNs) {
+        RESFlvData flvData = poll();
+        if (flvData != null) {
+            return flvData;
+        }
+        consumer = Thread.currentThread();
+        consumerParked = true;
+        flvData = poll();
+        if (flvData == null) {
+            LockSupport.parkNanos(this, timeoutNs);
+            flvData = poll();
+        }
+        consumerParked = false;
+        return flvData;
+    }
+
+    void wakeUp() {
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    long audioProducedCount() {
+        return audioQueue.producedCount();
+    }
+
+    long videoProducedCount() {
+        return videoQueue.producedCount();
+    }
+
+    /**
+     * drops and releases every tag whose lane sequence number is lower than the given marks,
+     * counted as not connected
+     */
+    void discardBefore(long audioMark, long videoMark, RESStreamCounters counters) {
+        discardBefore(audioQueue, audioMark, counters);
+        discardBefore(videoQueue, videoMark, counters);
+    }
+
+    private void discardBefore(RESMpscRing<RESFlvData> queue, long mark, RESStreamCounters counters) {
+        while (queue.consumedCount() < mark) {
+            RESFlvData flvData = queue.poll();
+            if (flvData == null) {
+                break;
+            }
+            budget.release(flvData.size);
+            counters.onDropped(flvData, RESStreamStats.DROP_NOT_CONNECTED);
+            flvData.release();
+        }
+    }
+
+    /**
+     * @return lane sequence number of a tag just returned by poll(),comparable to the produced counts
+     */
+    long sequenceOf(RESFlvData polled) {
+        return laneOf(polled).consumedCount() - 1;
+    }
+
+    private RESMpscRing<RESFlvData> laneOf(RESFlvData flvData) {
+        return flvData.flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO ? audioQueue : videoQueue;
+    }
+
+    int getAudioQueueDepth() {
+        return audioQueue.size();
+    }
+
+    int getVideoQueueDepth() {
+        return videoQueue.size();
+    }
+
+    int getAudioQueuePeakDepth() {
+        return audioQueue.peakSize();
+    }
+
+    int getVideoQueuePeakDepth() {
+        return videoQueue.peakSize();
+    }
+
+    void resetPeakDepth() {
+        audioQueue.resetPeakSize();
+        videoQueue.resetPeakSize();
+    }
+}
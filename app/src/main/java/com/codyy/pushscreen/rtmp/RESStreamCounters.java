@@ -0,0 +1,106 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESByteSpeedometer;
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters behind {@link RESStreamStats},frames and bytes per media type and outcome.
+ * Lock free and allocation free,offers are counted on the encoder threads,
+ * the rest on the sender thread,read from any thread.
+ */
+class RESStreamCounters {
+    private static final int ENQUEUED = 0;
+    private static final int SENT = 1;
+    private static final int DROPPED = 2;
+    /**
+     * frames,bytes pairs: enqueued,sent,then dropped per reason
+     */
+    private static final int PER_MEDIA = 2 * (DROPPED + RESStreamStats.DROP_REASONS);
+    private static final int AUDIO = 0;
+    private static final int VIDEO = PER_MEDIA;
+    private final AtomicLongArray counters = new AtomicLongArray(2 * PER_MEDIA);
+    private final RESByteSpeedometer audioOffered;
+    private final RESByteSpeedometer videoOffered;
+    private volatile long writeErrors = 0;
+    private volatile int lastWriteError = 0;
+
+    /**
+     * @param timeGranularity window of the encoder frame rates,ms
+     */
+    RESStreamCounters(int timeGranularity) {
+        audioOffered = new RESByteSpeedometer(timeGranularity);
+        videoOffered = new RESByteSpeedometer(timeGranularity);
+    }
+
+    private static int mediaOf(int flvTagType) {
+        return flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO ? VIDEO : AUDIO;
+    }
+
+    private void add(int flvTagType, int outcome, int frames, long bytes) {
+        int i = mediaOf(flvTagType) + 2 * outcome;
+        counters.addAndGet(i, frames);
+        counters.addAndGet(i + 1, bytes);
+    }
+
+    /**
+     * the encoder handed a tag to the sender
+     *
+     * @param accepted false if the queue was full
+     */
+    void onOffered(int flvTagType, int size, boolean accepted) {
+        (flvTagType == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO ? videoOffered : audioOffered).gain(size);
+        if (accepted) {
+            add(flvTagType, ENQUEUED, 1, size);
+        } else {
+            onDropped(flvTagType, 1, size, RESStreamStats.DROP_QUEUE_FULL);
+        }
+    }
+
+    /**
+     * @param flvTagType RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE counts as audio
+     */
+    void onSent(int flvTagType, int frames, long bytes) {
+        add(flvTagType, SENT, frames, bytes);
+    }
+
+    void onDropped(RESFlvData flvData, int reason) {
+        onDropped(flvData.flvTagType, 1, flvData.size, reason);
+    }
+
+    void onDropped(int flvTagType, int frames, long bytes, int reason) {
+        add(flvTagType, DROPPED + reason, frames, bytes);
+    }
+
+    /**
+     * sender thread only
+     */
+    void onWriteError(int errno) {
+        lastWriteError = errno;
+        ++writeErrors;
+    }
+
+    long getWriteErrors() {
+        return writeErrors;
+    }
+
+    int getLastWriteError() {
+        return lastWriteError;
+    }
+
+    RESStreamStats.Media media(int flvTagType, int queueDepth, int queuePeakDepth, float sendFps) {
+        int base = mediaOf(flvTagType);
+        long[] droppedFrames = new long[RESStreamStats.DROP_REASONS];
+        long[] droppedBytes = new long[RESStreamStats.DROP_REASONS];
+        for (int reason = 0; reason < RESStreamStats.DROP_REASONS; reason++) {
+            droppedFrames[reason] = counters.get(base + 2 * (DROPPED + reason));
+            droppedBytes[reason] = counters.get(base + 2 * (DROPPED + reason) + 1);
+        }
+        return new RESStreamStats.Media(
+                counters.get(base + 2 * ENQUEUED), counters.get(base + 2 * ENQUEUED + 1),
+                counters.get(base + 2 * SENT), counters.get(base + 2 * SENT + 1),
+                droppedFrames, droppedBytes, queueDepth, queuePeakDepth,
+                (base == VIDEO ? videoOffered : audioOffered).getFrameRate(), sendFps);
+    }
+}
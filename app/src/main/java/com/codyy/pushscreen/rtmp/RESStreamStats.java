@@ -0,0 +1,134 @@
+package com.codyy.pushscreen.rtmp;
+
+/**
+ * Immutable snapshot of the sender's health,see {@link RESRtmpSender#getStats()}.
+ * Frame and byte counters are since prepare(),each exact,but read one after another
+ * so they may be a frame apart.A frame is either dropped on offer,or enqueued and later
+ * sent,dropped or still queued: enqueued = sent + dropped by congestion and not connected + queued.
+ * Bytes are FLV tag bytes as fed to the sender,without rtmp chunk headers.
+ */
+public class RESStreamStats {
+    /**
+     * the send queue or its byte budget was full when the encoder offered the frame
+     */
+    public static final int DROP_QUEUE_FULL = 0;
+    /**
+     * dropped by the GOP drop policy while the queue was crowded
+     */
+    public static final int DROP_CONGESTION = 1;
+    /**
+     * not connected,reconnecting or waiting for an IDR after a reconnect,
+     * or lost with a failed write
+     */
+    public static final int DROP_NOT_CONNECTED = 2;
+    static final int DROP_REASONS = 3;
+
+    /**
+     * System.currentTimeMillis() of the snapshot
+     */
+    public final long time;
+    public final Media audio;
+    public final Media video;
+    public final long writeErrors;
+    /**
+     * result of the last failed write,0 if none failed
+     */
+    public final int lastWriteError;
+    /**
+     * reconnects that succeeded
+     */
+    public final int reconnectCount;
+    public final boolean connected;
+
+    RESStreamStats(long time, Media audio, Media video, long writeErrors, int lastWriteError,
+                   int reconnectCount, boolean connected) {
+        this.time = time;
+        this.audio = audio;
+        this.video = video;
+        this.writeErrors = writeErrors;
+        this.lastWriteError = lastWriteError;
+        this.reconnectCount = reconnectCount;
+        this.connected = connected;
+    }
+
+    @Override
+    public String toString() {
+        return "connected=" + connected + ",reconnects=" + reconnectCount + ",writeErrors=" + writeErrors
+                + ",lastWriteError=" + lastWriteError + "\nvideo " + video + "\naudio " + audio;
+    }
+
+    public static class Media {
+        public final long enqueuedFrames;
+        public final long enqueuedBytes;
+        public final long sentFrames;
+        public final long sentBytes;
+        private final long[] droppedFrames;
+        private final long[] droppedBytes;
+        public final int queueDepth;
+        /**
+         * since start()
+         */
+        public final int queuePeakDepth;
+        /**
+         * frames per second offered to the sender,i.e. what the encoder puts out
+         */
+        public final float encoderFps;
+        public final float sendFps;
+
+        Media(long enqueuedFrames, long enqueuedBytes, long sentFrames, long sentBytes,
+              long[] droppedFrames, long[] droppedBytes, int queueDepth, int queuePeakDepth,
+              float encoderFps, float sendFps) {
+            this.enqueuedFrames = enqueuedFrames;
+            this.enqueuedBytes = enqueuedBytes;
+            this.sentFrames = sentFrames;
+            this.sentBytes = sentBytes;
+            this.droppedFrames = droppedFrames;
+            this.droppedBytes = droppedBytes;
+            this.queueDepth = queueDepth;
+            this.queuePeakDepth = queuePeakDepth;
+            this.encoderFps = encoderFps;
+            this.sendFps = sendFps;
+        }
+
+        /**
+         * @param reason one of the DROP_ constants
+         */
+        public long getDroppedFrames(int reason) {
+            return droppedFrames[reason];
+        }
+
+        public long getDroppedBytes(int reason) {
+            return droppedBytes[reason];
+        }
+
+        /**
+         * for every reason
+         */
+        public long getDroppedFrames() {
+            long sum = 0;
+            for (long frames : droppedFrames) {
+                sum += frames;
+            }
+            return sum;
+        }
+
+        public long getDroppedBytes() {
+            long sum = 0;
+            for (long bytes : droppedBytes) {
+                sum += bytes;
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("enqueued=%d/%dB,sent=%d/%dB,dropped queueFull=%d/%dB,congestion=%d/%dB,notConnected=%d/%dB,"
+                            + "queue=%d,peak=%d,encoderFps=%.1f,sendFps=%.1f",
+                    enqueuedFrames, enqueuedBytes, sentFrames, sentBytes,
+                    droppedFrames[DROP_QUEUE_FULL], droppedBytes[DROP_QUEUE_FULL],
+                    droppedFrames[DROP_CONGESTION], droppedBytes[DROP_CONGESTION],
+                    droppedFrames[DROP_NOT_CONNECTED], droppedBytes[DROP_NOT_CONNECTED],
+                    queueDepth, queuePeakDepth, encoderFps, sendFps);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.Packager;
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct buffer writes collected by the sender thread for one {@link RtmpClient#writeBatch} call,
+ * kept as the parallel arrays the native side reads.
+ * A tag added with its RESFlvData is retained until {@link #clear()}.
+ * Used by the sender thread only,not thread safe.
+ */
+class RESWriteBatch {
+    final ByteBuffer[] data = new ByteBuffer[RtmpClient.WRITE_BATCH_MAX];
+    final int[] offsets = new int[RtmpClient.WRITE_BATCH_MAX];
+    final int[] sizes = new int[RtmpClient.WRITE_BATCH_MAX];
+    final int[] types = new int[RtmpClient.WRITE_BATCH_MAX];
+    final int[] timestamps = new int[RtmpClient.WRITE_BATCH_MAX];
+    final int[] results = new int[RtmpClient.WRITE_BATCH_MAX];
+    /**
+     * frames and their FLV tag bytes in each write,for the stream stats,
+     * and stamps for {@link RESLatencyTracer#onWritten},not passed to the native side
+     */
+    final int[] frames = new int[RtmpClient.WRITE_BATCH_MAX];
+    final int[] frameBytes = new int[RtmpClient.WRITE_BATCH_MAX];
+    final long[] encodedNanos = new long[RtmpClient.WRITE_BATCH_MAX];
+    final long[] dequeuedNanos = new long[RtmpClient.WRITE_BATCH_MAX];
+    private final RESFlvData[] owners = new RESFlvData[RtmpClient.WRITE_BATCH_MAX];
+    private int count = 0;
+
+    /**
+     * @param owner frame backing data,null if the buffer is not a frame
+     */
+    void add(ByteBuffer buffer, int offset, int size, int type, int timestamp, RESFlvData owner) {
+        add(buffer, offset, size, type, timestamp, owner, 1, size,
+                owner == null ? 0 : owner.encodedNanos, owner == null ? 0 : owner.dequeuedNanos);
+    }
+
+    void add(RESFlvData flvData) {
+        add(flvData.directBuffer, flvData.directBuffer.position(), flvData.size, flvData.flvTagType, flvData.dts, flvData);
+    }
+
+    /**
+     * the tags held by the aggregator,a single tag goes out as a plain audio message.
+     * the buffer stays the aggregator's,do not append to it before {@link #clear()}
+     */
+    void add(RESAudioAggregator aggregator) {
+        if (aggregator.getCount() == 1) {
+            add(aggregator.getBuffer(),
+                    RtmpClient.DIRECT_HEADROOM + Packager.FLVPackager.FLV_TAG_LENGTH, aggregator.getPayloadBytes(),
+                    RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, aggregator.getDts(), null,
+                    1, aggregator.getPayloadBytes(), aggregator.getEncodedNanos(), aggregator.getDequeuedNanos());
+        } else {
+            add(aggregator.getBuffer(),
+                    RtmpClient.DIRECT_HEADROOM, aggregator.getSize(),
+                    RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE, aggregator.getDts(), null,
+                    aggregator.getCount(), aggregator.getPayloadBytes(), aggregator.getEncodedNanos(), aggregator.getDequeuedNanos());
+        }
+    }
+
+    private void add(ByteBuffer buffer, int offset, int size, int type, int timestamp, RESFlvData owner,
+                     int frameCount, int frameByteCount, long encodedNanos, long dequeuedNanos) {
+        if (count == RtmpClient.WRITE_BATCH_MAX) {
+            throw new IllegalStateException("write batch is full");
+        }
+        data[count] = buffer;
+        offsets[count] = offset;
+        sizes[count] = size;
+        types[count] = type;
+        timestamps[count] = timestamp;
+        results[count] = 0;
+        frames[count] = frameCount;
+        frameBytes[count] = frameByteCount;
+        this.encodedNanos[count] = encodedNanos;
+        this.dequeuedNanos[count] = dequeuedNanos;
+        owners[count] = owner == null ? null : owner.retain();
+        ++count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isFull() {
+        return count == RtmpClient.WRITE_BATCH_MAX;
+    }
+
+    /**
+     * release the frames and forget the buffers
+     */
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            if (owners[i] != null) {
+                owners[i].release();
+                owners[i] = null;
+            }
+            data[i] = null;
+        }
+        count = 0;
+    }
+}
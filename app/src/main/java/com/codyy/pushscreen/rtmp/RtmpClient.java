@@ -1,9 +1,19 @@
 package com.codyy.pushscreen.rtmp;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by lake on 16-3-30.
  */
 public class RtmpClient {
+    /**
+     * RTMP_MAX_HEADER_SIZE,free bytes required in front of a direct write payload
+     */
+    public static final int DIRECT_HEADROOM = 18;
+    /**
+     * max tags per {@link #writeBatch}
+     */
+    public static final int WRITE_BATCH_MAX = 32;
 
     static {
         System.loadLibrary("resrtmp");
@@ -12,16 +22,62 @@ public class RtmpClient {
     /**
      * @param url
      * @param isPublishMode
+     * @param chunkSize     outbound chunk size announced with Set Chunk Size once the stream is up,
+     *                      clamped to 65536,128 or less keeps the protocol default
      * @return rtmpPointer ,pointer to native rtmp struct
      */
-    public static native long open(String url, boolean isPublishMode);
+    public static native long open(String url, boolean isPublishMode, int chunkSize);
 
     public static native int read(long rtmpPointer, byte[] data, int offset, int size);
 
     public static native int write(long rtmpPointer, byte[] data, int size, int type, int ts);
 
+    /**
+     * zero copy write,the native side sends straight from the buffer memory.
+     * when scatter-gather is off or not possible on the link(rtmpt,rtmpe),
+     * data[offset-DIRECT_HEADROOM,offset) is used to build the chunk header and
+     * payload bytes are overwritten at every chunk boundary,
+     * so the buffer content is undefined after the call.
+     *
+     * @param data   direct ByteBuffer
+     * @param offset payload start,at least DIRECT_HEADROOM
+     */
+    public static native int write(long rtmpPointer, ByteBuffer data, int offset, int size, int type, int ts);
+
+    /**
+     * up to WRITE_BATCH_MAX zero copy writes in one call,the native side coalesces them
+     * into as few socket writes as possible.every tag is laid out as for the direct write.
+     *
+     * @param results per tag,0 if written,otherwise the error
+     * @return tags written before the first failure,-1 for invalid arguments
+     */
+    public static native int writeBatch(long rtmpPointer, ByteBuffer[] data, int[] offsets, int[] sizes, int[] types,
+                                        int[] timestamps, int count, int[] results);
+
     public static native int close(long rtmpPointer);
 
     public static native String getIpAddr(long rtmpPointer);
 
+    /**
+     * @return writes served by the native packet pool without allocating
+     */
+    public static native long getPacketPoolHits(long rtmpPointer);
+
+    /**
+     * @return writes that had to grow a pooled packet body
+     */
+    public static native long getPacketPoolMisses(long rtmpPointer);
+
+    /**
+     * on by default,chunk headers are built aside and sent together with the payload slices
+     * in one sendmsg,instead of being written into the payload between chunks.
+     * plain rtmp only,other links always use librtmp's writer.
+     */
+    public static native void setScatterGather(long rtmpPointer, boolean enable);
+
+    /**
+     * @return chunk header bytes written on this connection
+     */
+    public static native long getHeaderBytes(long rtmpPointer);
+
 }
@@ -0,0 +1,81 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays sender traces of {free percent, send speed in bytes/s} through the controller.
+ */
+public class RESBitrateControllerTest {
+    private static final int KBPS = 1024;
+
+    private static int[] replay(RESBitrateController controller, float[][] trace) {
+        int[] bitrates = new int[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            bitrates[i] = controller.onSample(trace[i][0], (int) trace[i][1]);
+        }
+        return bitrates;
+    }
+
+    @Test
+    public void stableLink_keepsBitrateUntilClearLongEnough() throws Exception {
+        RESBitrateController controller = new RESBitrateController(200 * KBPS, 1500 * KBPS, 750 * KBPS);
+        float[][] trace = {
+                {0.95f, 96000}, {0.97f, 95000}, {0.96f, 97000}, {0.98f, 96000}, {0.99f, 96500},
+        };
+        int[] bitrates = replay(controller, trace);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(750 * KBPS, bitrates[i]);
+        }
+        assertEquals((int) (750 * KBPS * 1.1f), bitrates[4]);
+    }
+
+    @Test
+    public void congestion_stepsDownToMeasuredThroughput() throws Exception {
+        RESBitrateController controller = new RESBitrateController(200 * KBPS, 1500 * KBPS, 750 * KBPS);
+        // classroom wifi collapsing to ~300kbps
+        float[][] trace = {
+                {0.80f, 95000}, {0.40f, 94000}, {0.20f, 38400}, {0.10f, 38400},
+        };
+        int[] bitrates = replay(controller, trace);
+        assertEquals(750 * KBPS, bitrates[0]);
+        assertEquals((int) (750 * KBPS * 0.75f), bitrates[1]);
+        assertEquals(38400 * 8, bitrates[2]);
+        assertEquals((int) (38400 * 8 * 0.75f), bitrates[3]);
+    }
+
+    @Test
+    public void bitrate_staysWithinFloorAndCeiling() throws Exception {
+        RESBitrateController controller = new RESBitrateController(200 * KBPS, 1000 * KBPS, 900 * KBPS);
+        controller.setHysteresis(1, 1);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(controller.onSample(0.01f, 1000) >= 200 * KBPS);
+        }
+        assertEquals(200 * KBPS, controller.getCurrentBitrate());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(controller.onSample(1f, 200000) <= 1000 * KBPS);
+        }
+        assertEquals(1000 * KBPS, controller.getCurrentBitrate());
+    }
+
+    @Test
+    public void hysteresis_flappingQueueDoesNotStepUp() throws Exception {
+        RESBitrateController controller = new RESBitrateController(200 * KBPS, 1500 * KBPS, 500 * KBPS);
+        controller.setHysteresis(2, 3);
+        float[][] trace = {
+                {0.95f, 60000}, {0.95f, 60000}, {0.70f, 60000},
+                {0.95f, 60000}, {0.95f, 60000}, {0.45f, 60000},
+                {0.95f, 60000}, {0.40f, 60000}, {0.95f, 60000},
+        };
+        int[] bitrates = replay(controller, trace);
+        for (int bitrate : bitrates) {
+            assertEquals(500 * KBPS, bitrate);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRange_isRejected() throws Exception {
+        new RESBitrateController(1000, 500, 700);
+    }
+}
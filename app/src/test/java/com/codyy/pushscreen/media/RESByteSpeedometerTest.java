@@ -0,0 +1,118 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESByteSpeedometerTest {
+
+    private static class ManualSpeedometer extends RESByteSpeedometer {
+        long time = 1000000;
+
+        ManualSpeedometer(int timeGranularity, int resolution) {
+            super(timeGranularity, resolution);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void steadyRate_allViewsAgree() throws Exception {
+        ManualSpeedometer speedometer = new ManualSpeedometer(1000, 100);
+        // 25 frames of 4000 bytes a second for 3 seconds
+        for (int i = 0; i < 75; i++) {
+            speedometer.gain(4000);
+            speedometer.time += 40;
+        }
+        assertEquals(100000, speedometer.getSpeed(), 5000);
+        assertEquals(25f, speedometer.getFrameRate(), 1.5f);
+        assertEquals(100000, speedometer.getEwmaSpeed(), 5000);
+        assertEquals(25f, speedometer.getEwmaFrameRate(), 1.5f);
+        // 100ms buckets hold 2 or 3 frames
+        assertTrue(speedometer.getInstantFrameRate() == 20f || speedometer.getInstantFrameRate() == 30f);
+    }
+
+    @Test
+    public void negativeClock_isMeasuredLikeAnyOther() throws Exception {
+        ManualSpeedometer speedometer = new ManualSpeedometer(1000, 100);
+        speedometer.time = -1000000;
+        for (int i = 0; i < 75; i++) {
+            speedometer.gain(4000);
+            speedometer.time += 40;
+        }
+        assertEquals(100000, speedometer.getSpeed(), 5000);
+        assertEquals(100000, speedometer.getEwmaSpeed(), 5000);
+        assertTrue(speedometer.getInstantFrameRate() == 20f || speedometer.getInstantFrameRate() == 30f);
+    }
+
+    @Test
+    public void oldBuckets_leaveTheWindow() throws Exception {
+        ManualSpeedometer speedometer = new ManualSpeedometer(1000, 100);
+        speedometer.gain(10000);
+        speedometer.time += 500;
+        assertEquals(10000 * 1000 / 500, speedometer.getSpeed());
+        speedometer.time += 1000;
+        assertEquals(0, speedometer.getSpeed());
+        assertEquals(0f, speedometer.getFrameRate(), 0f);
+        assertEquals(0, speedometer.getInstantSpeed());
+        // back to the ring slot of the first gain,it starts from 0 again
+        speedometer.time += 100800;
+        speedometer.gain(300);
+        speedometer.time += 100;
+        assertEquals(300 * 1000 / 100, speedometer.getInstantSpeed());
+    }
+
+    @Test
+    public void ewma_followsAChangeFasterThanTheWindow() throws Exception {
+        ManualSpeedometer speedometer = new ManualSpeedometer(3000, 100);
+        speedometer.setEwmaHalfLife(100);
+        for (int i = 0; i < 300; i++) {
+            speedometer.gain(i < 250 ? 1000 : 100);
+            speedometer.time += 10;
+        }
+        // 100KB/s for 2.5s,then 10KB/s for the last 0.5s
+        assertTrue(speedometer.getSpeed() > 60000);
+        assertTrue(speedometer.getEwmaSpeed() < 20000);
+        assertEquals(10000, speedometer.getInstantSpeed());
+    }
+
+    @Test
+    public void headerBytes_countNoFrames() throws Exception {
+        ManualSpeedometer speedometer = new ManualSpeedometer(1000, 100);
+        speedometer.gain(500, 0);
+        speedometer.time += 1000;
+        assertEquals(500, speedometer.getSpeed());
+        assertEquals(0f, speedometer.getFrameRate(), 0f);
+        speedometer.reset();
+        assertEquals(0, speedometer.getSpeed());
+        assertEquals(0, speedometer.getEwmaSpeed());
+    }
+
+    @Test
+    public void concurrentGains_areAllCounted() throws Exception {
+        final ManualSpeedometer speedometer = new ManualSpeedometer(1000, 100);
+        // open the bucket first,gains racing with its roll over may get lost
+        speedometer.gain(0, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        speedometer.gain(1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        speedometer.time += 100;
+        assertEquals(400000 * 1000 / 100, speedometer.getInstantSpeed());
+        assertEquals(400000 * 1000 / 100, (int) speedometer.getInstantFrameRate());
+    }
+}
@@ -0,0 +1,55 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RESDtsGeneratorTest {
+
+    @Test
+    public void noBFrames_dtsEqualsPts() throws Exception {
+        RESDtsGenerator generator = new RESDtsGenerator(0, 20);
+        for (int pts = 0; pts < 1000; pts += 50) {
+            assertEquals(pts, generator.next(pts));
+        }
+    }
+
+    @Test
+    public void bFrames_dtsIsMonotonicAndNotAfterPts() throws Exception {
+        RESDtsGenerator generator = new RESDtsGenerator(2, 20);
+        // I0 P3 B1 B2 P6 B4 B5 in decode order,50ms per frame
+        int[] pts = {100, 250, 150, 200, 400, 300, 350};
+        int[] expected = {0, 50, 100, 150, 200, 250, 300};
+        int lastDts = -1;
+        for (int i = 0; i < pts.length; i++) {
+            int dts = generator.next(pts[i]);
+            assertEquals(expected[i], dts);
+            assertTrue(dts >= lastDts);
+            assertTrue(dts <= pts[i]);
+            lastDts = dts;
+        }
+    }
+
+    @Test
+    public void startNearSessionOrigin_isClampedToZero() throws Exception {
+        RESDtsGenerator generator = new RESDtsGenerator(1, 20);
+        assertEquals(0, generator.next(10));
+        assertEquals(10, generator.next(110));
+        assertEquals(60, generator.next(60));
+    }
+
+    @Test
+    public void compositionTime_isSigned24BitBigEndian() throws Exception {
+        ByteBuffer tag = ByteBuffer.allocate(16);
+        Packager.FLVPackager.fillFlvVideoTag(tag, 0, false, false, 0, 0x012345);
+        assertEquals(0x01, tag.get(2));
+        assertEquals(0x23, tag.get(3));
+        assertEquals(0x45, tag.get(4));
+        byte[] negative = new byte[16];
+        Packager.FLVPackager.fillFlvVideoTag(negative, 0, false, false, 0, -50);
+        int cts = (negative[2] << 16) | ((negative[3] & 0xFF) << 8) | (negative[4] & 0xFF);
+        assertEquals(-50, cts);
+    }
+}
@@ -0,0 +1,70 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESFlvDataPoolTest {
+
+    @Test
+    public void release_recyclesIntoSameSizeClass() throws Exception {
+        RESFlvDataPool pool = new RESFlvDataPool();
+        RESFlvData first = pool.acquire(1000);
+        assertEquals(RESFlvDataPool.HEADROOM, first.directBuffer.position());
+        assertTrue(first.directBuffer.remaining() >= 1000);
+        first.dts = 40;
+        first.release();
+        RESFlvData second = pool.acquire(1500);
+        assertSame(first, second);
+        assertEquals(0, second.dts);
+        assertEquals(RESFlvDataPool.HEADROOM, second.directBuffer.position());
+        RESFlvDataPool.Stats stats = pool.getStats();
+        assertEquals(2, stats.acquireCount);
+        assertEquals(1, stats.hitCount);
+        assertEquals(1, stats.missCount);
+    }
+
+    @Test
+    public void retain_delaysRecycleUntilLastRelease() throws Exception {
+        RESFlvDataPool pool = new RESFlvDataPool();
+        RESFlvData flvData = pool.acquire(100).retain();
+        flvData.release();
+        assertNotSame(flvData, pool.acquire(100));
+        flvData.release();
+        assertSame(flvData, pool.acquire(100));
+    }
+
+    @Test
+    public void oversize_isNeverPooled() throws Exception {
+        RESFlvDataPool pool = new RESFlvDataPool();
+        RESFlvData big = pool.acquire(1024 * 1024);
+        assertTrue(big.directBuffer.remaining() >= 1024 * 1024);
+        big.release();
+        assertNotSame(big, pool.acquire(1024 * 1024));
+        assertEquals(2, pool.getStats().oversizeCount);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleRelease_isDetected() throws Exception {
+        RESFlvData flvData = new RESFlvDataPool().acquire(100);
+        flvData.release();
+        flvData.release();
+    }
+
+    @Test
+    public void leakDetection_tracksOutstandingFrames() throws Exception {
+        RESFlvDataPool pool = new RESFlvDataPool();
+        pool.setLeakDetection(true);
+        RESFlvData released = pool.acquire(100);
+        pool.acquire(100);
+        released.release();
+        assertEquals(1, pool.checkLeaks());
+    }
+
+    @Test
+    public void unpooledFrame_releaseIsNoop() throws Exception {
+        RESFlvData flvData = new RESFlvData();
+        flvData.release();
+        flvData.release();
+    }
+}
@@ -0,0 +1,193 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RESFlvInterleaverTest {
+
+    private static class Recorder implements RESFlvDataCollecter {
+        final List<RESFlvData> tags = new ArrayList<>();
+
+        @Override
+        public void collect(RESFlvData flvData, int type) {
+            tags.add(flvData);
+        }
+    }
+
+    private static RESFlvData tag(int type, int dts) {
+        RESFlvData flvData = new RESFlvData();
+        flvData.flvTagType = type;
+        flvData.dts = dts;
+        flvData.droppable = true;
+        return flvData;
+    }
+
+    private static RESFlvData audio(int dts) {
+        return tag(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, dts);
+    }
+
+    private static RESFlvData video(int dts) {
+        return tag(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, dts);
+    }
+
+    private static void assertNonDecreasing(List<RESFlvData> tags) {
+        for (int i = 1; i < tags.size(); i++) {
+            assertTrue(tags.get(i).dts >= tags.get(i - 1).dts);
+        }
+    }
+
+    private static int compositionTime(byte b0, byte b1, byte b2) {
+        return ((b0 << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8)) >> 8;
+    }
+
+    @Test
+    public void interleavedArrival_isEmittedInDtsOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 300);
+        // video runs 80ms behind audio on its way through the encoder
+        for (int t = 0; t < 1000; t += 23) {
+            interleaver.collect(audio(t), 8);
+            if (t >= 80) {
+                interleaver.collect(video(t - 80), 6);
+            }
+        }
+        interleaver.close();
+        assertNonDecreasing(recorder.tags);
+        assertEquals(0, interleaver.getLateCount());
+        assertEquals(0, interleaver.getHeldCount());
+        assertTrue(interleaver.getMaxAvSkew() >= 80);
+    }
+
+    @Test
+    public void silentStream_releasesAfterReorderWindow() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        interleaver.collect(audio(0), 8);
+        interleaver.collect(video(0), 6);
+        assertEquals(1, recorder.tags.size());
+        // audio went silent
+        interleaver.collect(video(50), 6);
+        assertEquals(1, recorder.tags.size());
+        interleaver.collect(video(101), 6);
+        assertEquals(2, recorder.tags.size());
+        assertEquals(2, interleaver.getHeldCount());
+    }
+
+    @Test
+    public void singleStream_passesThroughAfterOneWindow() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        interleaver.collect(audio(0), 8);
+        interleaver.collect(audio(50), 8);
+        assertEquals(0, recorder.tags.size());
+        // no video within the first window,nothing to wait for any more
+        interleaver.collect(audio(101), 8);
+        assertEquals(3, recorder.tags.size());
+        interleaver.collect(audio(124), 8);
+        assertEquals(4, recorder.tags.size());
+        assertEquals(0, interleaver.getHeldCount());
+        assertNonDecreasing(recorder.tags);
+    }
+
+    @Test
+    public void lateTag_isRestampedNotReordered() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        interleaver.collect(audio(0), 8);
+        interleaver.collect(video(0), 6);
+        interleaver.collect(video(200), 6);
+        interleaver.collect(video(400), 6);
+        // audio stalled for longer than the window,video up to 200 is already out
+        interleaver.collect(audio(150), 8);
+        interleaver.close();
+        assertNonDecreasing(recorder.tags);
+        assertEquals(1, interleaver.getLateCount());
+    }
+
+    @Test
+    public void lateVideo_keepsItsPts() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        interleaver.collect(video(0), 6);
+        interleaver.collect(audio(0), 8);
+        interleaver.collect(audio(200), 8);
+        interleaver.collect(audio(400), 8);
+        // video stalled,audio up to 200 is already out
+        RESFlvData bFrame = video(150);
+        bFrame.byteBuffer = new byte[16];
+        Packager.FLVPackager.fillFlvVideoTag(bFrame.byteBuffer, 0, false, false, 7, 80);
+        RESFlvData pFrame = video(160);
+        pFrame.directBuffer = ByteBuffer.allocateDirect(32);
+        pFrame.directBuffer.position(8);
+        Packager.FLVPackager.fillFlvVideoTag(pFrame.directBuffer, 8, false, false, 7, 20);
+        interleaver.collect(bFrame, 6);
+        interleaver.collect(pFrame, 6);
+        interleaver.close();
+        assertNonDecreasing(recorder.tags);
+        assertEquals(200, bFrame.dts);
+        assertEquals(30, compositionTime(bFrame.byteBuffer[2], bFrame.byteBuffer[3], bFrame.byteBuffer[4]));
+        // pts would fall before the new dts,clamped
+        assertEquals(200, pFrame.dts);
+        assertEquals(0, compositionTime(pFrame.directBuffer.get(10), pFrame.directBuffer.get(11), pFrame.directBuffer.get(12)));
+        assertEquals(7, pFrame.directBuffer.getInt(13));
+    }
+
+    @Test
+    public void sequenceHeader_passesThrough() throws Exception {
+        Recorder recorder = new Recorder();
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        RESFlvData header = video(0);
+        header.droppable = false;
+        interleaver.collect(audio(10), 8);
+        interleaver.collect(header, 6);
+        assertSame(header, recorder.tags.get(0));
+    }
+
+    @Test
+    public void slowDownstream_doesNotBlockTheOtherEncoder() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void collect(RESFlvData flvData, int type) {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException ignored) {
+                }
+                synchronized (this) {
+                    super.collect(flvData, type);
+                }
+            }
+        };
+        final RESFlvInterleaver interleaver = new RESFlvInterleaver(recorder, 100);
+        interleaver.collect(video(0), 6);
+        Thread audioEncoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // emits video 0 and blocks in downstream
+                interleaver.collect(audio(10), 8);
+            }
+        });
+        audioEncoder.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        // returns at once,the blocked thread emits these once it is let go
+        interleaver.collect(video(20), 6);
+        interleaver.collect(audio(30), 8);
+        interleaver.collect(video(40), 6);
+        proceed.countDown();
+        audioEncoder.join(5000);
+        interleaver.close();
+        synchronized (recorder) {
+            assertEquals(5, recorder.tags.size());
+            assertNonDecreasing(recorder.tags);
+        }
+    }
+}
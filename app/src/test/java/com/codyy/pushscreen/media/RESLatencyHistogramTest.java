@@ -0,0 +1,48 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESLatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueInOrder() throws Exception {
+        int last = -1;
+        for (long us = 0; us < 1 << 20; us++) {
+            int index = RESLatencyHistogram.indexOf(us);
+            assertTrue(index == last || index == last + 1);
+            assertTrue(RESLatencyHistogram.lowerBoundOf(index) <= us);
+            last = index;
+        }
+        assertEquals(RESLatencyHistogram.indexOf(Long.MAX_VALUE), RESLatencyHistogram.indexOf(1L << 40));
+    }
+
+    @Test
+    public void percentiles_withinOneSixteenth() throws Exception {
+        RESLatencyHistogram histogram = new RESLatencyHistogram();
+        // 1..1000ms
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500000, histogram.getPercentile(0.5), 500000 / 16);
+        assertEquals(900000, histogram.getPercentile(0.9), 900000 / 16);
+        assertEquals(990000, histogram.getPercentile(0.99), 990000 / 16);
+        assertEquals(1000000, histogram.getMax());
+        assertTrue(histogram.getPercentile(1) <= histogram.getMax());
+    }
+
+    @Test
+    public void negativeSamples_areIgnored() throws Exception {
+        RESLatencyHistogram histogram = new RESLatencyHistogram();
+        histogram.record(-5000);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        histogram.record(12000);
+        assertEquals(12, histogram.getPercentile(0.5));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
@@ -0,0 +1,99 @@
+package com.codyy.pushscreen.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RESPcmAggregatorTest {
+    private static final int SAMPLE_RATE = 44100;
+    /**
+     * audioRecoderBufferSize in CaptureService,not a multiple of an AAC frame
+     */
+    private static final int READ_SIZE = 4410;
+
+    private static ByteBuffer pcm(int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        buffer.position(0);
+        buffer.limit(bytes);
+        return buffer;
+    }
+
+    private static long us(long samples) {
+        return samples * 1000000 / SAMPLE_RATE;
+    }
+
+    @Test
+    public void chunks_areWholeFramesWithSampleAccuratePts() throws Exception {
+        RESPcmAggregator aggregator = new RESPcmAggregator(SAMPLE_RATE, 1, 2, 8820);
+        assertEquals(2 * 1024 * 2, aggregator.getChunkSize());
+        ByteBuffer input = ByteBuffer.allocate(8820);
+        int chunks = 0;
+        long captured = 0;
+        for (int read = 0; read < 20; read++) {
+            ByteBuffer src = pcm(READ_SIZE);
+            long srcPts = us(captured / 2);
+            captured += READ_SIZE;
+            while (src.hasRemaining()) {
+                if (aggregator.fill(src, srcPts, input)) {
+                    assertEquals(aggregator.getChunkSize(), aggregator.getLastChunkSize());
+                    assertEquals(us(chunks * 2048L), aggregator.getChunkPts());
+                    ++chunks;
+                    input.clear();
+                }
+            }
+        }
+        assertEquals(20 * READ_SIZE / aggregator.getChunkSize(), chunks);
+    }
+
+    @Test
+    public void framesPerBuffer_isClampedToEncoderInput() throws Exception {
+        RESPcmAggregator aggregator = new RESPcmAggregator(SAMPLE_RATE, 2, 8, 8820);
+        assertEquals(2 * 1024 * 4, aggregator.getChunkSize());
+        assertEquals(RESPcmAggregator.DEFAULT_FRAMES_PER_BUFFER * 1024 * 2,
+                new RESPcmAggregator(SAMPLE_RATE, 1, -1, -1).getChunkSize());
+    }
+
+    @Test
+    public void gapInCapture_resyncsPts() throws Exception {
+        RESPcmAggregator aggregator = new RESPcmAggregator(SAMPLE_RATE, 1, 1, 8820);
+        ByteBuffer input = ByteBuffer.allocate(8820);
+        assertTrue(aggregator.fill(pcm(2048), 1000, input));
+        assertEquals(1000, aggregator.getChunkPts());
+        input.clear();
+        // a little capture jitter stays on the sample clock
+        assertTrue(aggregator.fill(pcm(2048), 1000 + us(1024) + 3000, input));
+        assertEquals(1000 + us(1024), aggregator.getChunkPts());
+        input.clear();
+        // an overrun dropped 100ms
+        long afterGap = 1000 + us(2048) + 100000;
+        assertTrue(aggregator.fill(pcm(2048), afterGap, input));
+        assertEquals(afterGap, aggregator.getChunkPts());
+    }
+
+    @Test
+    public void shortEncoderInput_closesChunkOnAFrameBoundary() throws Exception {
+        RESPcmAggregator aggregator = new RESPcmAggregator(SAMPLE_RATE, 1, 2, 8820);
+        ByteBuffer input = ByteBuffer.allocate(3000);
+        ByteBuffer src = pcm(READ_SIZE);
+        assertTrue(aggregator.fill(src, 0, input));
+        assertEquals(2048, aggregator.getLastChunkSize());
+        assertEquals(READ_SIZE - 2048, src.remaining());
+        // the next chunk starts where the short one ended
+        input.clear();
+        assertTrue(aggregator.fill(src, 0, input));
+        assertEquals(2048, aggregator.getLastChunkSize());
+        assertEquals(us(1024), aggregator.getChunkPts());
+    }
+
+    @Test
+    public void encoderInputBelowOneFrame_takesWholeSamples() throws Exception {
+        RESPcmAggregator aggregator = new RESPcmAggregator(SAMPLE_RATE, 1, 2, 8820);
+        ByteBuffer input = ByteBuffer.allocate(1001);
+        ByteBuffer src = pcm(READ_SIZE);
+        assertTrue(aggregator.fill(src, 0, input));
+        assertEquals(1000, aggregator.getLastChunkSize());
+        assertEquals(READ_SIZE - 1000, src.remaining());
+    }
+}
@@ -0,0 +1,100 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RESAudioAggregatorTest {
+
+    private static RESFlvData audio(int dts, int size, boolean direct) {
+        RESFlvData flvData = new RESFlvData();
+        flvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+        flvData.droppable = true;
+        flvData.dts = dts;
+        flvData.size = size;
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (dts + i);
+        }
+        if (direct) {
+            flvData.directBuffer = ByteBuffer.allocateDirect(RtmpClient.DIRECT_HEADROOM + size);
+            flvData.directBuffer.position(RtmpClient.DIRECT_HEADROOM);
+            flvData.directBuffer.put(data);
+            flvData.directBuffer.position(RtmpClient.DIRECT_HEADROOM);
+        } else {
+            flvData.byteBuffer = data;
+        }
+        return flvData;
+    }
+
+    private static int u24(ByteBuffer buffer, int pos) {
+        return ((buffer.get(pos) & 0xff) << 16) | ((buffer.get(pos + 1) & 0xff) << 8) | (buffer.get(pos + 2) & 0xff);
+    }
+
+    @Test
+    public void bundle_isARunOfBackPointeredFlvTags() throws Exception {
+        RESAudioAggregator aggregator = new RESAudioAggregator(100, 16 * 1024);
+        RESFlvData first = audio(0x1000010, 90, true);
+        RESFlvData second = audio(0x1000027, 93, false);
+        aggregator.append(first);
+        aggregator.append(second);
+        assertEquals(2, aggregator.getCount());
+        assertEquals(183, aggregator.getPayloadBytes());
+        assertEquals(183 + 2 * 15, aggregator.getSize());
+        assertEquals(0x1000010, aggregator.getDts());
+        // the source tag is left as it was
+        assertEquals(RtmpClient.DIRECT_HEADROOM, first.directBuffer.position());
+
+        ByteBuffer body = aggregator.getBuffer();
+        int pos = RtmpClient.DIRECT_HEADROOM;
+        RESFlvData[] tags = {first, second};
+        for (RESFlvData tag : tags) {
+            assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, body.get(pos));
+            assertEquals(tag.size, u24(body, pos + 1));
+            assertEquals(tag.dts & 0xffffff, u24(body, pos + 4));
+            assertEquals(tag.dts >>> 24, body.get(pos + 7));
+            assertEquals(0, u24(body, pos + 8));
+            for (int i = 0; i < tag.size; i++) {
+                assertEquals((byte) (tag.dts + i), body.get(pos + 11 + i));
+            }
+            assertEquals(11 + tag.size, body.getInt(pos + 11 + tag.size));
+            pos += 15 + tag.size;
+        }
+        assertEquals(RtmpClient.DIRECT_HEADROOM + aggregator.getSize(), pos);
+    }
+
+    @Test
+    public void accepts_stopsAtWindowAndSize() throws Exception {
+        RESAudioAggregator aggregator = new RESAudioAggregator(80, 400);
+        assertTrue(aggregator.accepts(audio(0, 1000, false)));
+        aggregator.append(audio(0, 100, false));
+        assertTrue(aggregator.accepts(audio(79, 100, false)));
+        assertFalse(aggregator.accepts(audio(80, 100, false)));
+        aggregator.append(audio(23, 100, false));
+        aggregator.append(audio(46, 100, false));
+        assertFalse(aggregator.accepts(audio(69, 100, false)));
+        aggregator.reset();
+        assertTrue(aggregator.isEmpty());
+        assertTrue(aggregator.accepts(audio(500, 100, false)));
+    }
+
+    @Test
+    public void append_growsTheBufferKeepingContent() throws Exception {
+        RESAudioAggregator aggregator = new RESAudioAggregator(1000, 64 * 1024);
+        for (int i = 0; i < 40; i++) {
+            aggregator.append(audio(i, 300, true));
+        }
+        ByteBuffer body = aggregator.getBuffer();
+        int pos = RtmpClient.DIRECT_HEADROOM;
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, u24(body, pos + 4));
+            assertEquals((byte) i, body.get(pos + 11));
+            pos += 315;
+        }
+        assertEquals(40 * 315, aggregator.getSize());
+    }
+}
@@ -0,0 +1,198 @@
+package com.codyy.pushscreen.rtmp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RESChunkStreamTest {
+
+    private static class Collector implements RESChunkReader.Listener {
+        final List<RESChunkReader.Message> messages = new ArrayList<>();
+
+        @Override
+        public void onMessage(RESChunkReader.Message message) throws IOException {
+            messages.add(message);
+        }
+    }
+
+    private static ByteBuffer payload(int size, int seed) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + 8);
+        for (int i = 0; i < size; i++) {
+            buffer.put(4 + i, (byte) (seed + i));
+        }
+        return buffer;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = buffer.get(offset + i);
+        }
+        return data;
+    }
+
+    /**
+     * feed the reader in pieces of step bytes
+     */
+    private static void feed(RESChunkReader reader, ByteBuffer wire, int step, Collector collector) throws IOException {
+        wire.flip();
+        while (wire.hasRemaining()) {
+            int n = Math.min(step, wire.remaining());
+            ByteBuffer piece = wire.slice();
+            piece.limit(n);
+            reader.getBuffer().put(piece);
+            wire.position(wire.position() + n);
+            reader.parse(collector);
+        }
+    }
+
+    @Test
+    public void roundTrip_compressesHeaders() throws Exception {
+        RESChunkWriter writer = new RESChunkWriter();
+        writer.setChunkSize(4096);
+        RESChunkReader reader = new RESChunkReader(1024);
+        reader.setChunkSize(4096);
+        ByteBuffer wire = ByteBuffer.allocate(256 * 1024);
+        int[] sizes = {300, 300, 300, 5000, 20, 20};
+        int[] timestamps = {0, 23, 46, 69, 92, 115};
+        List<ByteBuffer> sent = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            ByteBuffer src = payload(sizes[i], i);
+            sent.add(src);
+            writer.write(wire, 5, 8, 1, timestamps[i], src, 4, sizes[i]);
+        }
+        // fmt0 12,fmt2 4,fmt3 1,fmt1 8 plus one continuation,fmt1 8,fmt3 1
+        assertEquals(12 + 4 + 1 + 8 + 1 + 8 + 1, writer.getHeaderBytes());
+        Collector collector = new Collector();
+        feed(reader, wire, 7, collector);
+        assertEquals(sizes.length, collector.messages.size());
+        for (int i = 0; i < sizes.length; i++) {
+            RESChunkReader.Message message = collector.messages.get(i);
+            assertEquals(5, message.csid);
+            assertEquals(8, message.type);
+            assertEquals(1, message.streamId);
+            assertEquals(timestamps[i], message.timestamp);
+            assertArrayEquals(bytes(sent.get(i), 4, sizes[i]), message.payload);
+        }
+    }
+
+    @Test
+    public void roundTrip_extendedTimestampAndSmallChunks() throws Exception {
+        RESChunkWriter writer = new RESChunkWriter();
+        RESChunkReader reader = new RESChunkReader(64);
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+        long[] timestamps = {0x1000000L, 0x1000040L, 0xfffffff0L};
+        for (int i = 0; i < timestamps.length; i++) {
+            ByteBuffer src = payload(1000, i);
+            assertTrue(wire.remaining() >= writer.maxWireSize(1000));
+            writer.write(wire, 4, 9, 1, (int) timestamps[i], src, 4, 1000);
+        }
+        Collector collector = new Collector();
+        feed(reader, wire, 1, collector);
+        assertEquals(3, collector.messages.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], collector.messages.get(i).timestamp);
+            assertEquals(1000, collector.messages.get(i).payload.length);
+        }
+    }
+
+    @Test
+    public void reader_followsChunkSizeChangeMidStream() throws Exception {
+        RESChunkWriter writer = new RESChunkWriter();
+        final RESChunkReader reader = new RESChunkReader(64);
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer setChunkSize = ByteBuffer.allocate(4);
+        setChunkSize.putInt(0, 10000);
+        writer.write(wire, 2, 1, 0, 0, setChunkSize, 0, 4);
+        writer.setChunkSize(10000);
+        writer.write(wire, 4, 9, 1, 0, payload(9000, 3), 4, 9000);
+        final List<RESChunkReader.Message> messages = new ArrayList<>();
+        wire.flip();
+        // a chunk larger than the reader's buffer streams through it
+        RESChunkReader.Listener listener = new RESChunkReader.Listener() {
+            @Override
+            public void onMessage(RESChunkReader.Message message) throws IOException {
+                if (message.type == 1) {
+                    reader.setChunkSize(ByteBuffer.wrap(message.payload).getInt());
+                }
+                messages.add(message);
+            }
+        };
+        while (wire.hasRemaining()) {
+            ByteBuffer in = reader.getBuffer();
+            int n = Math.min(in.remaining(), wire.remaining());
+            ByteBuffer piece = wire.slice();
+            piece.limit(n);
+            in.put(piece);
+            wire.position(wire.position() + n);
+            reader.parse(listener);
+        }
+        assertEquals(2, messages.size());
+        assertEquals(10000, reader.getChunkSize());
+        assertEquals(9000, messages.get(1).payload.length);
+    }
+
+    @Test
+    public void reader_allocatesOnlyWhatArrives() throws Exception {
+        RESChunkReader reader = new RESChunkReader(64);
+        int capacity = reader.getBuffer().capacity();
+        reader.setChunkSize(0x7fffffff);
+        assertEquals(RESChunkReader.MAX_CHUNK_SIZE, reader.getChunkSize());
+        assertEquals(capacity, reader.getBuffer().capacity());
+        // a message header claiming 16MB,followed by 10 bytes
+        ByteBuffer in = reader.getBuffer();
+        in.put((byte) 0x04);
+        in.put(new byte[]{0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, 9, 1, 0, 0, 0});
+        in.put(new byte[10]);
+        Collector collector = new Collector();
+        reader.parse(collector);
+        assertEquals(0, collector.messages.size());
+        assertEquals(capacity, reader.getBuffer().capacity());
+        assertEquals(0, reader.getBuffer().position());
+        try {
+            reader.setChunkSize(0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void amf0_roundTrip() throws Exception {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("app", "live");
+        object.put("fpad", false);
+        object.put("capabilities", 15.0);
+        object.put("nothing", null);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RESAmf0.write(buffer, "connect");
+        RESAmf0.write(buffer, 1.0);
+        RESAmf0.write(buffer, object);
+        RESAmf0.write(buffer, Arrays.asList((Object) "a", 2.0));
+        buffer.flip();
+        List<Object> values = RESAmf0.readAll(buffer);
+        assertEquals(Arrays.asList("connect", 1.0, object, Arrays.asList("a", 2.0)), values);
+    }
+
+    @Test
+    public void url_parse() throws Exception {
+        RESRtmpUrl url = RESRtmpUrl.parse("rtmp://127.0.0.1:1936/live/inst/stream?token=1/2");
+        assertEquals("127.0.0.1", url.host);
+        assertEquals(1936, url.port);
+        assertEquals("live/inst", url.app);
+        assertEquals("stream?token=1/2", url.playPath);
+        assertEquals("rtmp://127.0.0.1:1936/live/inst", url.tcUrl);
+        try {
+            RESRtmpUrl.parse("rtmp://host/stream");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * The java writer has to put the same bytes on the wire as the native sendPacketV.
+ * The table is the output of `sendbench vectors`(app/src/main/cpp/rtmp/bench),
+ * regenerate it there if the native writer changes on purpose.
+ */
+public class RESChunkWriterTest {
+    private static final int[] CHUNK_SIZES = {128, 4096, 65536};
+    /**
+     * per chunk size: bytes and FNV-1a 64 digest of the verify() messages,then of the compressed A/V stream
+     */
+    private static final long[][] VECTORS = {
+            {941635, 0x36d18954a57df8f8L, 4251543, 0x11ab1dc3c81f4312L},
+            {923513, 0x43481fd7c7e4ed44L, 4218849, 0x79e45f3e1a8ec12cL},
+            {922980, 0xdebb88735dfd78a8L, 4217924, 0x9d15cc160ca99b7eL},
+    };
+    private static final int[] VERIFY_SIZES = {0, 1, 127, 128, 129, 4096, 30000, 150001};
+    private static final int[] VERIFY_STAMPS = {0, 40, 0xfffffe, 0xffffff, 0x1000000};
+    private static final int AV_MESSAGES = 600;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * RTMP_MAX_HEADER_SIZE,sendbench fills the body from the start of its headroom
+     */
+    private static final int NATIVE_HEADROOM = 18;
+
+    private static final ByteBuffer BODY = body(150001);
+    private final ByteBuffer wire = ByteBuffer.allocate(200000);
+
+    private static ByteBuffer body(int size) {
+        ByteBuffer body = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            body.put(i, (byte) ((i + NATIVE_HEADROOM) * 31));
+        }
+        return body;
+    }
+
+    private static int csidOf(int type) {
+        return type == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO ? RESNioRtmpClient.CSID_VIDEO : RESNioRtmpClient.CSID_AUDIO;
+    }
+
+    private long write(RESChunkWriter writer, int type, int timestamp, int size) {
+        wire.clear();
+        writer.write(wire, csidOf(type), type, 1, timestamp, BODY, 0, size);
+        return wire.position();
+    }
+
+    private long fnv1a(long hash) {
+        for (int i = 0; i < wire.position(); i++) {
+            hash = (hash ^ (wire.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Test
+    public void singleMessages_matchNativeWriter() throws Exception {
+        for (int c = 0; c < CHUNK_SIZES.length; c++) {
+            long bytes = 0;
+            long hash = FNV_OFFSET;
+            for (int size : VERIFY_SIZES) {
+                for (int stamp : VERIFY_STAMPS) {
+                    RESChunkWriter writer = new RESChunkWriter();
+                    writer.setChunkSize(CHUNK_SIZES[c]);
+                    bytes += write(writer, RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, stamp, size);
+                    hash = fnv1a(hash);
+                }
+            }
+            assertEquals("chunk " + CHUNK_SIZES[c], VECTORS[c][0], bytes);
+            assertEquals("chunk " + CHUNK_SIZES[c], VECTORS[c][1], hash);
+        }
+    }
+
+    /**
+     * interleaved 30fps video and 23ms audio,constant and changing sizes,a pts jump and a step back,
+     * as sendbench's verifyCompressed()
+     */
+    @Test
+    public void compressedStream_matchesNativeWriter() throws Exception {
+        for (int c = 0; c < CHUNK_SIZES.length; c++) {
+            RESChunkWriter writer = new RESChunkWriter();
+            writer.setChunkSize(CHUNK_SIZES[c]);
+            long bytes = 0;
+            long hash = FNV_OFFSET;
+            int vts = 0;
+            int ats = 0;
+            for (int i = 0; i < AV_MESSAGES; i++) {
+                boolean video = i % 3 == 0;
+                if (video) {
+                    vts += i == 300 ? 0x1000000 : 33 + (i / 3) % 2;
+                } else {
+                    ats += i == 400 ? -10 : 23;
+                }
+                int size = video ? 1000 + (i * 7919) % 39000 : (i % 20 < 10 ? 372 : 360 + i % 7);
+                bytes += write(writer, video ? RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO : RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO,
+                        video ? vts : ats, size);
+                hash = fnv1a(hash);
+            }
+            assertEquals("chunk " + CHUNK_SIZES[c], VECTORS[c][2], bytes);
+            assertEquals("chunk " + CHUNK_SIZES[c], VECTORS[c][3], hash);
+        }
+    }
+}
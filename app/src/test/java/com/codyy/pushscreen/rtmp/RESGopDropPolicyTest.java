@@ -0,0 +1,54 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESGopDropPolicyTest {
+
+    private static RESFlvData video(boolean keyframe) {
+        RESFlvData flvData = new RESFlvData();
+        flvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        flvData.videoFrameType = keyframe ? RESFlvData.NALU_TYPE_IDR : 1;
+        flvData.droppable = true;
+        flvData.size = 1000;
+        return flvData;
+    }
+
+    @Test
+    public void crowdedQueue_dropsUntilNextKeyframe() throws Exception {
+        RESGopDropPolicy policy = new RESGopDropPolicy();
+        assertFalse(policy.shouldDrop(video(true), 0, false));
+        assertTrue(policy.shouldDrop(video(false), 1, true));
+        assertTrue(policy.shouldDrop(video(false), 2, false));
+        assertFalse(policy.shouldDrop(video(true), 3, true));
+        assertEquals(2, policy.getLastDroppedFrames());
+        assertEquals(2000, policy.getLastDroppedBytes());
+    }
+
+    @Test
+    public void rejectedFrame_dropsTheRestOfItsGop() throws Exception {
+        RESGopDropPolicy policy = new RESGopDropPolicy();
+        // 0,1 accepted,the next P-frame refused on offer,2 and 3 follow it
+        policy.onRejected(video(false), 2);
+        assertFalse(policy.shouldDrop(video(true), 0, false));
+        assertFalse(policy.shouldDrop(video(false), 1, false));
+        assertTrue(policy.shouldDrop(video(false), 2, false));
+        assertTrue(policy.shouldDrop(video(false), 3, false));
+        assertFalse(policy.shouldDrop(video(true), 4, false));
+        assertEquals(2, policy.getLastDroppedFrames());
+        assertFalse(policy.shouldDrop(video(false), 5, false));
+    }
+
+    @Test
+    public void rejectedFrameBeforeKeyframe_dropsNothing() throws Exception {
+        RESGopDropPolicy policy = new RESGopDropPolicy();
+        policy.onRejected(video(false), 1);
+        assertFalse(policy.shouldDrop(video(false), 0, false));
+        assertFalse(policy.shouldDrop(video(true), 1, false));
+        assertFalse(policy.shouldDrop(video(false), 2, false));
+        assertFalse(policy.isDropping());
+    }
+}
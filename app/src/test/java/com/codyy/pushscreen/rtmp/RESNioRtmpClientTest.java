@@ -0,0 +1,131 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RESNioRtmpClientTest {
+    private RESRtmpStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RESRtmpStandInServer().setPingBeforeConnectResult(true).setKeepPayloads(true).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static ByteBuffer directTag(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RtmpClient.DIRECT_HEADROOM + body.length);
+        buffer.position(RtmpClient.DIRECT_HEADROOM);
+        buffer.put(body);
+        buffer.position(RtmpClient.DIRECT_HEADROOM);
+        return buffer;
+    }
+
+    @Test
+    public void publish_handshakeCommandsAndMedia() throws Exception {
+        RESNioRtmpClient client = new RESNioRtmpClient();
+        assertTrue(client.open(server.getUrl("test"), 4096));
+        assertEquals("127.0.0.1", client.getServerIpAddr());
+
+        byte[] metaData = new byte[]{2, 0, 1, 'x'};
+        assertEquals(0, client.write(metaData, metaData.length, RESFlvData.FLV_RTMP_PACKET_TYPE_INFO, 0));
+        byte[] avcHeader = {0x17, 0, 0, 0, 0, 1, 0x42};
+        assertEquals(0, client.write(avcHeader, avcHeader.length, RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, 0));
+        byte[] aacHeader = {(byte) 0xaf, 0, 0x12, 0x10};
+        assertEquals(0, client.write(aacHeader, aacHeader.length, RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, 0));
+        byte[] keyframe = new byte[10000];
+        keyframe[0] = 0x17;
+        keyframe[1] = 1;
+        keyframe[9999] = 0x55;
+        assertEquals(0, client.write(directTag(keyframe), RtmpClient.DIRECT_HEADROOM, 10000,
+                RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, 40));
+        ByteBuffer[] data = new ByteBuffer[3];
+        int[] offsets = new int[3];
+        int[] sizes = new int[3];
+        int[] types = new int[3];
+        int[] timestamps = new int[3];
+        int[] results = new int[3];
+        for (int i = 0; i < 3; i++) {
+            data[i] = directTag(new byte[]{(byte) 0xaf, 1, (byte) i});
+            offsets[i] = RtmpClient.DIRECT_HEADROOM;
+            sizes[i] = 3;
+            types[i] = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+            timestamps[i] = 50 + i * 23;
+        }
+        assertEquals(3, client.writeBatch(data, offsets, sizes, types, timestamps, 3, results));
+        assertArrayEquals(new int[]{0, 0, 0}, results);
+        assertTrue(client.getHeaderBytes() > 0);
+        client.close();
+        assertTrue(server.awaitCommand("deleteStream", 5000));
+
+        assertEquals(Arrays.asList("connect", "releaseStream", "FCPublish", "createStream", "publish",
+                "FCUnpublish", "deleteStream"), server.getCommands());
+        // only publish goes on the created stream
+        assertEquals(Arrays.asList(0, 0, 0, 0, 1, 0, 0), server.getCommandStreamIds());
+        List<RESChunkReader.Message> pongs = server.getControlMessages(RESNioRtmpClient.TYPE_USER_CONTROL);
+        assertEquals(1, pongs.size());
+        assertEquals(RESNioRtmpClient.USER_CONTROL_PING_RESPONSE, ByteBuffer.wrap(pongs.get(0).payload).getShort());
+        assertEquals(1, server.getControlMessages(RESNioRtmpClient.TYPE_WINDOW_ACK_SIZE).size());
+        assertEquals(4096, ByteBuffer.wrap(server.getControlMessages(RESNioRtmpClient.TYPE_SET_CHUNK_SIZE).get(0).payload).getInt());
+
+        assertEquals(1, server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_INFO).size());
+        List<RESRtmpStandInServer.Tag> videos = server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO);
+        assertEquals(2, videos.size());
+        assertTrue(videos.get(0).sequenceHeader);
+        assertTrue(videos.get(1).keyframe);
+        assertEquals(40, videos.get(1).timestamp);
+        assertArrayEquals(keyframe, videos.get(1).data);
+        List<RESRtmpStandInServer.Tag> audios = server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO);
+        assertEquals(4, audios.size());
+        assertEquals(96, audios.get(3).timestamp);
+        assertEquals(Arrays.asList(), server.getViolations());
+    }
+
+    @Test
+    public void write_acknowledgesServerWindow() throws Exception {
+        server.stop();
+        server = new RESRtmpStandInServer().setWindowAckSize(100).start();
+        RESNioRtmpClient client = new RESNioRtmpClient();
+        assertTrue(client.open(server.getUrl("test"), 128));
+        // the server sends more than 100 bytes before publish starts
+        assertFalse(server.getControlMessages(RESNioRtmpClient.TYPE_ACK).isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void write_failsAfterServerWentAway() throws Exception {
+        RESNioRtmpClient client = new RESNioRtmpClient();
+        assertTrue(client.open(server.getUrl("test"), 128));
+        server.stop();
+        ByteBuffer video = ByteBuffer.allocateDirect(RtmpClient.DIRECT_HEADROOM + 64 * 1024);
+        int res = 0;
+        for (int i = 0; i < 100 && res == 0; i++) {
+            res = client.write(video, RtmpClient.DIRECT_HEADROOM, 64 * 1024, RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, i * 40);
+            Thread.sleep(5);
+        }
+        assertEquals(RESNioRtmpClient.ERROR, res);
+        assertNotNull(client.getLastError());
+        client.close();
+    }
+
+    @Test
+    public void open_failsWithoutServer() throws Exception {
+        String url = server.getUrl("test");
+        server.stop();
+        RESNioRtmpClient client = new RESNioRtmpClient();
+        assertFalse(client.open(url, 4096));
+        assertNotNull(client.getLastError());
+    }
+}
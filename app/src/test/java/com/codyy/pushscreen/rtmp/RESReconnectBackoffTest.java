@@ -0,0 +1,34 @@
+package com.codyy.pushscreen.rtmp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RESReconnectBackoffTest {
+
+    @Test
+    public void delay_doublesUpToMax() throws Exception {
+        RESReconnectBackoff backoff = new RESReconnectBackoff(500, 4000, 0f, new Random(1));
+        assertEquals(500, backoff.nextDelay());
+        assertEquals(1000, backoff.nextDelay());
+        assertEquals(2000, backoff.nextDelay());
+        assertEquals(4000, backoff.nextDelay());
+        assertEquals(4000, backoff.nextDelay());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(4000, backoff.nextDelay());
+        }
+        backoff.reset();
+        assertEquals(500, backoff.nextDelay());
+    }
+
+    @Test
+    public void jitter_staysWithinBounds() throws Exception {
+        RESReconnectBackoff backoff = new RESReconnectBackoff(1000, 1000, 0.3f, new Random(42));
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= 700 && delay <= 1300);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.Packager;
+import com.codyy.pushscreen.media.RESCoreParameters;
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+import com.codyy.pushscreen.media.RESLatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * RESRtmpSender on the java transport against {@link RESRtmpStandInServer}
+ */
+public class RESRtmpSenderTest {
+    private static final int FRAME_INTERVAL = 40;
+    private static final int AUDIO_INTERVAL = 23;
+    private RESRtmpStandInServer server;
+    private RESRtmpSender sender;
+    private volatile boolean keyFrameRequested = false;
+    /**
+     * dts of every video frame fed,keyframes separately
+     */
+    private final List<Integer> fedVideo = new ArrayList<>();
+    private final Set<Integer> fedKeyframes = new HashSet<>();
+    private int fedAudio = 0;
+    private int videoDts = 0;
+    private int audioDts = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        sender = new RESRtmpSender();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.stop();
+        sender.destroy();
+        server.stop();
+    }
+
+    private static RESCoreParameters parameters() {
+        RESCoreParameters parameters = new RESCoreParameters();
+        parameters.senderQueueLength = 150;
+        parameters.senderChunkSize = 4096;
+        parameters.senderReconnectMinDelay = 50;
+        parameters.senderReconnectMaxDelay = 200;
+        parameters.senderJavaTransport = true;
+        parameters.mediacodecAVCFrameRate = 25;
+        parameters.videoWidth = 1280;
+        parameters.videoHeight = 720;
+        return parameters;
+    }
+
+    private void start(RESCoreParameters parameters) {
+        sender.prepare(parameters);
+        sender.setKeyFrameRequestListener(new RESRtmpSender.OnKeyFrameRequestListener() {
+            @Override
+            public void onKeyFrameRequest() {
+                keyFrameRequested = true;
+            }
+        });
+        sender.start(server.getUrl("test"));
+        byte[] avcHeader = new byte[Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH + 4];
+        Packager.FLVPackager.fillFlvVideoTag(avcHeader, 0, true, true, 4);
+        feedHeader(avcHeader, RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, RESRtmpSender.FROM_VIDEO);
+        byte[] aacHeader = new byte[Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH + 2];
+        Packager.FLVPackager.fillFlvAudioTag(aacHeader, 0, true);
+        feedHeader(aacHeader, RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, RESRtmpSender.FROM_AUDIO);
+    }
+
+    private void feedHeader(byte[] tag, int type, int from) {
+        RESFlvData flvData = new RESFlvData();
+        flvData.droppable = false;
+        flvData.byteBuffer = tag;
+        flvData.size = tag.length;
+        flvData.flvTagType = type;
+        flvData.videoFrameType = RESFlvData.NALU_TYPE_IDR;
+        sender.feed(flvData, from);
+    }
+
+    private void feedVideo(int size, boolean keyframe) {
+        RESFlvData flvData = RESFlvDataPool.i().acquire(size);
+        ByteBuffer buffer = flvData.directBuffer;
+        Packager.FLVPackager.fillFlvVideoTag(buffer, buffer.position(), false, keyframe,
+                size - Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH, 0);
+        flvData.droppable = true;
+        flvData.size = size;
+        flvData.dts = videoDts;
+        flvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        flvData.videoFrameType = keyframe ? RESFlvData.NALU_TYPE_IDR : 1;
+        flvData.encodedNanos = System.nanoTime();
+        flvData.packagedNanos = flvData.encodedNanos;
+        fedVideo.add(videoDts);
+        if (keyframe) {
+            fedKeyframes.add(videoDts);
+        }
+        videoDts += FRAME_INTERVAL;
+        sender.feed(flvData, RESRtmpSender.FROM_VIDEO);
+    }
+
+    /**
+     * audio up to the current video dts
+     */
+    private void feedAudio(int size) {
+        while (audioDts < videoDts) {
+            RESFlvData flvData = RESFlvDataPool.i().acquire(size);
+            ByteBuffer buffer = flvData.directBuffer;
+            Packager.FLVPackager.fillFlvAudioTag(buffer, buffer.position(), false);
+            flvData.droppable = true;
+            flvData.size = size;
+            flvData.dts = audioDts;
+            flvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+            ++fedAudio;
+            audioDts += AUDIO_INTERVAL;
+            sender.feed(flvData, RESRtmpSender.FROM_AUDIO);
+        }
+    }
+
+    private static List<RESRtmpStandInServer.Tag> media(List<RESRtmpStandInServer.Tag> tags, int connection) {
+        List<RESRtmpStandInServer.Tag> result = new ArrayList<>();
+        for (RESRtmpStandInServer.Tag tag : tags) {
+            if (tag.connection == connection && !tag.sequenceHeader) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void publish_everyTagArrivesInOrder() throws Exception {
+        server = new RESRtmpStandInServer().start();
+        start(parameters());
+        // in real time,a burst would rightly be taken for congestion
+        for (int i = 0; i < 30; i++) {
+            feedVideo(3000, i % 25 == 0);
+            feedAudio(200);
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        // metadata and two sequence headers
+        assertTrue(server.awaitTags(3 + fedVideo.size() + fedAudio, 5000));
+        List<RESRtmpStandInServer.Tag> tags = server.getTags();
+        assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_INFO, tags.get(0).type);
+        List<RESRtmpStandInServer.Tag> videos = media(server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO), 1);
+        assertEquals(fedVideo.size(), videos.size());
+        for (int i = 0; i < videos.size(); i++) {
+            assertEquals((long) fedVideo.get(i), videos.get(i).timestamp);
+            assertEquals(3000, videos.get(i).size);
+        }
+        List<RESRtmpStandInServer.Tag> audios = media(server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO), 1);
+        assertEquals(fedAudio, audios.size());
+        assertEquals((long) (fedAudio - 1) * AUDIO_INTERVAL, audios.get(audios.size() - 1).timestamp);
+        assertEquals(new ArrayList<String>(), server.getViolations());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void latencyTracer_countsEveryStageOfSentFrames() throws Exception {
+        server = new RESRtmpStandInServer().start();
+        start(parameters());
+        for (int i = 0; i < 10; i++) {
+            feedVideo(3000, i == 0);
+            feedAudio(200);
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        assertTrue(server.awaitTags(3 + fedVideo.size() + fedAudio, 5000));
+        RESLatencyTracer tracer = sender.getLatencyTracer();
+        RESLatencyHistogram total = tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, RESLatencyTracer.STAGE_TOTAL);
+        // the server may read a tag before the write call returns
+        for (int i = 0; i < 100 && total.getCount() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, total.getCount());
+        // the sequence header has no encoder stamp but was queued and written
+        assertEquals(11, tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, RESLatencyTracer.STAGE_QUEUE).getCount());
+        assertEquals(11, tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, RESLatencyTracer.STAGE_WRITE).getCount());
+        assertEquals(10, tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, RESLatencyTracer.STAGE_PACKAGE).getCount());
+        assertTrue(total.getPercentile(0.5) <= total.getMax());
+        // aggregated audio counts once per aggregate
+        assertEquals(fedAudio + 1, tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, RESLatencyTracer.STAGE_QUEUE).getCount());
+        assertTrue(tracer.getHistogram(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, RESLatencyTracer.STAGE_WRITE).getCount() > 0);
+    }
+
+    @Test
+    public void stats_countEveryFrameSent() throws Exception {
+        server = new RESRtmpStandInServer().start();
+        start(parameters());
+        for (int i = 0; i < 10; i++) {
+            feedVideo(3000, i == 0);
+            feedAudio(200);
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        assertTrue(server.awaitTags(3 + fedVideo.size() + fedAudio, 5000));
+        RESStreamStats stats = sender.getStats();
+        // the server may read a tag before the write call returns
+        for (int i = 0; i < 100 && stats.video.sentFrames + stats.audio.sentFrames < 12 + fedAudio; i++) {
+            Thread.sleep(10);
+            stats = sender.getStats();
+        }
+        // plus the sequence headers
+        assertEquals(11, stats.video.enqueuedFrames);
+        assertEquals(11, stats.video.sentFrames);
+        assertEquals(stats.video.enqueuedBytes, stats.video.sentBytes);
+        assertTrue(stats.video.sentBytes > 10 * 3000);
+        assertEquals(fedAudio + 1, stats.audio.enqueuedFrames);
+        assertEquals(fedAudio + 1, stats.audio.sentFrames);
+        assertEquals(stats.audio.enqueuedBytes, stats.audio.sentBytes);
+        assertEquals(0, stats.video.getDroppedFrames() + stats.audio.getDroppedFrames());
+        assertEquals(0, stats.video.queueDepth);
+        assertTrue(stats.video.encoderFps > 0);
+        assertTrue(stats.connected);
+        assertEquals(0, stats.writeErrors);
+    }
+
+    @Test
+    public void reconnect_replaysSequenceHeadersAndResumesAtKeyframe() throws Exception {
+        server = new RESRtmpStandInServer().start();
+        start(parameters());
+        for (int i = 0; i < 10; i++) {
+            feedVideo(3000, i == 0);
+            feedAudio(200);
+        }
+        assertTrue(server.awaitTags(3 + 10, 5000));
+        server.closeConnection();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline
+                && media(server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO), 2).size() < 5) {
+            feedVideo(3000, keyFrameRequested);
+            keyFrameRequested = false;
+            feedAudio(200);
+            Thread.sleep(FRAME_INTERVAL / 2);
+        }
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(1, sender.getReconnectCount());
+        List<RESRtmpStandInServer.Tag> second = new ArrayList<>();
+        for (RESRtmpStandInServer.Tag tag : server.getTags()) {
+            if (tag.connection == 2) {
+                second.add(tag);
+            }
+        }
+        assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_INFO, second.get(0).type);
+        assertTrue(second.get(1).sequenceHeader);
+        assertTrue(second.get(2).sequenceHeader);
+        List<RESRtmpStandInServer.Tag> videos = media(server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO), 2);
+        assertTrue(videos.get(0).keyframe);
+        assertEquals(new ArrayList<String>(), server.getViolations());
+    }
+
+    @Test
+    public void reconnect_countsOnlyAttemptsThatSucceed() throws Exception {
+        server = new RESRtmpStandInServer().start();
+        start(parameters());
+        feedVideo(3000, true);
+        feedAudio(200);
+        assertTrue(server.awaitTags(3 + 1, 5000));
+        server.stop();
+        // several attempts at 50..200ms against the closed port
+        for (int i = 0; i < 50; i++) {
+            feedVideo(3000, false);
+            feedAudio(200);
+            Thread.sleep(FRAME_INTERVAL / 2);
+        }
+        assertFalse(sender.getStats().connected);
+        assertEquals(0, sender.getReconnectCount());
+    }
+
+    @Test
+    public void slowUplink_dropsWholeGopsAndBoundsTheQueue() throws Exception {
+        server = new RESRtmpStandInServer(16 * 1024).setReadRate(150 * 1024).start();
+        RESCoreParameters parameters = parameters();
+        parameters.senderQueueMaxBytes = 256 * 1024;
+        parameters.senderQueueMaxDelay = 1000;
+        start(parameters);
+        long maxQueued = 0;
+        // 20KB frames at 25fps is about 3 times the uplink
+        for (int i = 0; i < 75; i++) {
+            feedVideo(20 * 1024, i % 25 == 0);
+            feedAudio(200);
+            maxQueued = Math.max(maxQueued, sender.getQueuedBytes());
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        assertTrue(server.awaitCommand("publish", 1000));
+        Thread.sleep(1000);
+        assertTrue("queued " + maxQueued, maxQueued <= parameters.senderQueueMaxBytes + 20 * 1024);
+        List<RESRtmpStandInServer.Tag> videos = media(server.getTags(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO), 1);
+        assertTrue(videos.size() < fedVideo.size());
+        assertTrue(videos.get(0).keyframe);
+        RESStreamStats stats = sender.getStats();
+        assertEquals(fedVideo.size() + 1, stats.video.enqueuedFrames + stats.video.getDroppedFrames(RESStreamStats.DROP_QUEUE_FULL));
+        assertTrue(stats.video.sentFrames <= stats.video.enqueuedFrames - stats.video.getDroppedFrames(RESStreamStats.DROP_CONGESTION));
+        // a frame after a gap has to be an IDR,the decoder could not use anything else
+        int next = 0;
+        for (RESRtmpStandInServer.Tag video : videos) {
+            int index = fedVideo.indexOf((int) video.timestamp);
+            assertTrue(index >= next);
+            if (index > next) {
+                assertTrue("P frame at " + video.timestamp + " after a gap", fedKeyframes.contains((int) video.timestamp));
+            }
+            next = index + 1;
+        }
+        assertEquals(new ArrayList<String>(), server.getViolations());
+    }
+}
@@ -0,0 +1,56 @@
+package com.codyy.pushscreen.rtmp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESSendBudgetTest {
+
+    @Test
+    public void drainTime_limitsTheQueue() throws Exception {
+        RESSendBudget budget = new RESSendBudget(1000000, 1000);
+        budget.updateSendSpeed(10000);
+        assertTrue(budget.tryAcquire(6000));
+        assertEquals(600, budget.getEstimatedDrainMs());
+        assertFalse(budget.tryAcquire(6000));
+        assertTrue(budget.tryAcquire(4000));
+        assertEquals(1f, budget.getOccupancy(), 0.001f);
+    }
+
+    @Test
+    public void zeroSpeed_keepsTheLastSpeed() throws Exception {
+        RESSendBudget budget = new RESSendBudget(1000000, 1000);
+        budget.updateSendSpeed(10000);
+        budget.updateSendSpeed(0);
+        assertTrue(budget.tryAcquire(5000));
+        assertEquals(500, budget.getEstimatedDrainMs());
+        assertFalse(budget.tryAcquire(6000));
+    }
+
+    @Test
+    public void stallWithBytesQueued_isOverBudget() throws Exception {
+        RESSendBudget budget = new RESSendBudget(1000000, 1000);
+        budget.updateSendSpeed(10000);
+        assertTrue(budget.tryAcquire(100));
+        budget.updateSendSpeed(0);
+        assertEquals(Long.MAX_VALUE, budget.getEstimatedDrainMs());
+        assertEquals(1f, budget.getOccupancy(), 0.001f);
+        assertFalse(budget.tryAcquire(100));
+        // an empty queue still takes a tag
+        budget.release(100);
+        assertEquals(0, budget.getOccupancy(), 0.001f);
+        assertTrue(budget.tryAcquire(100));
+        budget.updateSendSpeed(10000);
+        assertEquals(10, budget.getEstimatedDrainMs());
+        assertTrue(budget.tryAcquire(100));
+    }
+
+    @Test
+    public void zeroSpeedBeforeTheFirstSend_isNotAStall() throws Exception {
+        RESSendBudget budget = new RESSendBudget(1000000, 1000);
+        assertTrue(budget.tryAcquire(100));
+        budget.updateSendSpeed(0);
+        assertEquals(0, budget.getEstimatedDrainMs());
+        assertTrue(budget.tryAcquire(100));
+    }
+}
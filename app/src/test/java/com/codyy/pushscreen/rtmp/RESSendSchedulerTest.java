@@ -0,0 +1,40 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RESSendSchedulerTest {
+
+    private static RESFlvData tag(int type, int size, boolean droppable) {
+        RESFlvData flvData = new RESFlvData();
+        flvData.flvTagType = type;
+        flvData.size = size;
+        flvData.droppable = droppable;
+        return flvData;
+    }
+
+    @Test
+    public void sequenceHeader_isAcceptedIntoAFullBudget() throws Exception {
+        RESSendBudget budget = new RESSendBudget(10000, 1000);
+        RESSendScheduler scheduler = new RESSendScheduler(16, budget, 100);
+        assertTrue(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, 9000, true)));
+        assertFalse(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, 2000, true)));
+        assertTrue(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, 2000, false)));
+        assertTrue(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, 7, false)));
+        assertEquals(11007, budget.getQueuedBytes());
+        // a stalled queue refuses frames but still takes the headers
+        budget.updateSendSpeed(10000);
+        budget.updateSendSpeed(0);
+        assertFalse(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, 100, true)));
+        assertTrue(scheduler.offer(tag(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, 7, false)));
+        int polled = 0;
+        while (scheduler.poll() != null) {
+            ++polled;
+        }
+        assertEquals(4, polled);
+        assertEquals(0, budget.getQueuedBytes());
+    }
+}
@@ -0,0 +1,88 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RESWriteBatchTest {
+
+    @Test
+    public void add_keepsFramesAliveUntilClear() throws Exception {
+        RESFlvDataPool pool = RESFlvDataPool.i();
+        RESWriteBatch batch = new RESWriteBatch();
+        RESFlvData frame = pool.acquire(1000);
+        frame.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        frame.dts = 40;
+        frame.size = 1000;
+        long released = pool.getStats().releaseCount;
+
+        batch.add(frame);
+        // the sender drops its own reference right after queueing the tag
+        frame.release();
+        assertEquals(released, pool.getStats().releaseCount);
+        assertSame(frame.directBuffer, batch.data[0]);
+        assertEquals(frame.directBuffer.position(), batch.offsets[0]);
+        assertEquals(1000, batch.sizes[0]);
+        assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO, batch.types[0]);
+        assertEquals(40, batch.timestamps[0]);
+
+        batch.clear();
+        assertEquals(released + 1, pool.getStats().releaseCount);
+        assertTrue(batch.isEmpty());
+        assertNull(batch.data[0]);
+    }
+
+    @Test
+    public void add_withoutOwnerUntilFull() throws Exception {
+        RESWriteBatch batch = new RESWriteBatch();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RtmpClient.DIRECT_HEADROOM + 100);
+        for (int i = 0; i < RtmpClient.WRITE_BATCH_MAX; i++) {
+            assertFalse(batch.isFull());
+            batch.add(buffer, RtmpClient.DIRECT_HEADROOM, 100, RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE, i, null);
+        }
+        assertTrue(batch.isFull());
+        assertEquals(RtmpClient.WRITE_BATCH_MAX, batch.size());
+        try {
+            batch.add(buffer, RtmpClient.DIRECT_HEADROOM, 100, RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, 0, null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        batch.clear();
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void add_aggregatorCountsItsFrames() throws Exception {
+        RESAudioAggregator aggregator = new RESAudioAggregator(80, 16 * 1024);
+        RESFlvData tag = new RESFlvData();
+        tag.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+        tag.byteBuffer = new byte[200];
+        tag.size = 200;
+        for (int i = 0; i < 3; i++) {
+            tag.dts = i * 23;
+            tag.dequeuedNanos = 1000 + i;
+            aggregator.append(tag);
+        }
+        RESWriteBatch batch = new RESWriteBatch();
+        batch.add(aggregator);
+        assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE, batch.types[0]);
+        assertEquals(aggregator.getSize(), batch.sizes[0]);
+        assertEquals(3, batch.frames[0]);
+        assertEquals(600, batch.frameBytes[0]);
+        // the oldest tag's stamp
+        assertEquals(1000, batch.dequeuedNanos[0]);
+        batch.clear();
+
+        aggregator.reset();
+        aggregator.append(tag);
+        batch.add(aggregator);
+        assertEquals(RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO, batch.types[0]);
+        assertEquals(200, batch.sizes[0]);
+        assertEquals(1, batch.frames[0]);
+    }
+}
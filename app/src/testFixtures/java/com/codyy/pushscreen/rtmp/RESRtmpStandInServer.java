@@ -0,0 +1,520 @@
+package com.codyy.pushscreen.rtmp;
+
+import com.codyy.pushscreen.media.RESFlvData;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process rtmp ingest server for tests and benchmarks on a plain jvm.
+ * Accepts one publisher at a time,reconnects are served one after another.
+ * Every media tag is recorded with its arrival time,Aggregate messages are split into their tags.
+ * The stream is checked while it arrives,see {@link #getViolations()}:
+ * media before its sequence header on a connection,timestamps going back,
+ * media off the published stream and broken Aggregate messages.
+ * Reads can be throttled to simulate a slow uplink.
+ */
+public class RESRtmpStandInServer {
+    public static final int STREAM_ID = 1;
+
+    public static class Tag {
+        /**
+         * 1 for the first connection
+         */
+        public int connection;
+        public int type;
+        public long timestamp;
+        public int size;
+        public long arrivalNanos;
+        public boolean sequenceHeader;
+        public boolean keyframe;
+        /**
+         * the tag body,only if payloads are kept
+         */
+        public byte[] data;
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile SocketChannel channel;
+    private volatile boolean stopped = false;
+    private volatile Throwable error;
+
+    private volatile long readRate = 0;
+    private volatile boolean keepPayloads = false;
+    private volatile boolean pingBeforeConnectResult = false;
+    private volatile int windowAckSize = 0;
+
+    private final List<Tag> tags = new ArrayList<>();
+    private final List<RESChunkReader.Message> controlMessages = new ArrayList<>();
+    private final List<String> commands = new ArrayList<>();
+    private final List<Integer> commandStreamIds = new ArrayList<>();
+    private final List<String> violations = new ArrayList<>();
+    private int connections = 0;
+    private long bytesRead = 0;
+
+    /**
+     * per connection
+     */
+    private RESChunkReader reader;
+    private RESChunkWriter writer;
+    private boolean avcSequenceHeaderSeen;
+    private boolean aacSequenceHeaderSeen;
+    private long lastVideoTimestamp;
+    private long lastAudioTimestamp;
+
+    public RESRtmpStandInServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param receiveBufferSize socket receive buffer,0 for the system default.
+     *                          a small one makes throttling reach the sender sooner
+     */
+    public RESRtmpStandInServer(int receiveBufferSize) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        if (receiveBufferSize > 0) {
+            serverChannel.socket().setReceiveBufferSize(receiveBufferSize);
+        }
+        serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * @param bytesPerSecond 0 reads as fast as possible
+     */
+    public RESRtmpStandInServer setReadRate(long bytesPerSecond) {
+        readRate = bytesPerSecond;
+        return this;
+    }
+
+    public RESRtmpStandInServer setKeepPayloads(boolean keepPayloads) {
+        this.keepPayloads = keepPayloads;
+        return this;
+    }
+
+    /**
+     * ping the client between connect and its result,it has to answer while waiting
+     */
+    public RESRtmpStandInServer setPingBeforeConnectResult(boolean pingBeforeConnectResult) {
+        this.pingBeforeConnectResult = pingBeforeConnectResult;
+        return this;
+    }
+
+    /**
+     * @param windowAckSize announced to the client after connect,0 announces nothing
+     */
+    public RESRtmpStandInServer setWindowAckSize(int windowAckSize) {
+        this.windowAckSize = windowAckSize;
+        return this;
+    }
+
+    public RESRtmpStandInServer start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "RESRtmpStandInServer");
+        thread.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public String getUrl(String playPath) {
+        return "rtmp://127.0.0.1:" + getPort() + "/live/" + playPath;
+    }
+
+    /**
+     * drop the current publisher,the next one is accepted right away
+     */
+    public void closeConnection() {
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        stopped = true;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        closeConnection();
+        if (thread != null) {
+            thread.join(5000);
+        }
+    }
+
+    private void serve() {
+        while (!stopped) {
+            try {
+                SocketChannel accepted = serverChannel.accept();
+                synchronized (this) {
+                    ++connections;
+                }
+                channel = accepted;
+                handle();
+            } catch (EOFException ignored) {
+                // publisher went away
+            } catch (IOException e) {
+                // closed by closeConnection() or stop()
+            } catch (Throwable e) {
+                error = e;
+                synchronized (this) {
+                    violations.add("server error:" + e);
+                }
+            } finally {
+                closeConnection();
+                channel = null;
+            }
+        }
+    }
+
+    private void handle() throws IOException {
+        reader = new RESChunkReader(64 * 1024);
+        writer = new RESChunkWriter();
+        avcSequenceHeaderSeen = false;
+        aacSequenceHeaderSeen = false;
+        lastVideoTimestamp = -1;
+        lastAudioTimestamp = -1;
+        ByteBuffer c0c1 = ByteBuffer.allocate(1 + RESNioRtmpClient.HANDSHAKE_SIZE);
+        readFully(c0c1);
+        if (c0c1.get(0) != RESNioRtmpClient.RTMP_VERSION) {
+            throw new IOException("unsupported rtmp version " + c0c1.get(0));
+        }
+        // S1 all zero,S2 echoes C1
+        ByteBuffer s0s1s2 = ByteBuffer.allocate(1 + RESNioRtmpClient.HANDSHAKE_SIZE * 2);
+        s0s1s2.put((byte) RESNioRtmpClient.RTMP_VERSION);
+        s0s1s2.position(1 + RESNioRtmpClient.HANDSHAKE_SIZE);
+        c0c1.position(1);
+        s0s1s2.put(c0c1);
+        s0s1s2.flip();
+        writeFully(s0s1s2);
+        readFully(ByteBuffer.allocate(RESNioRtmpClient.HANDSHAKE_SIZE));
+        RESChunkReader.Listener listener = new RESChunkReader.Listener() {
+            @Override
+            public void onMessage(RESChunkReader.Message message) throws IOException {
+                handleMessage(message);
+            }
+        };
+        long start = System.nanoTime();
+        long connectionBytes = 0;
+        for (;;) {
+            ByteBuffer buffer = reader.getBuffer();
+            long rate = readRate;
+            if (rate > 0) {
+                long allowed = (System.nanoTime() - start) * rate / 1000000000L - connectionBytes;
+                if (allowed <= 0) {
+                    sleepNanos(-allowed * 1000000000L / rate + 1000000);
+                    continue;
+                }
+                buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + allowed));
+            }
+            int n = channel.read(buffer);
+            buffer.limit(buffer.capacity());
+            if (n < 0) {
+                throw new EOFException();
+            }
+            connectionBytes += n;
+            synchronized (this) {
+                bytesRead += n;
+            }
+            reader.parse(listener);
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleMessage(RESChunkReader.Message message) throws IOException {
+        switch (message.type) {
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO:
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO:
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_INFO:
+                checkStream(message);
+                onTag(message.type, message.timestamp, message.payload, 0, message.payload.length);
+                break;
+            case RESFlvData.FLV_RTMP_PACKET_TYPE_AGGREGATE:
+                checkStream(message);
+                onAggregate(message);
+                break;
+            case RESNioRtmpClient.TYPE_COMMAND_AMF0:
+                onCommand(message);
+                break;
+            default:
+                if (message.type == RESNioRtmpClient.TYPE_SET_CHUNK_SIZE) {
+                    reader.setChunkSize(ByteBuffer.wrap(message.payload).getInt());
+                }
+                synchronized (this) {
+                    controlMessages.add(message);
+                }
+                break;
+        }
+    }
+
+    private void checkStream(RESChunkReader.Message message) {
+        if (message.streamId != STREAM_ID) {
+            violation("message of type " + message.type + " on stream " + message.streamId);
+        }
+    }
+
+    /**
+     * sub tags are FLV tags,their timestamps are shifted so the first one matches the message
+     */
+    private void onAggregate(RESChunkReader.Message message) {
+        ByteBuffer in = ByteBuffer.wrap(message.payload);
+        long shift = -1;
+        while (in.remaining() > 0) {
+            if (in.remaining() < 11 + 4) {
+                violation("truncated aggregate sub tag header");
+                return;
+            }
+            int start = in.position();
+            int type = in.get(start) & 0xff;
+            int dataSize = ((in.get(start + 1) & 0xff) << 16) | ((in.get(start + 2) & 0xff) << 8) | (in.get(start + 3) & 0xff);
+            long timestamp = (((in.get(start + 4) & 0xff) << 16) | ((in.get(start + 5) & 0xff) << 8) | (in.get(start + 6) & 0xff))
+                    | ((long) (in.get(start + 7) & 0xff) << 24);
+            if (in.remaining() < 11 + dataSize + 4) {
+                violation("truncated aggregate sub tag of " + dataSize + " bytes");
+                return;
+            }
+            int previousTagSize = in.getInt(start + 11 + dataSize);
+            if (previousTagSize != 11 + dataSize) {
+                violation("aggregate PreviousTagSize " + previousTagSize + " for a tag of " + (11 + dataSize));
+            }
+            if (shift < 0) {
+                shift = message.timestamp - timestamp;
+            }
+            onTag(type, timestamp + shift, message.payload, start + 11, dataSize);
+            in.position(start + 11 + dataSize + 4);
+        }
+    }
+
+    private void onTag(int type, long timestamp, byte[] payload, int offset, int size) {
+        Tag tag = new Tag();
+        tag.arrivalNanos = System.nanoTime();
+        tag.type = type;
+        tag.timestamp = timestamp;
+        tag.size = size;
+        if (keepPayloads) {
+            tag.data = new byte[size];
+            System.arraycopy(payload, offset, tag.data, 0, size);
+        }
+        if (type == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO && size >= 2) {
+            tag.keyframe = (payload[offset] & 0xf0) == 0x10;
+            tag.sequenceHeader = payload[offset + 1] == 0;
+            if (tag.sequenceHeader) {
+                avcSequenceHeaderSeen = true;
+            } else {
+                if (!avcSequenceHeaderSeen) {
+                    violation("video at " + timestamp + " before the avc sequence header");
+                }
+                if (timestamp < lastVideoTimestamp) {
+                    violation("video timestamp went back from " + lastVideoTimestamp + " to " + timestamp);
+                }
+                lastVideoTimestamp = timestamp;
+            }
+        } else if (type == RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO && size >= 2) {
+            tag.sequenceHeader = payload[offset + 1] == 0;
+            if (tag.sequenceHeader) {
+                aacSequenceHeaderSeen = true;
+            } else {
+                if (!aacSequenceHeaderSeen) {
+                    violation("audio at " + timestamp + " before the aac sequence header");
+                }
+                if (timestamp < lastAudioTimestamp) {
+                    violation("audio timestamp went back from " + lastAudioTimestamp + " to " + timestamp);
+                }
+                lastAudioTimestamp = timestamp;
+            }
+        } else if (type != RESFlvData.FLV_RTMP_PACKET_TYPE_INFO) {
+            violation("empty or unknown tag of type " + type);
+        }
+        synchronized (this) {
+            tag.connection = connections;
+            tags.add(tag);
+            notifyAll();
+        }
+    }
+
+    private void onCommand(RESChunkReader.Message message) throws IOException {
+        List<Object> command = RESAmf0.readAll(ByteBuffer.wrap(message.payload));
+        Object name = command.get(0);
+        Object transaction = command.size() > 1 ? command.get(1) : 0.0;
+        synchronized (this) {
+            commands.add(String.valueOf(name));
+            commandStreamIds.add(message.streamId);
+            notifyAll();
+        }
+        if ("connect".equals(name)) {
+            if (windowAckSize > 0) {
+                ByteBuffer body = ByteBuffer.allocate(4);
+                body.putInt(windowAckSize);
+                send(RESNioRtmpClient.CSID_CONTROL, RESNioRtmpClient.TYPE_WINDOW_ACK_SIZE, 0, body);
+            }
+            ByteBuffer bandwidth = ByteBuffer.allocate(5);
+            bandwidth.putInt(2500000).put((byte) 2);
+            send(RESNioRtmpClient.CSID_CONTROL, RESNioRtmpClient.TYPE_SET_PEER_BANDWIDTH, 0, bandwidth);
+            if (pingBeforeConnectResult) {
+                ByteBuffer ping = ByteBuffer.allocate(6);
+                ping.putShort((short) RESNioRtmpClient.USER_CONTROL_PING_REQUEST).putInt((int) System.currentTimeMillis());
+                send(RESNioRtmpClient.CSID_CONTROL, RESNioRtmpClient.TYPE_USER_CONTROL, 0, ping);
+            }
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("level", "status");
+            info.put("code", "NetConnection.Connect.Success");
+            sendCommand(0, "_result", transaction, null, info);
+        } else if ("createStream".equals(name)) {
+            sendCommand(0, "_result", transaction, null, (double) STREAM_ID);
+        } else if ("publish".equals(name)) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("level", "status");
+            info.put("code", "NetStream.Publish.Start");
+            sendCommand(STREAM_ID, "onStatus", 0.0, null, info);
+        }
+    }
+
+    private void sendCommand(int streamId, Object... values) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(1024);
+        for (Object value : values) {
+            RESAmf0.write(body, value);
+        }
+        send(RESNioRtmpClient.CSID_COMMAND, RESNioRtmpClient.TYPE_COMMAND_AMF0, streamId, body);
+    }
+
+    private void send(int csid, int type, int streamId, ByteBuffer body) throws IOException {
+        body.flip();
+        ByteBuffer wire = ByteBuffer.allocate(writer.maxWireSize(body.limit()));
+        writer.write(wire, csid, type, streamId, 0, body, 0, body.limit());
+        wire.flip();
+        writeFully(wire);
+    }
+
+    private void readFully(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private synchronized void violation(String violation) {
+        violations.add(violation);
+    }
+
+    public synchronized List<Tag> getTags() {
+        return new ArrayList<>(tags);
+    }
+
+    /**
+     * @return tags of one type,sequence headers included
+     */
+    public synchronized List<Tag> getTags(int type) {
+        List<Tag> result = new ArrayList<>();
+        for (Tag tag : tags) {
+            if (tag.type == type) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return non media messages,protocol control and user control
+     */
+    public synchronized List<RESChunkReader.Message> getControlMessages(int type) {
+        List<RESChunkReader.Message> result = new ArrayList<>();
+        for (RESChunkReader.Message message : controlMessages) {
+            if (message.type == type) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return command names in arrival order over all connections
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    /**
+     * @return message stream id of each command in {@link #getCommands()}
+     */
+    public synchronized List<Integer> getCommandStreamIds() {
+        return new ArrayList<>(commandStreamIds);
+    }
+
+    public synchronized List<String> getViolations() {
+        return new ArrayList<>(violations);
+    }
+
+    public synchronized int getConnectionCount() {
+        return connections;
+    }
+
+    public synchronized long bytesRead() {
+        return bytesRead;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return false on timeout
+     */
+    public synchronized boolean awaitTags(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (tags.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return false on timeout
+     */
+    public synchronized boolean awaitCommand(String name, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!commands.contains(name)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package com.codyy.pushscreen.benchmark;
+
+import com.codyy.pushscreen.media.ByteArrayTools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * big-endian length writes,one per nalu header and per tag footer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteArrayToolsBenchmark {
+    private byte[] array;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private int value;
+
+    @Setup
+    public void setUp() {
+        array = new byte[16];
+        heap = ByteBuffer.allocate(16);
+        direct = ByteBuffer.allocateDirect(16);
+    }
+
+    @Benchmark
+    public byte[] intToByteArrayFull() {
+        ByteArrayTools.intToByteArrayFull(array, 4, ++value);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] intToByteArrayTwoByte() {
+        ByteArrayTools.intToByteArrayTwoByte(array, 4, ++value);
+        return array;
+    }
+
+    @Benchmark
+    public ByteBuffer intToByteBufferFull_heap() {
+        ByteArrayTools.intToByteBufferFull(heap, 4, ++value);
+        return heap;
+    }
+
+    @Benchmark
+    public ByteBuffer intToByteBufferFull_direct() {
+        ByteArrayTools.intToByteBufferFull(direct, 4, ++value);
+        return direct;
+    }
+
+    /**
+     * reference point,the same write through ByteBuffer's own big-endian putInt
+     */
+    @Benchmark
+    public ByteBuffer putInt_direct() {
+        direct.putInt(4, ++value);
+        return direct;
+    }
+}
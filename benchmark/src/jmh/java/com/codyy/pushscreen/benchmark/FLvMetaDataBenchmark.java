@@ -0,0 +1,52 @@
+package com.codyy.pushscreen.benchmark;
+
+import com.codyy.pushscreen.media.RESCoreParameters;
+import com.codyy.pushscreen.rtmp.FLvMetaData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * onMetaData,built once per (re)connect
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FLvMetaDataBenchmark {
+    private RESCoreParameters parameters;
+    private FLvMetaData metaData;
+
+    @Setup
+    public void setUp() {
+        parameters = new RESCoreParameters();
+        parameters.mediacodecAACBitRate = 64 * 1024;
+        parameters.mediacodecAACSampleRate = 44100;
+        parameters.mediacodecAVCFrameRate = 25;
+        parameters.videoWidth = 1280;
+        parameters.videoHeight = 720;
+        metaData = new FLvMetaData(parameters);
+    }
+
+    @Benchmark
+    public FLvMetaData construct() {
+        return new FLvMetaData(parameters);
+    }
+
+    @Benchmark
+    public byte[] getMetaData() {
+        return metaData.getMetaData();
+    }
+}
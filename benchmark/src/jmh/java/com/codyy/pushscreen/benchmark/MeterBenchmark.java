@@ -0,0 +1,118 @@
+package com.codyy.pushscreen.benchmark;
+
+import com.codyy.pushscreen.media.RESByteSpeedometer;
+import com.codyy.pushscreen.media.RESLatencyHistogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the speedometers are fed once per sent tag and read once per second by the ui and the bitrate control,
+ * the send frame rate comes from the video speedometer.
+ * the latency histograms are fed a few times per sent tag,one per traced stage
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Speedometer {
+        /**
+         * 3s is what the sender uses,10s a slow ui
+         */
+        @Param({"3000", "10000"})
+        public int window;
+
+        RESByteSpeedometer speedometer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            speedometer = new RESByteSpeedometer(window);
+            // every bucket in use,as in a running stream
+            for (int time = 0; time < window; time += RESByteSpeedometer.DEFAULT_RESOLUTION) {
+                speedometer.gain(10 * 1024);
+                Thread.sleep(RESByteSpeedometer.DEFAULT_RESOLUTION);
+            }
+        }
+    }
+
+    @Benchmark
+    public void gain(Speedometer state) {
+        state.speedometer.gain(10 * 1024);
+    }
+
+    /**
+     * the encoder threads feeding one speedometer at once
+     */
+    @Benchmark
+    @Threads(2)
+    public void gain_contended(Speedometer state) {
+        state.speedometer.gain(10 * 1024);
+    }
+
+    @Benchmark
+    public int getSpeed(Speedometer state) {
+        return state.speedometer.getSpeed();
+    }
+
+    @Benchmark
+    public int getInstantSpeed(Speedometer state) {
+        return state.speedometer.getInstantSpeed();
+    }
+
+    @Benchmark
+    public int getEwmaSpeed(Speedometer state) {
+        return state.speedometer.getEwmaSpeed();
+    }
+
+    @Benchmark
+    public float getFrameRate(Speedometer state) {
+        return state.speedometer.getFrameRate();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Histogram {
+        final RESLatencyHistogram histogram = new RESLatencyHistogram();
+        final long[] samples = new long[1024];
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // 0.1 to 100ms,spread over the buckets a stream uses
+            Random random = new Random(1);
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (long) (100000 * Math.pow(1000, random.nextDouble()));
+            }
+            for (long sample : samples) {
+                histogram.record(sample);
+            }
+        }
+    }
+
+    @Benchmark
+    public void histogram_record(Histogram state) {
+        state.histogram.record(state.samples[state.next++ & (state.samples.length - 1)]);
+    }
+
+    @Benchmark
+    public long histogram_getPercentile(Histogram state) {
+        return state.histogram.getPercentile(0.99);
+    }
+}
@@ -0,0 +1,96 @@
+package com.codyy.pushscreen.benchmark;
+
+import android.media.MediaFormat;
+
+import com.codyy.pushscreen.media.Packager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FLV tag packaging,called once per encoded frame
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PackagerBenchmark {
+    /**
+     * sps/pps of a 1280x720 baseline stream as MediaCodec hands them out,with the 4 byte start code
+     */
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16,
+            (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+    private MediaFormat format;
+    private byte[] videoTag;
+    private ByteBuffer directTag;
+    private byte[] audioTag;
+    private int dts;
+
+    @Setup
+    public void setUp() {
+        format = new MediaFormat();
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+        videoTag = new byte[Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH + Packager.FLVPackager.NALU_HEADER_LENGTH];
+        directTag = ByteBuffer.allocateDirect(Packager.FLVPackager.FLV_TAG_LENGTH + Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH
+                + Packager.FLVPackager.NALU_HEADER_LENGTH + Packager.FLVPackager.FLV_TAG_FOOTER_LENGTH);
+        audioTag = new byte[Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH];
+    }
+
+    @Benchmark
+    public byte[] avcDecoderConfigurationRecord() {
+        return Packager.H264Packager.generateAVCDecoderConfigurationRecord(format);
+    }
+
+    @Benchmark
+    public byte[] fillFlvVideoTag_array() {
+        Packager.FLVPackager.fillFlvVideoTag(videoTag, 0, false, (++dts & 63) == 0, 24 * 1024, 40);
+        return videoTag;
+    }
+
+    @Benchmark
+    public ByteBuffer fillFlvVideoTag_direct() {
+        Packager.FLVPackager.fillFlvVideoTag(directTag, Packager.FLVPackager.FLV_TAG_LENGTH, false, (++dts & 63) == 0,
+                24 * 1024, 40);
+        return directTag;
+    }
+
+    @Benchmark
+    public byte[] fillFlvAudioTag_array() {
+        Packager.FLVPackager.fillFlvAudioTag(audioTag, 0, false);
+        return audioTag;
+    }
+
+    @Benchmark
+    public ByteBuffer fillFlvAudioTag_direct() {
+        Packager.FLVPackager.fillFlvAudioTag(directTag, Packager.FLVPackager.FLV_TAG_LENGTH, false);
+        return directTag;
+    }
+
+    /**
+     * header and footer as the aggregate builder writes them around every tag
+     */
+    @Benchmark
+    public ByteBuffer fillFlvTagHeaderAndFooter() {
+        int dataSize = 24 * 1024;
+        Packager.FLVPackager.fillFlvTagHeader(directTag, 0, 9, dataSize, dts += 40);
+        Packager.FLVPackager.fillFlvTagFooter(directTag, directTag.capacity() - Packager.FLVPackager.FLV_TAG_FOOTER_LENGTH,
+                dataSize);
+        return directTag;
+    }
+}
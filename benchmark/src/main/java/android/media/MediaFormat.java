@@ -0,0 +1,23 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the part of android.media.MediaFormat the benchmarked code uses.
+ */
+public final class MediaFormat {
+    private final Map<String, Object> map = new HashMap<>();
+
+    public MediaFormat() {
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) map.get(name);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        map.put(name, bytes);
+    }
+}
@@ -0,0 +1,204 @@
+package com.codyy.pushscreen.benchmark;
+
+import com.codyy.pushscreen.media.RESCoreParameters;
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESFlvDataCollecter;
+import com.codyy.pushscreen.media.RESFlvInterleaver;
+import com.codyy.pushscreen.rtmp.RESRtmpSender;
+import com.codyy.pushscreen.rtmp.RESRtmpStandInServer;
+import com.codyy.pushscreen.rtmp.RESStreamStats;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End to end on the JVM: {@link SyntheticMediaSource} -> packaging -> RESFlvInterleaver -> RESRtmpSender
+ * on the java transport -> {@link RESRtmpStandInServer} over loopback.
+ * After a warmup it reports frames/s and bytes/s reaching the server,p50/p99 from handing a frame
+ * to the interleaver until its last byte was read by the server,and heap allocated per frame
+ * by every thread but the server's,followed by the sender's per stage latency since start and its stream stats.
+ * <p>
+ * ./gradlew :benchmark:pipeline -Ppipeline.args="seconds=20 width=1920 height=1080 uplink=400000"
+ * <p>
+ * seconds=10 warmup=3 width=1280 height=720 fps=25 gop=-1 bitrate=-1 audioBitrate=65536 speed=1
+ * uplink=0 (server read rate,bytes/s,0 unlimited,a small receive buffer then lets the sender feel it) chunkSize=4096 aggregate=-1 (audio aggregate window,ms)
+ */
+public class PipelineBenchmark {
+    private static final String SERVER_THREAD = "RESRtmpStandInServer";
+    private static final int DRAIN_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value,got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int seconds = intOption(options, "seconds", 10);
+        int warmup = intOption(options, "warmup", 3);
+        int uplink = intOption(options, "uplink", 0);
+        float speed = Float.parseFloat(value(options, "speed", "1"));
+
+        RESRtmpStandInServer server = new RESRtmpStandInServer(uplink > 0 ? 16 * 1024 : 0).setReadRate(uplink).start();
+        RESCoreParameters parameters = new RESCoreParameters();
+        parameters.senderJavaTransport = true;
+        parameters.senderQueueLength = 300;
+        parameters.senderChunkSize = intOption(options, "chunkSize", 4096);
+        parameters.senderAudioAggregateWindow = intOption(options, "aggregate", -1);
+        parameters.mediacodecAVCFrameRate = intOption(options, "fps", 25);
+        parameters.videoWidth = intOption(options, "width", 1280);
+        parameters.videoHeight = intOption(options, "height", 720);
+        parameters.mediacodecAACBitRate = intOption(options, "audioBitrate", 64 * 1024);
+        parameters.mediacodecAACSampleRate = 44100;
+        final RESRtmpSender sender = new RESRtmpSender();
+        sender.prepare(parameters);
+        RESFlvInterleaver interleaver = new RESFlvInterleaver(new RESFlvDataCollecter() {
+            @Override
+            public void collect(RESFlvData flvData, int type) {
+                sender.feed(flvData, type);
+            }
+        }, parameters.senderReorderWindow);
+        final SyntheticMediaSource source = new SyntheticMediaSource(interleaver)
+                .setVideo(parameters.videoWidth, parameters.videoHeight, parameters.mediacodecAVCFrameRate)
+                .setVideoBitRate(intOption(options, "bitrate", -1))
+                .setGop(intOption(options, "gop", -1))
+                .setAudio(parameters.mediacodecAACSampleRate, 1, parameters.mediacodecAACBitRate)
+                .setSpeed(speed)
+                .setDuration((warmup + seconds) * 1000);
+        sender.setKeyFrameRequestListener(new RESRtmpSender.OnKeyFrameRequestListener() {
+            @Override
+            public void onKeyFrameRequest() {
+                source.requestSyncFrame();
+            }
+        });
+        sender.start(server.getUrl("pipeline"));
+        Thread sourceThread = new Thread(source, "SyntheticMediaSource");
+        sourceThread.start();
+
+        // warmup and seconds are media time
+        Thread.sleep((long) (warmup * 1000L / speed));
+        Map<Long, Long> allocatedBefore = allocatedBytes();
+        int videoBefore = source.getVideoFrames();
+        int audioBefore = source.getAudioFrames();
+        long serverBytesBefore = server.bytesRead();
+        long startNanos = System.nanoTime();
+        sourceThread.join();
+        long endNanos = System.nanoTime();
+        // the rates cover the last seconds,take them before the drain
+        RESStreamStats stats = sender.getStats();
+        long serverBytes = server.bytesRead() - serverBytesBefore;
+        int video = source.getVideoFrames() - videoBefore;
+        int audio = source.getAudioFrames() - audioBefore;
+        // let go of what the interleaver still holds,metadata and the two sequence headers come first
+        interleaver.close();
+        server.awaitTags(3 + source.getVideoFrames() + source.getAudioFrames(), DRAIN_TIMEOUT_MS);
+        long allocated = allocatedSince(allocatedBefore);
+        sender.stop();
+        sender.destroy();
+        server.stop();
+
+        double elapsed = (endNanos - startNanos) / 1e9;
+        List<RESRtmpStandInServer.Tag> tags = server.getTags();
+        long[] videoLatency = new long[video];
+        long[] audioLatency = new long[audio];
+        int videoArrived = 0;
+        int audioArrived = 0;
+        int videoInWindow = 0;
+        int audioInWindow = 0;
+        for (RESRtmpStandInServer.Tag tag : tags) {
+            if (tag.sequenceHeader || tag.type == RESFlvData.FLV_RTMP_PACKET_TYPE_INFO) {
+                continue;
+            }
+            long enqueueNanos = source.getEnqueueNanos(tag.type, tag.timestamp);
+            if (enqueueNanos < startNanos) {
+                continue;
+            }
+            boolean inWindow = tag.arrivalNanos <= endNanos;
+            if (tag.type == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO) {
+                videoLatency[videoArrived++] = tag.arrivalNanos - enqueueNanos;
+                videoInWindow += inWindow ? 1 : 0;
+            } else {
+                audioLatency[audioArrived++] = tag.arrivalNanos - enqueueNanos;
+                audioInWindow += inWindow ? 1 : 0;
+            }
+        }
+        long[] allLatency = Arrays.copyOf(videoLatency, videoArrived + audioArrived);
+        System.arraycopy(audioLatency, 0, allLatency, videoArrived, audioArrived);
+
+        System.out.println(String.format("pipeline %dx%d@%dfps gop=%d video=%dbps audio=%dbps speed=%.1f uplink=%s,%ds after %ds warmup",
+                parameters.videoWidth, parameters.videoHeight, parameters.mediacodecAVCFrameRate, source.getGop(),
+                source.getVideoBitRate(), parameters.mediacodecAACBitRate, speed,
+                uplink > 0 ? uplink + "B/s" : "unlimited", seconds, warmup));
+        System.out.println(String.format("video   fed %6d  arrived %6d  dropped %5d  %8.1f fps",
+                video, videoArrived, video - videoArrived, videoInWindow / elapsed));
+        System.out.println(String.format("audio   fed %6d  arrived %6d  dropped %5d  %8.1f fps",
+                audio, audioArrived, audio - audioArrived, audioInWindow / elapsed));
+        System.out.println(String.format("wire    %.0f B/s (%.0f kbps)", serverBytes / elapsed, serverBytes * 8 / elapsed / 1000));
+        printLatency("video", videoLatency, videoArrived);
+        printLatency("audio", audioLatency, audioArrived);
+        printLatency("all", allLatency, allLatency.length);
+        System.out.println(String.format("alloc   %d B in %d frames,%.0f B/frame", allocated, video + audio,
+                (double) allocated / Math.max(1, video + audio)));
+        System.out.print(sender.getLatencyTracer());
+        System.out.println(stats);
+        System.out.println("reconnects " + sender.getReconnectCount() + ",violations " + server.getViolations());
+        if (!server.getViolations().isEmpty() || server.getError() != null) {
+            System.exit(1);
+        }
+    }
+
+    private static String value(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(value(options, key, String.valueOf(defaultValue)));
+    }
+
+    private static void printLatency(String name, long[] latencyNanos, int count) {
+        if (count == 0) {
+            System.out.println(String.format("%-7s no frames", name));
+            return;
+        }
+        long[] sorted = Arrays.copyOf(latencyNanos, count);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-7s enqueue->wire p50 %6.2fms  p99 %6.2fms  max %6.2fms", name,
+                sorted[(count - 1) / 2] / 1e6, sorted[(int) ((count - 1) * 0.99)] / 1e6, sorted[count - 1] / 1e6));
+    }
+
+    /**
+     * heap allocated so far per live thread,except the server's and the calling one
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread == Thread.currentThread() || SERVER_THREAD.equals(thread.getName())) {
+                continue;
+            }
+            long bytes = threadMXBean.getThreadAllocatedBytes(thread.getId());
+            if (bytes >= 0) {
+                allocated.put(thread.getId(), bytes);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * threads started since count from 0,threads that ended since are lost
+     */
+    private static long allocatedSince(Map<Long, Long> before) {
+        long sum = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            Long start = before.get(entry.getKey());
+            sum += entry.getValue() - (start == null ? 0 : start);
+        }
+        return sum;
+    }
+}
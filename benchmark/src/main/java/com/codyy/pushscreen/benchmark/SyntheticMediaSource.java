@@ -0,0 +1,508 @@
+package com.codyy.pushscreen.benchmark;
+
+import android.media.MediaFormat;
+
+import com.codyy.pushscreen.media.Packager;
+import com.codyy.pushscreen.media.RESFlvData;
+import com.codyy.pushscreen.media.RESFlvDataCollecter;
+import com.codyy.pushscreen.media.RESFlvDataPool;
+import com.codyy.pushscreen.rtmp.RESRtmpSender;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for ScreenRecordWorker and AudioRecordWorker off-device.
+ * Emits H.264 Annex-B access units and raw AAC frames the way MediaCodec hands them out,
+ * into reused direct output buffers,and packages them like the workers' sendRealData into a {@link RESFlvDataCollecter}.
+ * Frame sizes follow a rate controlled encoder: bitRate/fps on average,a keyframe keyframeRatio times a P frame,
+ * +-jitter per frame.
+ * One thread drives both streams in dts order,paced against the wall clock times speed,
+ * and records when every frame was handed to the collecter.
+ */
+public class SyntheticMediaSource implements Runnable {
+    private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000,
+            12000, 11025, 8000, 7350};
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int START_CODE_LENGTH = 4;
+
+    private final RESFlvDataCollecter dataCollecter;
+    private int width = 1280;
+    private int height = 720;
+    private int fps = 25;
+    private int gop = -1;
+    private int videoBitRate = -1;
+    private float keyframeRatio = 5;
+    private float jitter = 0.2f;
+    private int audioSampleRate = 44100;
+    private int audioChannelCount = 1;
+    private int audioBitRate = 64 * 1024;
+    private float speed = 1;
+    private int durationMs = 10000;
+    private long seed = 1;
+    private volatile boolean quit = false;
+    private volatile boolean syncFrameRequested = false;
+
+    /**
+     * what was handed to the collecter,by frame index,dts ascending
+     */
+    private int[] videoDts;
+    private long[] videoEnqueueNanos;
+    private int[] audioDts;
+    private long[] audioEnqueueNanos;
+    private volatile int videoFrames = 0;
+    private volatile int audioFrames = 0;
+    private volatile long videoBytes = 0;
+    private volatile long audioBytes = 0;
+
+    public SyntheticMediaSource(RESFlvDataCollecter dataCollecter) {
+        this.dataCollecter = dataCollecter;
+    }
+
+    public SyntheticMediaSource setVideo(int width, int height, int fps) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        return this;
+    }
+
+    /**
+     * @param bitRate bps,-1 for 0.1 bit per pixel,about what a hardware encoder needs for screen content
+     */
+    public SyntheticMediaSource setVideoBitRate(int bitRate) {
+        videoBitRate = bitRate;
+        return this;
+    }
+
+    /**
+     * @param gop frames from one keyframe to the next,-1 for 2 seconds
+     */
+    public SyntheticMediaSource setGop(int gop) {
+        this.gop = gop;
+        return this;
+    }
+
+    public SyntheticMediaSource setKeyframeRatio(float keyframeRatio) {
+        this.keyframeRatio = keyframeRatio;
+        return this;
+    }
+
+    public SyntheticMediaSource setJitter(float jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    public SyntheticMediaSource setAudio(int sampleRate, int channelCount, int bitRate) {
+        audioSampleRate = sampleRate;
+        audioChannelCount = channelCount;
+        audioBitRate = bitRate;
+        return this;
+    }
+
+    /**
+     * @param speed media time per wall clock time,2 emits a 10s stream in 5s
+     */
+    public SyntheticMediaSource setSpeed(float speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * @param durationMs media time after which run() returns
+     */
+    public SyntheticMediaSource setDuration(int durationMs) {
+        this.durationMs = durationMs;
+        return this;
+    }
+
+    public SyntheticMediaSource setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getVideoBitRate() {
+        return videoBitRate > 0 ? videoBitRate : (int) (width * height * (long) fps / 10);
+    }
+
+    public int getGop() {
+        return gop > 0 ? gop : 2 * fps;
+    }
+
+    /**
+     * next video frame is an IDR and starts a new gop,like MediaCodec's PARAMETER_KEY_REQUEST_SYNC_FRAME
+     */
+    public void requestSyncFrame() {
+        syncFrameRequested = true;
+    }
+
+    public void quit() {
+        quit = true;
+    }
+
+    @Override
+    public void run() {
+        int videoCapacity = (int) ((long) durationMs * fps / 1000) + 1;
+        int audioCapacity = (int) ((long) durationMs * audioSampleRate / 1000 / AAC_FRAME_SAMPLES) + 1;
+        videoDts = new int[videoCapacity];
+        videoEnqueueNanos = new long[videoCapacity];
+        audioDts = new int[audioCapacity];
+        audioEnqueueNanos = new long[audioCapacity];
+        Random random = new Random(seed);
+        int gop = getGop();
+        // bitRate/fps*gop = keyframe + (gop-1)*P
+        int pFrameSize = (int) ((long) getVideoBitRate() / 8 * gop / fps / (keyframeRatio + gop - 1));
+        int keyframeSize = (int) (pFrameSize * keyframeRatio);
+        int aacFrameSize = (int) ((long) audioBitRate / 8 * AAC_FRAME_SAMPLES / audioSampleRate);
+        ByteBuffer videoOutput = ByteBuffer.allocateDirect(START_CODE_LENGTH + (int) (keyframeSize * (1 + jitter)) + 1);
+        ByteBuffer audioOutput = ByteBuffer.allocateDirect((int) (aacFrameSize * (1 + jitter)) + 1);
+        // no 0x00 at all,so no start code emulation in the payload
+        byte[] noise = new byte[2 * videoOutput.capacity()];
+        random.nextBytes(noise);
+        for (int i = 0; i < noise.length; i++) {
+            if (noise[i] == 0) {
+                noise[i] = 1;
+            }
+        }
+
+        sendAVCDecoderConfigurationRecord(0, createVideoFormat());
+        sendAudioSpecificConfig(0, createAudioSpecificConfig());
+        long startNanos = System.nanoTime();
+        int videoIndex = 0;
+        int audioIndex = 0;
+        int gopPosition = 0;
+        while (!quit) {
+            int nextVideoDts = (int) (videoIndex * 1000L / fps);
+            int nextAudioDts = (int) (audioIndex * AAC_FRAME_SAMPLES * 1000L / audioSampleRate);
+            boolean video = nextVideoDts <= nextAudioDts;
+            int dts = video ? nextVideoDts : nextAudioDts;
+            if (dts >= durationMs) {
+                break;
+            }
+            long dueNanos = startNanos + (long) (dts * 1000000L / speed);
+            long waitNanos;
+            while ((waitNanos = dueNanos - System.nanoTime()) > 0 && !quit) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            if (video) {
+                boolean keyframe = gopPosition == 0 || syncFrameRequested;
+                if (keyframe) {
+                    syncFrameRequested = false;
+                    gopPosition = 0;
+                }
+                gopPosition = (gopPosition + 1) % gop;
+                int size = vary(keyframe ? keyframeSize : pFrameSize, random);
+                videoOutput.clear();
+                videoOutput.putInt(1);
+                // nal_ref_idc 3,IDR slice 5 or non-IDR slice 1
+                videoOutput.put(keyframe ? (byte) 0x65 : (byte) 0x41);
+                videoOutput.put(noise, random.nextInt(noise.length - size), size - 1);
+                videoOutput.flip();
+                // as ScreenRecordWorker.drainOutputBuffer hands it on
+                videoOutput.position(START_CODE_LENGTH);
+                videoDts[videoIndex] = dts;
+                videoEnqueueNanos[videoIndex] = System.nanoTime();
+                sendRealData(dts, 0, videoOutput, keyframe, videoEnqueueNanos[videoIndex]);
+                videoBytes += size;
+                videoFrames = ++videoIndex;
+            } else {
+                int size = vary(aacFrameSize, random);
+                audioOutput.clear();
+                audioOutput.put(noise, random.nextInt(noise.length - size), size);
+                audioOutput.flip();
+                audioDts[audioIndex] = dts;
+                audioEnqueueNanos[audioIndex] = System.nanoTime();
+                sendRealData(dts, audioOutput, audioEnqueueNanos[audioIndex]);
+                audioBytes += size;
+                audioFrames = ++audioIndex;
+            }
+        }
+    }
+
+    private int vary(int size, Random random) {
+        return Math.max(2, (int) (size * (1 + jitter * (2 * random.nextFloat() - 1))));
+    }
+
+    public int getVideoFrames() {
+        return videoFrames;
+    }
+
+    public int getAudioFrames() {
+        return audioFrames;
+    }
+
+    /**
+     * encoded bytes,without start codes
+     */
+    public long getEncodedBytes() {
+        return videoBytes + audioBytes;
+    }
+
+    /**
+     * @param type RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO or FLV_RTMP_PACKET_TYPE_AUDIO
+     * @return System.nanoTime() when the frame with this dts went to the collecter,-1 if there was none
+     */
+    public long getEnqueueNanos(int type, long dts) {
+        boolean video = type == RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        int index = Arrays.binarySearch(video ? videoDts : audioDts, 0, video ? videoFrames : audioFrames, (int) dts);
+        if (index < 0) {
+            return -1;
+        }
+        return video ? videoEnqueueNanos[index] : audioEnqueueNanos[index];
+    }
+
+    private MediaFormat createVideoFormat() {
+        MediaFormat format = new MediaFormat();
+        format.setByteBuffer("csd-0", withStartCode(sps()));
+        format.setByteBuffer("csd-1", withStartCode(pps()));
+        return format;
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(START_CODE_LENGTH + nal.length);
+        buffer.putInt(1);
+        buffer.put(nal);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * baseline profile,poc type 2,one reference frame,cropped to width x height,no vui
+     */
+    private byte[] sps() {
+        int widthInMbs = (width + 15) / 16;
+        int heightInMbs = (height + 15) / 16;
+        long macroblocksPerSecond = (long) widthInMbs * heightInMbs * fps;
+        int level = macroblocksPerSecond <= 40500 ? 30 : macroblocksPerSecond <= 108000 ? 31
+                : macroblocksPerSecond <= 216000 ? 32 : macroblocksPerSecond <= 245760 ? 40
+                : macroblocksPerSecond <= 522240 ? 42 : 51;
+        BitWriter bits = new BitWriter();
+        bits.u(8, 0x67);
+        bits.u(8, 66);
+        // constraint_set0_flag,constraint_set1_flag
+        bits.u(8, 0xc0);
+        bits.u(8, level);
+        bits.ue(0);
+        // log2_max_frame_num_minus4
+        bits.ue(0);
+        // pic_order_cnt_type
+        bits.ue(2);
+        // max_num_ref_frames
+        bits.ue(1);
+        bits.u(1, 0);
+        bits.ue(widthInMbs - 1);
+        bits.ue(heightInMbs - 1);
+        // frame_mbs_only_flag,direct_8x8_inference_flag
+        bits.u(1, 1);
+        bits.u(1, 1);
+        int cropRight = (widthInMbs * 16 - width) / 2;
+        int cropBottom = (heightInMbs * 16 - height) / 2;
+        if (cropRight > 0 || cropBottom > 0) {
+            bits.u(1, 1);
+            bits.ue(0);
+            bits.ue(cropRight);
+            bits.ue(0);
+            bits.ue(cropBottom);
+        } else {
+            bits.u(1, 0);
+        }
+        // vui_parameters_present_flag
+        bits.u(1, 0);
+        return bits.toNal();
+    }
+
+    /**
+     * cavlc,one slice group,default qp
+     */
+    private static byte[] pps() {
+        BitWriter bits = new BitWriter();
+        bits.u(8, 0x68);
+        bits.ue(0);
+        bits.ue(0);
+        // entropy_coding_mode_flag,bottom_field_pic_order_in_frame_present_flag
+        bits.u(1, 0);
+        bits.u(1, 0);
+        // num_slice_groups_minus1,num_ref_idx_l0/l1_default_active_minus1
+        bits.ue(0);
+        bits.ue(0);
+        bits.ue(0);
+        // weighted_pred_flag,weighted_bipred_idc
+        bits.u(1, 0);
+        bits.u(2, 0);
+        // pic_init_qp_minus26,pic_init_qs_minus26,chroma_qp_index_offset
+        bits.ue(0);
+        bits.ue(0);
+        bits.ue(0);
+        // deblocking_filter_control_present_flag,constrained_intra_pred_flag,redundant_pic_cnt_present_flag
+        bits.u(1, 1);
+        bits.u(1, 0);
+        bits.u(1, 0);
+        return bits.toNal();
+    }
+
+    /**
+     * AAC LC AudioSpecificConfig,what MediaCodec puts into csd-0
+     */
+    private ByteBuffer createAudioSpecificConfig() {
+        int frequencyIndex = 15;
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == audioSampleRate) {
+                frequencyIndex = i;
+            }
+        }
+        int config = (2 << 11) | (frequencyIndex << 7) | (audioChannelCount << 3);
+        return ByteBuffer.wrap(new byte[]{(byte) (config >> 8), (byte) config});
+    }
+
+    /**
+     * ScreenRecordWorker.sendAVCDecoderConfigurationRecord
+     */
+    private void sendAVCDecoderConfigurationRecord(long tms, MediaFormat format) {
+        byte[] AVCDecoderConfigurationRecord = Packager.H264Packager.generateAVCDecoderConfigurationRecord(format);
+        int packetLen = Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
+                AVCDecoderConfigurationRecord.length;
+        byte[] finalBuff = new byte[packetLen];
+        Packager.FLVPackager.fillFlvVideoTag(finalBuff,
+                0,
+                true,
+                true,
+                AVCDecoderConfigurationRecord.length);
+        System.arraycopy(AVCDecoderConfigurationRecord, 0,
+                finalBuff, Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH, AVCDecoderConfigurationRecord.length);
+        RESFlvData resFlvData = new RESFlvData();
+        resFlvData.droppable = false;
+        resFlvData.byteBuffer = finalBuff;
+        resFlvData.size = finalBuff.length;
+        resFlvData.dts = (int) tms;
+        resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        resFlvData.videoFrameType = RESFlvData.NALU_TYPE_IDR;
+        dataCollecter.collect(resFlvData, RESRtmpSender.FROM_VIDEO);
+    }
+
+    /**
+     * ScreenRecordWorker.sendRealData,keyframe stands for MediaCodec.BUFFER_FLAG_KEY_FRAME
+     */
+    private void sendRealData(long tms, int compositionTime, ByteBuffer realData, boolean keyframe, long encodedNanos) {
+        int realDataLength = realData.remaining();
+        int packetLen = Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
+                Packager.FLVPackager.NALU_HEADER_LENGTH +
+                realDataLength;
+        RESFlvData resFlvData = RESFlvDataPool.i().acquire(packetLen);
+        ByteBuffer finalBuff = resFlvData.directBuffer;
+        int tagPos = finalBuff.position();
+        int naluPos = tagPos + Packager.FLVPackager.FLV_VIDEO_TAG_LENGTH +
+                Packager.FLVPackager.NALU_HEADER_LENGTH;
+        finalBuff.position(naluPos);
+        finalBuff.put(realData);
+        finalBuff.position(tagPos);
+        int frameType = finalBuff.get(naluPos) & 0x1F;
+        if (keyframe) {
+            frameType = RESFlvData.NALU_TYPE_IDR;
+        }
+        Packager.FLVPackager.fillFlvVideoTag(finalBuff,
+                tagPos,
+                false,
+                frameType == 5,
+                realDataLength,
+                compositionTime);
+        resFlvData.droppable = true;
+        resFlvData.size = packetLen;
+        resFlvData.dts = (int) tms;
+        resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_VIDEO;
+        resFlvData.videoFrameType = frameType;
+        resFlvData.encodedNanos = encodedNanos;
+        resFlvData.packagedNanos = System.nanoTime();
+        dataCollecter.collect(resFlvData, RESRtmpSender.FROM_VIDEO);
+    }
+
+    /**
+     * AudioRecordWorker.sendAudioSpecificConfig
+     */
+    private void sendAudioSpecificConfig(long tms, ByteBuffer realData) {
+        int packetLen = Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH +
+                realData.remaining();
+        byte[] finalBuff = new byte[packetLen];
+        realData.get(finalBuff, Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH,
+                realData.remaining());
+        Packager.FLVPackager.fillFlvAudioTag(finalBuff,
+                0,
+                true);
+        RESFlvData resFlvData = new RESFlvData();
+        resFlvData.droppable = false;
+        resFlvData.byteBuffer = finalBuff;
+        resFlvData.size = finalBuff.length;
+        resFlvData.dts = (int) tms;
+        resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+        dataCollecter.collect(resFlvData, RESRtmpSender.FROM_AUDIO);
+    }
+
+    /**
+     * AudioRecordWorker.sendRealData
+     */
+    private void sendRealData(long tms, ByteBuffer realData, long encodedNanos) {
+        int packetLen = Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH +
+                realData.remaining();
+        RESFlvData resFlvData = RESFlvDataPool.i().acquire(packetLen);
+        ByteBuffer finalBuff = resFlvData.directBuffer;
+        int tagPos = finalBuff.position();
+        finalBuff.position(tagPos + Packager.FLVPackager.FLV_AUDIO_TAG_LENGTH);
+        finalBuff.put(realData);
+        finalBuff.position(tagPos);
+        Packager.FLVPackager.fillFlvAudioTag(finalBuff,
+                tagPos,
+                false);
+        resFlvData.droppable = true;
+        resFlvData.size = packetLen;
+        resFlvData.dts = (int) tms;
+        resFlvData.flvTagType = RESFlvData.FLV_RTMP_PACKET_TYPE_AUDIO;
+        resFlvData.encodedNanos = encodedNanos;
+        resFlvData.packagedNanos = System.nanoTime();
+        dataCollecter.collect(resFlvData, RESRtmpSender.FROM_AUDIO);
+    }
+
+    /**
+     * msb first,with emulation prevention when turned into a nal
+     */
+    private static class BitWriter {
+        private final byte[] data = new byte[64];
+        private int bitPos = 0;
+
+        void u(int n, int value) {
+            for (int i = n - 1; i >= 0; i--) {
+                if (((value >> i) & 1) != 0) {
+                    data[bitPos >> 3] |= (byte) (0x80 >> (bitPos & 7));
+                }
+                ++bitPos;
+            }
+        }
+
+        /**
+         * exp-golomb
+         */
+        void ue(int value) {
+            int codeNum = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(codeNum);
+            u(length - 1, 0);
+            u(length, codeNum);
+        }
+
+        byte[] toNal() {
+            // rbsp_stop_one_bit,the rest of the byte stays 0
+            u(1, 1);
+            int length = (bitPos + 7) >> 3;
+            byte[] nal = new byte[length * 3 / 2 + 1];
+            int out = 0;
+            int zeros = 0;
+            for (int i = 0; i < length; i++) {
+                if (zeros == 2 && (data[i] & 0xff) <= 3) {
+                    nal[out++] = 3;
+                    zeros = 0;
+                }
+                nal[out++] = data[i];
+                zeros = data[i] == 0 ? zeros + 1 : 0;
+            }
+            return Arrays.copyOf(nal, out);
+        }
+    }
+}